@@ -1,8 +1,11 @@
 package de.dfki.lt.loot.tfs;
 
-import gnu.trove.list.TIntList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 
-/** A class for thread-safe dags, in a single int array,
+/** A class for thread-safe dags, in two int arrays,
  *  the representation is as follows:
  *
  *  _nodes:
@@ -10,24 +13,541 @@ import gnu.trove.list.TIntList;
  *  1: offset to edge list of node 0: i , or -1, if no edges
  *  ...
  *
- *  0: no edges of node 0
- *  1: feature id of edge 0 of node 0
- *  2: id of target node of edge 0
+ *  _edges:
+ *  i: no edges of node 0
+ *  i + 1: feature id of edge 0 of node 0
+ *  i + 2: id of target node of edge 0
  *  ...
+ *
+ *  Node 0 is the root, and the edges of a node are sorted according to the
+ *  feature ids. A Dag is immutable, and can be shared between threads without
+ *  any restriction. Unification, subsumption and copying work in thread-local
+ *  buffers, only the resulting Dag is allocated.
  * @author kiefer
  *
  */
 public class Dag {
-  int[] _nodes;
-  int[] _edges;
+  final int[] _nodes;
+  final int[] _edges;
+
+  private static final int[] NO_EDGES = {};
+
+  /** For thread safety, the temporary structures are thread local */
+  private static final ThreadLocal<Workspace> _workspaces =
+    new ThreadLocal<Workspace>() {
+      @Override
+      protected Workspace initialValue() { return new Workspace(); }
+    };
+
+  /** The temporary structures of all Dag operations.
+   *
+   *  Unification loads the nodes of the input dags (and of the type dags
+   *  needed for wellformedness) into the node arrays, the edges of these
+   *  nodes are copied into tempEdges, with target ids relative to the
+   *  workspace. Unified nodes are merged with union-find on the forward array,
+   *  edges that a representative gets from merged nodes are stored in linked
+   *  lists sorted by feature.
+   */
+  private static class Workspace {
+    int noNodes;
+    int[] type = new int[256];
+    int[] edgeOff = new int[256];  // offset into tempEdges, or -1
+    int[] forward = new int[256];  // -1 for representative nodes
+    int[] extra = new int[256];    // head of the extra edges list, or -1
+    int[] copy = new int[256];     // id in the result, or other mappings
+
+    int noTempEdges;
+    int[] tempEdges = new int[1024];
+
+    int noExtra;
+    int[] extraFeat = new int[64];
+    int[] extraVal = new int[64];
+    int[] extraNext = new int[64];
+
+    int sp;
+    int[] stack = new int[256];
+
+    // the nodes and edges of the result, see _tempNodes and _tempEdges
+    int noTempNodes;
+    int[] tempNodes = new int[512];
+    int[] order = new int[256];
+
+    // for the conversion from DagNode
+    IdentityHashMap<DagNode, Integer> ids =
+      new IdentityHashMap<DagNode, Integer>();
+    ArrayList<DagNode> queue = new ArrayList<DagNode>();
+
+    void reset() {
+      noNodes = noTempEdges = noExtra = sp = noTempNodes = 0;
+    }
+
+    void ensureNodes(int size) {
+      if (size > type.length) {
+        int newSize = Math.max(size, 2 * type.length);
+        type = Arrays.copyOf(type, newSize);
+        edgeOff = Arrays.copyOf(edgeOff, newSize);
+        forward = Arrays.copyOf(forward, newSize);
+        extra = Arrays.copyOf(extra, newSize);
+        copy = Arrays.copyOf(copy, newSize);
+        order = Arrays.copyOf(order, newSize);
+      }
+    }
+
+    void ensureTempEdges(int size) {
+      if (size > tempEdges.length)
+        tempEdges = Arrays.copyOf(tempEdges, Math.max(size, 2 * tempEdges.length));
+    }
+
+    void ensureTempNodes(int size) {
+      if (size > tempNodes.length)
+        tempNodes = Arrays.copyOf(tempNodes, Math.max(size, 2 * tempNodes.length));
+    }
+
+    void push(int a, int b) {
+      if (sp + 2 > stack.length)
+        stack = Arrays.copyOf(stack, 2 * stack.length);
+      stack[sp++] = a;
+      stack[sp++] = b;
+    }
+
+    /** Copy the nodes and edges of d into the workspace, return the id of its
+     *  root node.
+     */
+    int load(Dag d) {
+      int base = noNodes;
+      int size = d.getNoOfNodes();
+      ensureNodes(base + size);
+      ensureTempEdges(noTempEdges + d._edges.length);
+      for (int i = 0; i < size; ++i) {
+        int n = base + i;
+        type[n] = d._nodes[2 * i];
+        forward[n] = extra[n] = copy[n] = -1;
+        int off = d._nodes[2 * i + 1];
+        if (off < 0) {
+          edgeOff[n] = -1;
+        } else {
+          int noEdges = d._edges[off];
+          edgeOff[n] = noTempEdges;
+          tempEdges[noTempEdges++] = noEdges;
+          for (int e = off + 1; e < off + 1 + 2 * noEdges; e += 2) {
+            tempEdges[noTempEdges++] = d._edges[e];
+            tempEdges[noTempEdges++] = d._edges[e + 1] + base;
+          }
+        }
+      }
+      noNodes = base + size;
+      return base;
+    }
+
+    int find(int node) {
+      while (forward[node] >= 0) {
+        if (forward[forward[node]] >= 0)
+          forward[node] = forward[forward[node]];
+        node = forward[node];
+      }
+      return node;
+    }
+
+    boolean hasEdges(int node) {
+      return edgeOff[node] >= 0 || extra[node] >= 0;
+    }
+
+    /** return the target of the edge with feature feat, or -1 */
+    int getValue(int node, int feat) {
+      int off = edgeOff[node];
+      if (off >= 0) {
+        int target = search(tempEdges, off, feat);
+        if (target >= 0) return target;
+      }
+      for (int x = extra[node]; x >= 0; x = extraNext[x]) {
+        if (extraFeat[x] == feat) return extraVal[x];
+        if (extraFeat[x] > feat) break;
+      }
+      return -1;
+    }
+
+    /** add an edge the node does not have, keeping the list sorted */
+    void addEdge(int node, int feat, int val) {
+      if (noExtra == extraFeat.length) {
+        int newSize = 2 * noExtra;
+        extraFeat = Arrays.copyOf(extraFeat, newSize);
+        extraVal = Arrays.copyOf(extraVal, newSize);
+        extraNext = Arrays.copyOf(extraNext, newSize);
+      }
+      int x = noExtra++;
+      extraFeat[x] = feat;
+      extraVal[x] = val;
+      int prev = -1, curr = extra[node];
+      while (curr >= 0 && extraFeat[curr] < feat) {
+        prev = curr;
+        curr = extraNext[curr];
+      }
+      extraNext[x] = curr;
+      if (prev < 0) {
+        extra[node] = x;
+      } else {
+        extraNext[prev] = x;
+      }
+    }
+
+    /** Unify the nodes a and b, adding type dags of the grammar where
+     *  wellformedness requires it.
+     */
+    boolean unify(int a, int b, FSGrammar grammar) {
+      sp = 0;
+      push(a, b);
+      while (sp > 0) {
+        b = find(stack[--sp]);
+        a = find(stack[--sp]);
+        if (a == b) continue;
+
+        int type1 = type[a];
+        int type2 = type[b];
+        int unifType = grammar.unifyTypes(type1, type2);
+        if (unifType == FSGrammar.BOTTOM_TYPE) return false;
+
+        // same conditions as in the DagNode unifier
+        boolean empty1 = ! hasEdges(a), empty2 = ! hasEdges(b);
+        boolean wellformed = (type1 == unifType && type2 == unifType)
+            || (empty1 && empty2)
+            || (type1 == unifType && ! empty1)
+            || (type2 == unifType && ! empty2);
+
+        type[a] = unifType;
+        forward[b] = a;
+        int off = edgeOff[b];
+        if (off >= 0) {
+          for (int e = off + 1; e < off + 1 + 2 * tempEdges[off]; e += 2) {
+            moveEdge(a, tempEdges[e], tempEdges[e + 1]);
+          }
+        }
+        for (int x = extra[b]; x >= 0; x = extraNext[x]) {
+          moveEdge(a, extraFeat[x], extraVal[x]);
+        }
+
+        if (! wellformed) {
+          Dag typeDag = grammar.getTypeDag(unifType);
+          if (typeDag != null) {
+            push(a, load(typeDag));
+          }
+        }
+      }
+      return true;
+    }
+
+    private void moveEdge(int to, int feat, int val) {
+      int here = getValue(to, feat);
+      if (here >= 0) {
+        push(here, val);
+      } else {
+        addEdge(to, feat, val);
+      }
+    }
+
+    /** Collect the nodes and edges reachable from root into tempNodes and
+     *  tempEdges, and return the result, or null, if it is cyclic.
+     */
+    Dag copyResult(int root) {
+      root = find(root);
+      int noResultEdges = 0;
+      int[] resultEdges = new int[2 * noTempEdges + 16];
+      noTempNodes = 0;
+      copy[root] = noTempNodes;
+      order[noTempNodes++] = root;
+      for (int id = 0; id < noTempNodes; ++id) {
+        int node = order[id];
+        ensureTempNodes(2 * noTempNodes);
+        tempNodes[2 * id] = type[node];
+        int off = edgeOff[node];
+        int x = extra[node];
+        if (off < 0 && x < 0) {
+          tempNodes[2 * id + 1] = -1;
+          continue;
+        }
+        int e = off + 1;
+        int end = (off < 0) ? e : e + 2 * tempEdges[off];
+        int noEdges = (end - e) / 2;
+        for (int xx = x; xx >= 0; xx = extraNext[xx]) ++noEdges;
+        if (noResultEdges + 1 + 2 * noEdges > resultEdges.length)
+          resultEdges = Arrays.copyOf(resultEdges,
+              2 * (noResultEdges + 1 + 2 * noEdges));
+        tempNodes[2 * id + 1] = noResultEdges;
+        resultEdges[noResultEdges++] = noEdges;
+        // merge the original and the extra edges, which are both sorted
+        while (e < end || x >= 0) {
+          int feat, val;
+          if (x < 0 || (e < end && tempEdges[e] < extraFeat[x])) {
+            feat = tempEdges[e];
+            val = tempEdges[e + 1];
+            e += 2;
+          } else {
+            feat = extraFeat[x];
+            val = extraVal[x];
+            x = extraNext[x];
+          }
+          val = find(val);
+          if (copy[val] < 0) {
+            ensureNodes(noTempNodes + 1);
+            copy[val] = noTempNodes;
+            order[noTempNodes++] = val;
+          }
+          resultEdges[noResultEdges++] = feat;
+          resultEdges[noResultEdges++] = copy[val];
+        }
+      }
+      Dag result = new Dag(Arrays.copyOf(tempNodes, 2 * noTempNodes),
+          Arrays.copyOf(resultEdges, noResultEdges));
+      return result.isCyclic(this) ? null : result;
+    }
+  }
+
+  private Dag(int[] nodes, int[] edges) {
+    _nodes = nodes;
+    _edges = edges;
+  }
 
-  /** For thread safety, these will later be thread local */
-  static TIntList _tempNodes;
-  static TIntList _tempEdges;
+  /** Binary search for feat in the edge list starting at off, return the
+   *  target node or -1
+   */
+  private static int search(int[] edges, int off, int feat) {
+    int low = 0, high = edges[off] - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int f = edges[off + 1 + 2 * mid];
+      if (f < feat) {
+        low = mid + 1;
+      } else if (f > feat) {
+        high = mid - 1;
+      } else {
+        return edges[off + 2 + 2 * mid];
+      }
+    }
+    return -1;
+  }
+
+  /** Return the number of nodes of this dag */
+  public int getNoOfNodes() { return _nodes.length / 2; }
+
+  /** Return the type of the root node */
+  public int getType() { return _nodes[0]; }
+
+  /** Return the type of the given node */
+  public int getType(int node) { return _nodes[2 * node]; }
+
+  /** Return the node under feature feat of node, or -1 if there is none */
+  public int getValue(int node, short feat) {
+    int off = _nodes[2 * node + 1];
+    return (off < 0) ? -1 : search(_edges, off, feat);
+  }
+
+  /** Return the node of the argNo'th argument under ARGS, or -1 */
+  public int getNthArg(int argNo) {
+    FSGrammar grammar = DagNode.getGrammar();
+    int node = getValue(0, grammar.argsFeatureId);
+    while (argNo-- > 0 && node >= 0) {
+      node = getValue(node, grammar.restFeatureId);
+    }
+    return (node < 0) ? -1 : getValue(node, grammar.firstFeatureId);
+  }
 
+  /** Check for cycles, using the copy and order slots of the workspace */
+  private boolean isCyclic(Workspace ws) {
+    // copy is the color of the node: 0 is unvisited, 1 on stack, 2 finished
+    int size = getNoOfNodes();
+    ws.ensureNodes(size);
+    Arrays.fill(ws.copy, 0, size, 0);
+    ws.sp = 0;
+    ws.push(0, 0);
+    ws.copy[0] = 1;
+    while (ws.sp > 0) {
+      int next = ws.stack[ws.sp - 1];
+      int node = ws.stack[ws.sp - 2];
+      int off = _nodes[2 * node + 1];
+      if (off < 0 || next == _edges[off]) {
+        ws.copy[node] = 2;
+        ws.sp -= 2;
+        continue;
+      }
+      ws.stack[ws.sp - 1] = next + 1;
+      int target = _edges[off + 2 + 2 * next];
+      if (ws.copy[target] == 1) return true;
+      if (ws.copy[target] == 0) {
+        ws.copy[target] = 1;
+        ws.push(target, 0);
+      }
+    }
+    return false;
+  }
+
+  /** Convert a DagNode into a Dag.
+   *  Works correctly only on non-temporary dags.
+   */
   public static Dag DagnodeToDag(DagNode input) {
-    int currNode = 0, currEdge = 0;
-    return null;
+    Workspace ws = _workspaces.get();
+    ws.reset();
+    IdentityHashMap<DagNode, Integer> ids = ws.ids;
+    ArrayList<DagNode> queue = ws.queue;
+    ids.put(input, 0);
+    queue.add(input);
+    for (int id = 0; id < queue.size(); ++id) {
+      DagNode node = queue.get(id);
+      ws.ensureTempNodes(2 * id + 2);
+      ws.tempNodes[2 * id] = node.getType();
+      Iterator<DagEdge> it = node.getEdgeIterator();
+      if (! it.hasNext()) {
+        ws.tempNodes[2 * id + 1] = -1;
+        continue;
+      }
+      int countPos = ws.noTempEdges++;
+      int noEdges = 0;
+      while (it.hasNext()) {
+        DagEdge edge = it.next();
+        Integer target = ids.get(edge.getValue());
+        if (target == null) {
+          target = queue.size();
+          ids.put(edge.getValue(), target);
+          queue.add(edge.getValue());
+        }
+        ws.ensureTempEdges(ws.noTempEdges + 2);
+        ws.tempEdges[ws.noTempEdges++] = edge.getFeature();
+        ws.tempEdges[ws.noTempEdges++] = target;
+        ++noEdges;
+      }
+      ws.tempEdges[countPos] = noEdges;
+      ws.tempNodes[2 * id + 1] = countPos;
+    }
+    Dag result = new Dag(Arrays.copyOf(ws.tempNodes, 2 * queue.size()),
+        ws.noTempEdges == 0 ? NO_EDGES
+                            : Arrays.copyOf(ws.tempEdges, ws.noTempEdges));
+    ids.clear();
+    queue.clear();
+    return result;
+  }
+
+  /** Convert a Dag into an equivalent, newly created DagNode */
+  public static DagNode DagToDagnode(Dag input) {
+    return input.toDagNode();
   }
 
+  /** Return a newly created DagNode equivalent to this Dag */
+  public DagNode toDagNode() {
+    int size = getNoOfNodes();
+    DagNode[] nodes = new DagNode[size];
+    for (int i = 0; i < size; ++i) {
+      nodes[i] = new DagNode(_nodes[2 * i]);
+    }
+    for (int i = 0; i < size; ++i) {
+      int off = _nodes[2 * i + 1];
+      if (off >= 0) {
+        int noEdges = _edges[off];
+        nodes[i].addEdges(noEdges);
+        for (int e = off + 1; e < off + 1 + 2 * noEdges; e += 2) {
+          nodes[i].addEdge((short) _edges[e], nodes[_edges[e + 1]]);
+        }
+      }
+    }
+    return nodes[0];
+  }
+
+  /** Unify this with arg and return the result, or null if unification
+   *  fails or the result would be cyclic.
+   */
+  public Dag unify(Dag arg) {
+    Workspace ws = _workspaces.get();
+    ws.reset();
+    int root = ws.load(this);
+    int argRoot = ws.load(arg);
+    return ws.unify(root, argRoot, DagNode.getGrammar())
+        ? ws.copyResult(root) : null;
+  }
+
+  /** Unify arg into the argNo'th argument position of this and return the
+   *  result, or null if unification fails, this has no such argument or the
+   *  result would be cyclic.
+   */
+  public Dag unify(Dag arg, int argNo) {
+    int sub = getNthArg(argNo);
+    if (sub < 0) return null;
+    Workspace ws = _workspaces.get();
+    ws.reset();
+    int root = ws.load(this);
+    int argRoot = ws.load(arg);
+    return ws.unify(root + sub, argRoot, DagNode.getGrammar())
+        ? ws.copyResult(root) : null;
+  }
+
+  /** Return true if unification of this and arg would succeed. As with
+   *  DagNode.isUnifiable, cycles are not detected.
+   */
+  public boolean isUnifiable(Dag arg) {
+    Workspace ws = _workspaces.get();
+    ws.reset();
+    int root = ws.load(this);
+    int argRoot = ws.load(arg);
+    return ws.unify(root, argRoot, DagNode.getGrammar());
+  }
+
+  /** Return true if this is more general than or equal to arg */
+  public boolean subsumes(Dag arg) {
+    FSGrammar grammar = DagNode.getGrammar();
+    Workspace ws = _workspaces.get();
+    ws.reset();
+    int size = getNoOfNodes();
+    ws.ensureNodes(size);
+    // copy contains the node of arg this node is mapped to
+    Arrays.fill(ws.copy, 0, size, -1);
+    ws.push(0, 0);
+    while (ws.sp > 0) {
+      int node2 = ws.stack[--ws.sp];
+      int node1 = ws.stack[--ws.sp];
+      if (ws.copy[node1] >= 0) {
+        if (ws.copy[node1] != node2) return false;
+        continue;
+      }
+      ws.copy[node1] = node2;
+      int type1 = _nodes[2 * node1];
+      int type2 = arg._nodes[2 * node2];
+      if (type1 != type2 && ! grammar.subsumesType(type1, type2))
+        return false;
+      int off1 = _nodes[2 * node1 + 1];
+      if (off1 < 0) continue;
+      int off2 = arg._nodes[2 * node2 + 1];
+      if (off2 < 0) return false;
+      int e2 = off2 + 1, end2 = e2 + 2 * arg._edges[off2];
+      for (int e1 = off1 + 1; e1 < off1 + 1 + 2 * _edges[off1]; e1 += 2) {
+        int feat = _edges[e1];
+        while (e2 < end2 && arg._edges[e2] < feat) e2 += 2;
+        if (e2 == end2 || arg._edges[e2] != feat) return false;
+        ws.push(_edges[e1 + 1], arg._edges[e2 + 1]);
+        e2 += 2;
+      }
+    }
+    return true;
+  }
+
+  /** Return a copy of this dag. Since dags are immutable, this is only needed
+   *  to get a representation that does not share any arrays with this one.
+   */
+  public Dag copy() {
+    return new Dag(_nodes.clone(), _edges.clone());
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (! (obj instanceof Dag)) return false;
+    Dag arg = (Dag) obj;
+    return this == arg ||
+        (_nodes.length == arg._nodes.length && _edges.length == arg._edges.length
+         && subsumes(arg) && arg.subsumes(this));
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * getNoOfNodes() + getType();
+  }
+
+  @Override
+  public String toString() {
+    return toDagNode().toString();
+  }
 }
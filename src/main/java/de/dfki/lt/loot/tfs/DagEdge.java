@@ -1,5 +1,9 @@
 package de.dfki.lt.loot.tfs;
 
+/** A feature-value pair. DagNode stores its edges in arrays, the DagEdge
+ *  objects returned by its iterators are created on demand, so setting the
+ *  value of such an edge does not change the dag.
+ */
 public class DagEdge implements Comparable<DagEdge> {
   /** a <b>feature</b> (sometimes called attribute or a label) is internally
    * represented as a short, usually starting with 0 */
@@ -45,10 +49,10 @@ public class DagEdge implements Comparable<DagEdge> {
   }
 
   public boolean isFirst() {
-    return getFeature() == DagNode.fsgrammar.firstFeatureId;
+    return getFeature() == DagNode.getGrammar().firstFeatureId;
   }
   public boolean isRest() {
-    return getFeature() == DagNode.fsgrammar.restFeatureId;
+    return getFeature() == DagNode.getGrammar().restFeatureId;
   }
 
   @Override
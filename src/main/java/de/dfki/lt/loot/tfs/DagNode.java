@@ -7,13 +7,13 @@ import java.io.StreamTokenizer;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.dfki.lt.loot.tfs.io.DagPrinter;
 import de.dfki.lt.loot.tfs.io.InvalidSyntaxException;
@@ -33,11 +33,20 @@ import de.dfki.lt.loot.tfsdebugging.ErrorProducer;
  *  and type and feature name mapping, constants for special purpose
  *  substructures like ARGS lists, etc.
  *
- *  A dag from this class can NOT be used for unification or subsumption in
- *  more that one thread simultaneously because of the scratch slots which are
- *  guarded by a static generation counter. Moreover, the generation counters
- *  would have to be thread-local to allow to use it in parallel threads even
- *  with completely independent structures.
+ *  The scratch slots live in the arena of a UnificationContext, which is
+ *  thread-local, a node only stores its slot index. Unification, copying,
+ *  subsumption, equality and cycle checks can therefore run in parallel
+ *  threads, as long as the dags involved do not share nodes. The grammar's
+ *  type dags are only read during unification, and can be shared. A single
+ *  dag can NOT be used by more than one thread at the same time.
+ *
+ *  @attention Since the slot index is written into the node itself, a node
+ *  that is reachable from two concurrent operations is not allowed, also not
+ *  if it is only read: the threads would overwrite each other's index and
+ *  lose or mix up their scratch state. This concerns, e.g., a rule TFS that
+ *  is unified by several threads (clone it for every thread), and the results
+ *  of copyResult() with structure sharing, which share nodes with the input
+ *  dags and with each other.
  *
  *  In this implementation, the edge lists must be sorted according to the
  *  feature ids to work properly.
@@ -54,12 +63,38 @@ public class DagNode {
 
   protected static boolean recordFailures = false;
 
+  /** Use the feature slot tables of the grammar for wide nodes in getValue()
+   *  and getEdge()
+   */
+  public static boolean INDEXED_LOOKUP = true;
+
+  /** Nodes with up to this number of edges are searched linearly in
+   *  getValue() and getEdge(), wider nodes with the feature slot table or
+   *  binary search
+   */
+  public static int LINEAR_SEARCH_LIMIT = 8;
+
+  /** If true, the unrestricted copyResult() shares unchanged subdags with the
+   *  input dags
+   */
+  protected static boolean structureSharing = false;
+
   protected static final int THIS_MORE_GENERAL_MASK = ~ THIS_MORE_GENERAL;
   protected static final int ARG_MORE_GENERAL_MASK = ~ ARG_MORE_GENERAL;
 
+  /** The default grammar, used by all threads that have no grammar of their
+   *  own, see setThreadGrammar()
+   */
   protected static FSGrammar fsgrammar;
 
+  /** The number of threads that have a grammar of their own. As long as
+   *  there are none, the default grammar is used without looking at the
+   *  thread's context.
+   */
+  private static final AtomicInteger threadGrammars = new AtomicInteger();
+
   protected static short NO_FEAT = Short.MAX_VALUE;
+  /** The special features of the default grammar */
   protected static short ARGS_FEATURE;
   protected static short FIRST_FEATURE;
   protected static short REST_FEATURE;
@@ -77,14 +112,6 @@ public class DagNode {
   // throw an error if reading a jxchg file with an unknown feature
   public static boolean UNKNOWN_FEATURE_ERROR = true;
 
-  // these two would have to be thread-local for this class to be used in
-  // parallel threads
-  private static long currentGenerationMax = 1;
-  private static long currentGeneration = 1;
-
-  @SuppressWarnings("serial")
-  private class CycleError extends Error {}
-
   /* ******************** PUBLIC CONSTANTS AND VARIABLES ******************** */
 
   /** Use internal codes or external names for printing */
@@ -96,10 +123,12 @@ public class DagNode {
   private static DagPrinter _DEFAULT_PRINTER = null;
 
   /** Which type of failure occured?
-   *  unification failures: Type clash, cycle, wellformedness unification
+   *  unification failures: Type clash, cycle, wellformedness unification,
+   *    known failure (see TFS.setFailureCache())
    *  subsumption failures: type mismatch, missing feature, missing variable
    */
-  public enum FailType { SUCCESS, TYPE, CYCLE, FEATURE, VARIABLE, WELLFORMED }
+  public enum FailType {
+    SUCCESS, TYPE, CYCLE, FEATURE, VARIABLE, WELLFORMED, CACHED }
 
   /** Restrictor constants, with the following meaning (in the restrictor dag)
    *  KEEP: keep only the features mentioned in this restrictor node, with the
@@ -120,16 +149,17 @@ public class DagNode {
 
   // The type of this node
   private int _typeCode;
-  // The feature-value list
-  private ArrayList<DagEdge> _edges;
+  // The features of the outgoing edges in ascending order, and the values of
+  // these edges. Both arrays have exactly the size of the number of edges, or
+  // are null if there are no edges.
+  private short[] _features;
+  private DagNode[] _values;
 
-  // a generation counter to (in)validate the following scratch fields
-  private long _generation;
-  // these are the generation-protected scratch slots
-  private int _newType;
-  private DagNode _forward;
-  private DagNode _copy;
-  private ArrayList<DagEdge> _compArcs;
+  // the index of the scratch slots (new type, forward, copy and compArcs) in
+  // the arena of the unification context; only valid if the arena's owner
+  // entry at this index is this node. Written by every operation that uses
+  // scratch slots, so a node must not take part in two concurrent ones.
+  private int _slot;
 
 
   /** so that we don't have to return null when the edges list is empty */
@@ -145,58 +175,72 @@ public class DagNode {
   /** This iterator iterates over the edges of a node correctly, be it a
    * `complete' or `temporary' dag, i.e., one that is currently involved in
    * unification as has a maybe non-empty compArcs list.
+   * The unifier uses nextFeature() and value(), which do not create DagEdge
+   * objects for the permanent edges.
    */
   class EdgeIterator {
     private int cursorArcs = -1;
     private int cursorCompArcs = -1;
+    private ArrayList<DagEdge> compArcs;
+    private final UnificationContext ctx;
+    // the value of the edge returned last by nextFeature()
+    private DagNode value;
 
-    EdgeIterator() {
-      if (DagNode.this._edges != null) {	//
-        if (DagNode.this._edges.isEmpty()) {
-          DagNode.this._edges = null;
-          cursorArcs = -1;
-        } else {
-          cursorArcs = 0;
-        }
-      }
-      cursorCompArcs = (_generation == currentGeneration &&
-                        DagNode.this._compArcs != null) ? 0 : -1 ;
+    EdgeIterator(UnificationContext ctx) {
+      this.ctx = ctx;
+      cursorArcs = (_features != null) ? 0 : -1;
+      compArcs = getCompArcs(ctx);
+      cursorCompArcs = (compArcs != null) ? 0 : -1 ;
     }
 
     public boolean hasNext() {
       return cursorArcs != -1 || cursorCompArcs != -1;
     }
 
-    public DagEdge next() {
+    /** Move to the next edge and return its feature, or NO_FEAT if there is
+     *  none. The value of the edge is then available with value().
+     */
+    public short nextFeature() {
       if (cursorArcs != -1) {
-        // cursorArcs != -1
         if (cursorCompArcs == -1 ||
-            (DagNode.this._compArcs.get(cursorCompArcs).feature >
-             DagNode.this._edges.get(cursorArcs).feature)) {
+            (compArcs.get(cursorCompArcs).feature > _features[cursorArcs])) {
           int curr = cursorArcs++;
-          if (cursorArcs == DagNode.this._edges.size()) {
+          if (cursorArcs == _features.length) {
             cursorArcs = -1;
           }
-          return DagNode.this._edges.get(curr);
+          value = _values[curr];
+          return _features[curr];
         }
       }
-      // if (cursorCompArcs == -1) throw new NoSuchElementException();
-      int curr = cursorCompArcs++;
-      if (cursorCompArcs == DagNode.this._compArcs.size()) {
+      if (cursorCompArcs == -1) return NO_FEAT;
+      DagEdge arc = compArcs.get(cursorCompArcs++);
+      if (cursorCompArcs == compArcs.size()) {
         cursorCompArcs = -1;
       }
-      return DagNode.this._compArcs.get(curr);
+      value = arc.value;
+      return arc.feature;
+    }
+
+    /** The value of the edge returned last by nextFeature() */
+    public DagNode value() {
+      return value;
     }
 
-    public void add(DagEdge arc) {
+    public DagEdge next() {
+      short feature = nextFeature();
+      if (feature == NO_FEAT) throw new NoSuchElementException();
+      return new DagEdge(feature, value);
+    }
+
+    public void add(short feature, DagNode value) {
+      DagEdge arc = new DagEdge(feature, value);
       if (cursorCompArcs != -1) {
         // add it at the cursor and move it to the next element.
         if (cursorCompArcs == 0 ||
-            (DagNode.this._compArcs.get(cursorCompArcs - 1).feature
-             < arc.feature)) {
-          DagNode.this._compArcs.add(cursorCompArcs, arc);
+            (compArcs.get(cursorCompArcs - 1).feature < arc.feature)) {
+          compArcs.add(cursorCompArcs, arc);
         } else {
-          DagNode.this._compArcs.add(cursorCompArcs - 1, arc);
+          compArcs.add(cursorCompArcs - 1, arc);
         }
         ++cursorCompArcs;
       } else {
@@ -204,43 +248,108 @@ public class DagNode {
         // list, either because the list was empty in the beginning, or the
         // compArcs have all been visited. Otherwise, the cursor would have a
         // non-negative value.
-        if (DagNode.this._compArcs == null) {
-          DagNode.this._compArcs = new ArrayList<DagEdge>();
-          DagNode.this._compArcs.add(arc);
+        if (compArcs == null) {
+          compArcs = new ArrayList<DagEdge>();
+          compArcs.add(arc);
+          setCompArcs(compArcs, ctx);
         } else {
-          int lastIndex =  DagNode.this._compArcs.size() - 1;
-          if (DagNode.this._compArcs.get(lastIndex).feature > arc.feature) {
-            DagNode.this._compArcs.add(lastIndex, arc);
+          int lastIndex =  compArcs.size() - 1;
+          if (compArcs.get(lastIndex).feature > arc.feature) {
+            compArcs.add(lastIndex, arc);
           } else {
-            DagNode.this._compArcs.add(arc);
+            compArcs.add(arc);
           }
         }
       }
-      /*
-        int i = 0;
-        while (i < DagNode.this.compArcs.size()) {
-        if (i > 0 &&
-        DagNode.this.compArcs.get(i-1).feature >=
-        DagNode.this.compArcs.get(i).feature) {
-        System.out.println("what");
-        }
-        ++i;
-        }
-      */
     }
   }
 
+  /** Iterator over the edges of a complete dag. The DagEdge objects are
+   *  created on demand, remove() deletes the last returned edge from the
+   *  node.
+   */
+  private class ArrayEdgeIterator implements Iterator<DagEdge> {
+    private int next = 0;
+
+    public boolean hasNext() {
+      return _features != null && next < _features.length;
+    }
+
+    public DagEdge next() {
+      if (! hasNext()) throw new NoSuchElementException();
+      DagEdge result = new DagEdge(_features[next], _values[next]);
+      ++next;
+      return result;
+    }
 
+    public void remove() {
+      if (next == 0) throw new IllegalStateException();
+      removeEdgeAt(--next);
+    }
+  }
+
+  /** A frame of the explicit work stack that replaces the recursion of the
+   *  dag traversals, so that long lists do not overflow the call stack.
+   *  The frames are owned and reused by the unification context, not every
+   *  operation uses all fields, and every operation has to initialize the
+   *  fields it uses when pushing a frame.
+   */
+  static final class Frame {
+    // the nodes of this frame
+    DagNode in1, in2;
+    // the edge iterators of unification and dag walking
+    EdgeIterator it1, it2;
+    // the first features of unification, or the feature of the pending
+    // edge in copying
+    short feat1, feat2;
+    // the current failure path node of unification
+    IntTrie<int[]> curr;
+    // the edge cursors of copying, subsumption and equality
+    int i1, i2;
+    // true if unification has descended into the current edges
+    boolean pending;
+    // the new type, comp-arcs and new edges of copying
+    int newType;
+    ArrayList<DagEdge> compArcs;
+    boolean share;
+    short[] newFeatures;
+    DagNode[] newValues;
+    int pos, size;
+    // the copy under construction and the restrictor state of restricted
+    // copying
+    DagNode result;
+    RESTRICT restr;
+    Iterator<DagEdge> restIt;
+    DagEdge restArc;
+    DagRestrictor massager;
+    DagRestrictor.Iterator massagerIt;
+
+    /** Drop all references to dags */
+    void clear() {
+      in1 = in2 = null;
+      it1 = it2 = null;
+      curr = null;
+      compArcs = null;
+      newFeatures = null;
+      newValues = null;
+      result = null;
+      restIt = null;
+      restArc = null;
+      massager = null;
+      massagerIt = null;
+    }
+  }
+
+
+  /** Invalidate the scratch slots of the current thread's context */
   public static void invalidate() {
-    if (currentGeneration > currentGenerationMax)
-      currentGenerationMax = currentGeneration;
-    currentGeneration = ++currentGenerationMax;
+    UnificationContext.get().invalidate();
   }
 
   protected DagNode(int typeIdent) {
     _typeCode = typeIdent;
-    _edges = null;
-    _generation = 0;
+    _features = null;
+    _values = null;
   }
 
   // *************************************************************************
@@ -248,37 +357,80 @@ public class DagNode {
   // *************************************************************************
 
   protected DagNode dereference() {
-    if (_generation != currentGeneration || _forward == null) return this;
-    return _forward.dereference();
+    return dereference(UnificationContext.get());
   }
 
-  public void setForward(DagNode fs) {
-    if (_generation != currentGeneration) {
-      _newType = _typeCode;
-      _copy = null;
-      _compArcs = null;
-      _generation = currentGeneration;
+  /** Return the index of this node's scratch slots in the arena of ctx, or
+   *  -1 if they have not been written since the last invalidation
+   */
+  private int getSlot(UnificationContext ctx) {
+    int slot = _slot;
+    return (slot < ctx.size && ctx.owner[slot] == this) ? slot : -1;
+  }
+
+  /** Return the index of this node's scratch slots in the arena of ctx,
+   *  allocating fresh ones if necessary. Since this may replace the arrays of
+   *  the arena, it must be called before accessing them.
+   */
+  private int getOrCreateSlot(UnificationContext ctx) {
+    int slot = getSlot(ctx);
+    if (slot < 0) {
+      slot = ctx.newSlot(this, _typeCode);
+      _slot = slot;
+    }
+    return slot;
+  }
+
+  private DagNode dereference(UnificationContext ctx) {
+    DagNode result = this;
+    int slot;
+    while ((slot = result.getSlot(ctx)) >= 0 && ctx.forward[slot] != null) {
+      result = ctx.forward[slot];
     }
-    _forward = fs;
+    return result;
+  }
+
+  public void setForward(DagNode fs) {
+    setForward(fs, UnificationContext.get());
+  }
+
+  private void setForward(DagNode fs, UnificationContext ctx) {
+    int slot = getOrCreateSlot(ctx);
+    ctx.forward[slot] = fs;
   }
 
   public DagNode getForward() {
-    return (_generation != currentGeneration) ? null :
-      this._forward;
+    return getForward(UnificationContext.get());
   }
 
-  private void setCopy(DagNode fs) {
-    if (_generation != currentGeneration) {
-      _newType = _typeCode;
-      _forward = null;
-      _compArcs = null;
-      _generation = currentGeneration;
-    }
-    _copy = fs;
+  private DagNode getForward(UnificationContext ctx) {
+    int slot = getSlot(ctx);
+    return (slot < 0) ? null : ctx.forward[slot];
+  }
+
+  private void setCopy(DagNode fs, UnificationContext ctx) {
+    int slot = getOrCreateSlot(ctx);
+    ctx.copy[slot] = fs;
   }
 
-  private DagNode getCopy() {
-    return (_generation != currentGeneration) ? null : this._copy;
+  private DagNode getCopy(UnificationContext ctx) {
+    int slot = getSlot(ctx);
+    return (slot < 0) ? null : ctx.copy[slot];
+  }
+
+  private ArrayList<DagEdge> getCompArcs(UnificationContext ctx) {
+    int slot = getSlot(ctx);
+    return (slot < 0) ? null : ctx.compArcs[slot];
+  }
+
+  private void setCompArcs(ArrayList<DagEdge> arcs, UnificationContext ctx) {
+    if (arcs != null) {
+      int slot = getOrCreateSlot(ctx);
+      ctx.compArcs[slot] = arcs;
+    } else {
+      int slot = getSlot(ctx);
+      if (slot >= 0) ctx.compArcs[slot] = null;
+    }
   }
 
   /** An iterator that works for complete as well as transitional (unified
@@ -288,33 +440,50 @@ public class DagNode {
    * @return An iterator iterating over all edges of this dag
    */
   EdgeIterator getNewEdgeIterator() {
-    return this.new EdgeIterator();
+    return getNewEdgeIterator(UnificationContext.get());
+  }
+
+  private EdgeIterator getNewEdgeIterator(UnificationContext ctx) {
+    return this.new EdgeIterator(ctx);
   }
 
   public boolean newEdgesAreEmpty() {
-    return (_edges == null &&
-            ((_generation != currentGeneration) || this._compArcs == null));
+    return newEdgesAreEmpty(UnificationContext.get());
+  }
+
+  private boolean newEdgesAreEmpty(UnificationContext ctx) {
+    return (_features == null && getCompArcs(ctx) == null);
   }
 
   public int getNewType() {
-    return (_generation != currentGeneration) ? this._typeCode : this._newType;
+    return getNewType(UnificationContext.get());
   }
 
-  private void setNewType(int what) {
-    if (_generation != currentGeneration) {
-      _forward = null;
-      _copy = null;
-      _compArcs = null;
-      _generation = currentGeneration;
-    }
-    _newType = what;
+  private int getNewType(UnificationContext ctx) {
+    int slot = getSlot(ctx);
+    return (slot < 0) ? this._typeCode : ctx.newType[slot];
   }
 
-  public void setVisited(int what) { setNewType(what); }
+  private void setNewType(int what, UnificationContext ctx) {
+    int slot = getOrCreateSlot(ctx);
+    ctx.newType[slot] = what;
+  }
+
+  public void setVisited(int what) {
+    setNewType(what, UnificationContext.get());
+  }
+
+  private void setVisited(int what, UnificationContext ctx) {
+    setNewType(what, ctx);
+  }
 
   public int visited() {
-    if (_generation != currentGeneration) return -1;
-    return _newType;
+    return visited(UnificationContext.get());
+  }
+
+  private int visited(UnificationContext ctx) {
+    int slot = getSlot(ctx);
+    return (slot < 0) ? -1 : ctx.newType[slot];
   }
 
   // *************************************************************************
@@ -331,14 +500,15 @@ public class DagNode {
 
   public String getTypeName() {
     int aType = this.getNewType();
-    String name = fsgrammar.getTypeName(aType);
+    String name = grammar().getTypeName(aType);
     if (name == null)
       return "UNK_" + aType;
-    if (aType < fsgrammar.getNoOfTypes())
+    if (aType < grammar().getNoOfTypes())
       return name;
     return "@"+name+"@";
   }
 
+  /** Make grammar the default grammar */
   public static void setGrammar(FSGrammar grammar) {
     fsgrammar = grammar;
     ARGS_FEATURE = grammar.getArgsFeature();
@@ -347,34 +517,95 @@ public class DagNode {
     SLASH_FEATURE = grammar.getFeatureId("SLASH");
   }
 
-  public static FSGrammar getGrammar() { return fsgrammar; }
+  /** Return the grammar of the current thread, or the default grammar if the
+   *  thread has none of its own
+   */
+  public static FSGrammar getGrammar() { return grammar(); }
+
+  /** Return the default grammar */
+  public static FSGrammar getDefaultGrammar() { return fsgrammar; }
+
+  /** Let all dag operations of the current thread use \p grammar, or the
+   *  default grammar if \p grammar is null. Return the grammar the thread had
+   *  before, which is null if it used the default grammar.
+   *
+   *  The dags used by a thread must all belong to its grammar. With one
+   *  grammar per thread, different grammars can be used in parallel. If the
+   *  grammar of the thread changes, the constraint copies the thread keeps
+   *  for the old one are dropped.
+   */
+  public static FSGrammar setThreadGrammar(FSGrammar grammar) {
+    UnificationContext ctx = UnificationContext.get();
+    FSGrammar previous = ctx.grammar;
+    if (previous == null && grammar != null) {
+      threadGrammars.incrementAndGet();
+    } else if (previous != null && grammar == null) {
+      threadGrammars.decrementAndGet();
+    }
+    FSGrammar before = ctx.getGrammar();
+    ctx.grammar = grammar;
+    if (ctx.getGrammar() != before) ctx.dropConstraints();
+    return previous;
+  }
+
+  private static FSGrammar grammar() {
+    return (threadGrammars.get() == 0)
+        ? fsgrammar : UnificationContext.get().getGrammar();
+  }
 
   /** does typeId1 subsumes (is more general than or equal to) typeId2 */
   public static boolean subsumesType(int typeId1, int typeId2) {
-    return fsgrammar.subsumesType(typeId1, typeId2);
+    return grammar().subsumesType(typeId1, typeId2);
   }
 
   /** does typeId1 subsumes (is more general than or equal to) typeId2 */
   public static int unifyTypes(int typeId1, int typeId2) {
-    return fsgrammar.unifyTypes(typeId1, typeId2);
+    return grammar().unifyTypes(typeId1, typeId2);
   }
 
   public static void recordFailures(boolean state) {
     recordFailures = state;
   }
 
+  /** Return the reason why the last unification or copy operation of the
+   *  current thread failed, or FailType.SUCCESS if it did not fail. This is
+   *  available also if recordFailures is off. A missing argument position in
+   *  unifyFS() or unifyOnly() is reported as FailType.FEATURE.
+   */
+  public static FailType getLastFailure() {
+    return UnificationContext.get().failure;
+  }
+
+  /** Switch structure sharing in copyResult() on or off. If it is on, the
+   *  results of unification may share nodes with the input dags, so they
+   *  must be cloned (cloneFS()) before they are modified destructively, e.g.,
+   *  with destructive restriction. Only the unrestricted copyResult() shares,
+   *  the results of the restricting copyResult() variants are always
+   *  independent of the input dags.
+   *
+   *  @attention Dags that share nodes must not be used in concurrent
+   *  operations, not even for reading, see the class documentation. With
+   *  structure sharing, this includes results of different unifications with
+   *  the same input, and results and their inputs.
+   */
+  public static void structureSharing(boolean state) {
+    structureSharing = state;
+  }
+
   public static void registerPrinter(DagPrinter printer) {
     _DEFAULT_PRINTER = printer;
   }
 
-  private DagNode cloneFSRec() {
-    DagNode newCopy = getCopy();
+  private DagNode cloneFSRec(UnificationContext ctx) {
+    DagNode newCopy = getCopy(ctx);
     if (newCopy == null) {
-      newCopy = new DagNode(getNewType());
-      setCopy(newCopy);
-      if (getEdges() != null) {
-        for (DagEdge e : getEdges()) {
-          newCopy.addEdge(e.feature, e.value.cloneFSRec());
+      newCopy = new DagNode(getNewType(ctx));
+      setCopy(newCopy, ctx);
+      if (_features != null) {
+        newCopy._features = _features.clone();
+        newCopy._values = new DagNode[_values.length];
+        for (int i = 0; i < _values.length; ++i) {
+          newCopy._values[i] = _values[i].cloneFSRec(ctx);
         }
       }
     }
@@ -383,17 +614,37 @@ public class DagNode {
 
   /** create an independent clone of the current dag (a deep copy) */
   public DagNode cloneFS() {
-    invalidate();
-    return cloneFSRec();
+    UnificationContext ctx = UnificationContext.get();
+    ctx.invalidate();
+    return cloneFSRec(ctx);
   }
 
+  /** Clone a dag that may be used by other threads at the same time, like the
+   *  type dags of the grammar. Its scratch slots are not touched, the clones
+   *  are recorded in the given map instead.
+   */
+  private DagNode cloneSharedRec(IdentityHashMap<DagNode, DagNode> clones) {
+    DagNode newCopy = clones.get(this);
+    if (newCopy == null) {
+      newCopy = new DagNode(_typeCode);
+      clones.put(this, newCopy);
+      if (_features != null) {
+        newCopy._features = _features.clone();
+        newCopy._values = new DagNode[_values.length];
+        for (int i = 0; i < _values.length; ++i) {
+          newCopy._values[i] = _values[i].cloneSharedRec(clones);
+        }
+      }
+    }
+    return newCopy;
+  }
 
   private DagNode copyFsRec(TShortHashSet featuresToDelete,
-      int[] typesToGeneralize) {
-    DagNode newCopy = getCopy();
+      int[] typesToGeneralize, UnificationContext ctx) {
+    DagNode newCopy = getCopy(ctx);
     if (newCopy == null) {
       if (typesToGeneralize != null) {
-        int fsType = getNewType();
+        int fsType = getNewType(ctx);
         for (int type : typesToGeneralize) {
           if (type != fsType && subsumesType(type, fsType)) {
             fsType = type;
@@ -401,14 +652,20 @@ public class DagNode {
           }
         }
       }
-      newCopy = new DagNode(getNewType());
-      setCopy(newCopy);
-      if (getEdges() != null) {
-        for (DagEdge e : getEdges()) {
-          if (! featuresToDelete.contains(e.feature))
-            newCopy.addEdge(e.feature,
-                e.value.copyFsRec(featuresToDelete, typesToGeneralize));
+      newCopy = new DagNode(getNewType(ctx));
+      setCopy(newCopy, ctx);
+      if (_features != null) {
+        short[] features = new short[_features.length];
+        DagNode[] values = new DagNode[_features.length];
+        int n = 0;
+        for (int i = 0; i < _features.length; ++i) {
+          if (! featuresToDelete.contains(_features[i])) {
+            features[n] = _features[i];
+            values[n++] =
+                _values[i].copyFsRec(featuresToDelete, typesToGeneralize, ctx);
+          }
         }
+        newCopy.setEdges(features, values, n);
       }
     }
     return newCopy;
@@ -416,105 +673,182 @@ public class DagNode {
 
   /** create an independent clone of the current dag (a deep copy) */
   public DagNode copyFs(TShortHashSet featuresToDelete, int[] typesToGeneralize) {
-    invalidate();
-    return copyFsRec(featuresToDelete, typesToGeneralize);
+    UnificationContext ctx = UnificationContext.get();
+    ctx.invalidate();
+    return copyFsRec(featuresToDelete, typesToGeneralize, ctx);
   }
 
   public DagNode derefFS() {
     return dereference();
   }
 
-  /** recursive helper function for copyResult()
-   *  This does *NOT* implement partial copying, so the resulting dag will be
-   *  completely independent of the unified source structures, which makes it
-   *  safe to use them in a parallel execution environment, as long as it's not
-   *  during unification
+  /** Start copying this node for copyResultIter(): return the copy if it is
+   *  already known or if the node has no edges, otherwise push a frame for
+   *  copying the edges and return null. If a cycle is found, INSIDE is
+   *  returned.
    */
-  private DagNode copyResultRec() {
-    DagNode in = this.dereference();
-    DagNode newCopy = in.getCopy();
-    if (newCopy == INSIDE) {
-      throw new CycleError();
-    }
+  private DagNode copyEnter(UnificationContext ctx) {
+    DagNode in = this.dereference(ctx);
+    DagNode newCopy = in.getCopy(ctx);
     if (newCopy != null) {
       return newCopy;
     }
 
-    newCopy = new DagNode(in.getNewType());
-    in.setCopy(INSIDE);
+    int newType = in.getNewType(ctx);
+    ArrayList<DagEdge> compArcs = in.getCompArcs(ctx);
+    int newsize = ((in._features == null) ? 0 : in._features.length)
+        + ((compArcs == null) ? 0 : compArcs.size());
+    boolean share = structureSharing && compArcs == null
+        && newType == in._typeCode;
+    if (newsize == 0) {
+      newCopy = share ? in : new DagNode(newType);
+      in.setCopy(newCopy, ctx);
+      in.setCompArcs(null, ctx);
+      return newCopy;
+    }
 
-    int newsize = 0;
-    int cursorArcs = -1, cursorCompArcs = -1;
-    if (in._edges != null) {
-      cursorArcs = 0;
-      newsize = in._edges.size();
-    }
-    if (_generation == currentGeneration && in._compArcs != null) {
-      cursorCompArcs = 0;
-      newsize += in._compArcs.size();
-    }
-
-    if (cursorArcs != -1 || cursorCompArcs != -1) {
-      newCopy._edges = new ArrayList<DagEdge>(newsize);
-    }
-    while (cursorArcs != -1 || cursorCompArcs != -1) {
-      DagEdge arc = null ;
-      if (cursorArcs != -1 &&
-          (cursorCompArcs == -1
-           || (in._compArcs.get(cursorCompArcs).feature
-               > in._edges.get(cursorArcs).feature))) {
-        int curr = cursorArcs;
-        if (++cursorArcs == in._edges.size()) {
-          cursorArcs = -1;
+    in.setCopy(INSIDE, ctx);
+    Frame f = ctx.push();
+    f.in1 = in;
+    f.i1 = f.i2 = f.pos = 0;
+    f.newType = newType;
+    f.compArcs = compArcs;
+    f.share = share;
+    f.size = newsize;
+    if (share) {
+      f.newFeatures = null;
+      f.newValues = null;
+    } else {
+      f.newFeatures = new short[newsize];
+      f.newValues = new DagNode[newsize];
+    }
+    return null;
+  }
+
+  /** Note a cycle found during copying as failure reason, and return null */
+  private static DagNode cycleFailure(UnificationContext ctx) {
+    ctx.failure = FailType.CYCLE;
+    return null;
+  }
+
+  /** Add the copy of the edge feat:value to the new edges of frame f */
+  private static void addCopy(Frame f, short feat, DagNode value,
+      DagNode copy) {
+    if (f.share && copy != value) {
+      // not shareable: copy the edges checked so far, which are all shared
+      f.share = false;
+      f.newFeatures = new short[f.size];
+      f.newValues = new DagNode[f.size];
+      System.arraycopy(f.in1._features, 0, f.newFeatures, 0, f.pos);
+      System.arraycopy(f.in1._values, 0, f.newValues, 0, f.pos);
+    }
+    if (! f.share) {
+      f.newFeatures[f.pos] = feat;
+      f.newValues[f.pos] = copy;
+    }
+    ++f.pos;
+  }
+
+  /** Non-recursive helper function for copyResult()
+   *  If structureSharing is off, the resulting dag will be completely
+   *  independent of the unified source structures, which makes it safe to use
+   *  them in a parallel execution environment, as long as it's not during
+   *  unification.
+   *  Otherwise, a node that has no comp-arcs, no type change and only edges
+   *  to shared nodes is shared, i.e., it is its own copy.
+   *  Returns null if the result is cyclic.
+   */
+  private DagNode copyResultIter(UnificationContext ctx) {
+    int base = ctx.depth;
+    try {
+      // the copy of the pending edge of the topmost frame, or null if there
+      // is none
+      DagNode copy = copyEnter(ctx);
+      if (copy == INSIDE) return cycleFailure(ctx);
+      frames:
+      while (ctx.depth > base) {
+        Frame f = ctx.top();
+        if (copy != null) {
+          addCopy(f, f.feat1, f.in2, copy);
         }
-        arc = in._edges.get(curr);
-      } else {
-        int curr = cursorCompArcs;
-        if (++cursorCompArcs == in._compArcs.size()) {
-          cursorCompArcs = -1;
+        DagNode in = f.in1;
+        short[] features = in._features;
+        DagNode[] values = in._values;
+        ArrayList<DagEdge> compArcs = f.compArcs;
+        int noArcs = (features == null) ? 0 : features.length;
+        int noCompArcs = (compArcs == null) ? 0 : compArcs.size();
+        while (f.i1 < noArcs || f.i2 < noCompArcs) {
+          short feat;
+          DagNode value;
+          if (f.i1 < noArcs &&
+              (f.i2 == noCompArcs
+               || (compArcs.get(f.i2).feature > features[f.i1]))) {
+            feat = features[f.i1];
+            value = values[f.i1];
+            ++f.i1;
+          } else {
+            DagEdge arc = compArcs.get(f.i2++);
+            feat = arc.feature;
+            value = arc.value;
+          }
+          copy = value.copyEnter(ctx);
+          if (copy == INSIDE) return cycleFailure(ctx);
+          if (copy == null) {
+            // descend into value, which is now on top of the stack
+            f.feat1 = feat;
+            f.in2 = value;
+            continue frames;
+          }
+          addCopy(f, feat, value, copy);
         }
-        arc = in._compArcs.get(curr);
+        if (f.share) {
+          copy = in;
+        } else {
+          copy = new DagNode(f.newType);
+          copy.setEdges(f.newFeatures, f.newValues, f.pos);
+        }
+        in.setCopy(copy, ctx);
+        in.setCompArcs(null, ctx);
+        // if resetting the copy slot is really necessary, it must be done
+        // AFTER copying has finished in a new walkthrough
+        //in.setCopy(null);
+        ctx.pop();
       }
-
-      short feat = arc.feature;
-      newCopy._edges.add(new DagEdge(feat, arc.value.copyResultRec()));
+      return copy;
+    } finally {
+      ctx.popTo(base);
     }
-    newCopy.edgesAreEmpty();
-    in.setCopy(newCopy);
-    in._compArcs = null;
-    // if resetting the copy slot is really necessary, it must be done AFTER
-    // copying has finished in a new recursive walkthrough
-    //in.setCopy(null);
-    return newCopy;
   }
 
   /** Copy the result after a series of unifications.
    *
-   *  This does *NOT* implement partial copying, so the resulting dag will be
+   *  Unless structure sharing is switched on, the resulting dag will be
    *  completely independent of the unified source structures, which makes it
    *  safe to use them in a parallel execution environment, as long as it's not
-   *  during unification
+   *  during unification. With structure sharing, unchanged subdags of the
+   *  inputs are part of the result.
    *
-   *  @return a copied result independent from the input dag
+   *  @return a copied result, independent from the input dag if structure
+   *          sharing is off
    */
   public DagNode copyResult() {
+    UnificationContext ctx = UnificationContext.get();
+    ctx.failure = FailType.SUCCESS;
     // Return a copied result using the scratch buffer of this node
-    DagNode result = null;
-    try {
-      result = copyResultRec();
-    } catch (CycleError err) {
-      result = null;
-    }
-    invalidate();
+    DagNode result = copyResultIter(ctx);
+    ctx.invalidate();
     return result;
   }
 
 
-  /** recursive helper function for copyResult() */
-  @SuppressWarnings("null")
-  private DagNode copyResultRec(DagNode restrictor, TShortHashSet toDelete) {
-    DagNode in = this.dereference();
-    DagNode newCopy = in.getCopy();
+  /** Start copying this node for copyResultIter(restrictor, toDelete, ctx):
+   *  return the copy if it is already known or if the node has no edges,
+   *  otherwise push a frame for copying the edges and return null. The copy
+   *  is registered before its edges are copied, so cycles are copied, too.
+   */
+  private DagNode copyEnter(DagNode restrictor, UnificationContext ctx) {
+    DagNode in = this.dereference(ctx);
+    DagNode newCopy = in.getCopy(ctx);
     if (newCopy != null) {
       // this is less efficient, but guarantees equal results to copy first
       // - restrict later
@@ -525,79 +859,109 @@ public class DagNode {
       return newCopy;
     }
 
-    RESTRICT restr = RESTRICT.RSTR_NO;
-    Iterator<DagEdge> restIt = null;
-    DagEdge restArc = null;
+    newCopy = new DagNode(in.getNewType(ctx));
+    in.setCopy(newCopy, ctx);
+
+    ArrayList<DagEdge> compArcs = in.getCompArcs(ctx);
+    int newsize = ((in._features == null) ? 0 : in._features.length)
+        + ((compArcs == null) ? 0 : compArcs.size());
+    if (newsize == 0) {
+      in.setCompArcs(null, ctx);
+      return newCopy;
+    }
+
+    Frame f = ctx.push();
+    f.in1 = in;
+    f.i1 = f.i2 = f.pos = 0;
+    f.compArcs = compArcs;
+    f.result = newCopy;
+    f.newFeatures = new short[newsize];
+    f.newValues = new DagNode[newsize];
+    f.restr = RESTRICT.RSTR_NO;
+    f.restIt = null;
+    f.restArc = null;
     if (restrictor != null) {
-      restr = restrictor.getRestrictorType();
-      restIt = restrictor.getEdgeIterator();
-      if (restIt.hasNext()) {
-        restArc = restIt.next();
+      f.restr = restrictor.getRestrictorType();
+      f.restIt = restrictor.getEdgeIterator();
+      if (f.restIt.hasNext()) {
+        f.restArc = f.restIt.next();
       }
     }
+    return null;
+  }
 
-    newCopy = new DagNode(in.getNewType());
-    in.setCopy(newCopy);
-
-    int newsize = 0;
-    int cursorArcs = -1, cursorCompArcs = -1;
-    if (in._edges != null) {
-      cursorArcs = 0;
-      newsize = in._edges.size();
-    }
-    if (_generation == currentGeneration && in._compArcs != null) {
-      cursorCompArcs = 0;
-      newsize += in._compArcs.size();
-    }
-
-    if (cursorArcs != -1 || cursorCompArcs != -1) {
-      newCopy._edges = new ArrayList<DagEdge>(newsize);
-    }
-    while (cursorArcs != -1 || cursorCompArcs != -1) {
-      DagEdge arc = null ;
-      if (cursorArcs != -1 &&
-          (cursorCompArcs == -1
-           || (in._compArcs.get(cursorCompArcs).feature
-               > in._edges.get(cursorArcs).feature))) {
-        int curr = cursorArcs;
-        if (++cursorArcs == in._edges.size()) {
-          cursorArcs = -1;
-        }
-        arc = in._edges.get(curr);
-      } else {
-        int curr = cursorCompArcs;
-        if (++cursorCompArcs == in._compArcs.size()) {
-          cursorCompArcs = -1;
+  /** Non-recursive helper function for copyResult(restrictor) */
+  private DagNode copyResultIter(DagNode restrictor, TShortHashSet toDelete,
+      UnificationContext ctx) {
+    int base = ctx.depth;
+    try {
+      // the copy of the pending edge of the topmost frame, or null if there
+      // is none
+      DagNode copy = copyEnter(restrictor, ctx);
+      frames:
+      while (ctx.depth > base) {
+        Frame f = ctx.top();
+        if (copy != null) {
+          f.newFeatures[f.pos] = f.feat1;
+          f.newValues[f.pos++] = copy;
         }
-        arc = in._compArcs.get(curr);
-      }
+        DagNode in = f.in1;
+        short[] features = in._features;
+        DagNode[] values = in._values;
+        ArrayList<DagEdge> compArcs = f.compArcs;
+        int noArcs = (features == null) ? 0 : features.length;
+        int noCompArcs = (compArcs == null) ? 0 : compArcs.size();
+        while (f.i1 < noArcs || f.i2 < noCompArcs) {
+          short feat;
+          DagNode value;
+          if (f.i1 < noArcs &&
+              (f.i2 == noCompArcs
+               || (compArcs.get(f.i2).feature > features[f.i1]))) {
+            feat = features[f.i1];
+            value = values[f.i1];
+            ++f.i1;
+          } else {
+            DagEdge arc = compArcs.get(f.i2++);
+            feat = arc.feature;
+            value = arc.value;
+          }
 
-      short feat = arc.feature;
-      while (restArc != null && restArc.feature < feat) {
-        restArc = restIt.hasNext() ? restIt.next() : null;
-      }
-      DagNode subRestr = null;
-      if (restArc != null && restArc.feature == feat) {
-        subRestr = restArc.value;
+          while (f.restArc != null && f.restArc.feature < feat) {
+            f.restArc = f.restIt.hasNext() ? f.restIt.next() : null;
+          }
+          DagNode subRestr = null;
+          if (f.restArc != null && f.restArc.feature == feat) {
+            subRestr = f.restArc.value;
+          }
+          boolean keep =
+              ((toDelete == null) || ! toDelete.contains(feat))
+              && ((f.restr == RESTRICT.RSTR_NO
+                   && (subRestr == null
+                       || subRestr.getType() != RESTRICT.RSTR_DEL.ordinal()))
+                  || (f.restr == RESTRICT.RSTR_KEEP && subRestr != null));
+          if (keep) {
+            copy = value.copyEnter(subRestr, ctx);
+            if (copy == null) {
+              // descend into value, which is now on top of the stack
+              f.feat1 = feat;
+              continue frames;
+            }
+            f.newFeatures[f.pos] = feat;
+            f.newValues[f.pos++] = copy;
+          }
+        }
+        copy = f.result;
+        copy.setEdges(f.newFeatures, f.newValues, f.pos);
+        in.setCompArcs(null, ctx);
+        // if resetting the copy slot is really necessary, it must be done
+        // AFTER copying has finished in a new walkthrough
+        //in.setCopy(null);
+        ctx.pop();
       }
-      boolean keep =
-          ((toDelete == null) || ! toDelete.contains(feat))
-          && ((restr == RESTRICT.RSTR_NO
-               && (subRestr == null
-                   || subRestr.getType() != RESTRICT.RSTR_DEL.ordinal()))
-              || (restr == RESTRICT.RSTR_KEEP && subRestr != null
-                  && restArc.feature == feat));
-      if (keep) {
-        newCopy._edges.add(
-            new DagEdge(feat, arc.value.copyResultRec(subRestr, toDelete)));
-      }
-    }
-    newCopy.edgesAreEmpty();
-    in._compArcs = null;
-    // if resetting the copy slot is really necessary, it must be done AFTER
-    // copying has finished in a new recursive walkthrough
-    //in.setCopy(null);
-    return newCopy;
+      return copy;
+    } finally {
+      ctx.popTo(base);
+    }
   }
 
   /*
@@ -621,13 +985,14 @@ public class DagNode {
   }
   */
 
-  /** recursive helper function for copyResult(), massager version */
-  DagNode copyResultRec(DagRestrictor m) {
-    DagNode in = this.dereference();
-    DagNode newCopy = in.getCopy();
-    if (newCopy == INSIDE) {
-      throw new CycleError();
-    }
+  /** Start copying this node for copyResultIter(m, ctx): return the copy if
+   *  it is already known or if the node has no edges, otherwise push a frame
+   *  for copying the edges and return null. If a cycle is found, INSIDE is
+   *  returned.
+   */
+  private DagNode copyEnter(DagRestrictor m, UnificationContext ctx) {
+    DagNode in = this.dereference(ctx);
+    DagNode newCopy = in.getCopy(ctx);
     if (newCopy != null) {
       // this is less efficient, but guarantees equal results to copy first
       // - restrict later
@@ -640,123 +1005,157 @@ public class DagNode {
       return newCopy;
     }
 
-    int newType = in.getNewType();
+    int newType = in.getNewType(ctx);
     if (m != null) newType = m.massageType(newType);
 
-    newCopy = new DagNode(newType);
-
+    ArrayList<DagEdge> compArcs = null;
+    int newsize = 0;
     // first check if this is an empty DLIST that should be massaged
-    if (fsgrammar.subsumesType(fsgrammar.dListTypeId, getType())) {
+    FSGrammar grammar = ctx.getGrammar();
+    if (grammar.subsumesType(grammar.dListTypeId, getType())) {
       /*
       DagNode list = getValue(fsgrammar.listFeatureId);
       DagNode last = getValue(fsgrammar.lastFeatureId);
-      if (list != null && (list == last && list._edges != null)
+      if (list != null && (list == last && list._features != null)
           || (list == null && last != null)) {
         ++emptiedDlists;
         DagNode d = new DagNode(FSGrammar.TOP_TYPE);
-        newCopy._edges = new ArrayList<DagEdge>(2);
-        newCopy._edges.add(new DagEdge(fsgrammar.listFeatureId, d));
-        newCopy._edges.add(new DagEdge(fsgrammar.lastFeatureId, d));
+        newCopy.addEdges(2);
+        newCopy.addEdge(fsgrammar.listFeatureId, d);
+        newCopy.addEdge(fsgrammar.lastFeatureId, d);
       }
       */
     } else {
-      in.setCopy(INSIDE);
-
-      int newsize = 0;
-      int cursorArcs = -1, cursorCompArcs = -1;
-      if (in._edges != null) {
-        cursorArcs = 0;
-        newsize = in._edges.size();
-      }
-      if (_generation == currentGeneration && in._compArcs != null) {
-        cursorCompArcs = 0;
-        newsize += in._compArcs.size();
-      }
-
-      if (cursorArcs != -1 || cursorCompArcs != -1) {
-        newCopy._edges = new ArrayList<DagEdge>(newsize);
-      }
-      DagRestrictor.Iterator it = m.iterator();
-      while (cursorArcs != -1 || cursorCompArcs != -1) {
-        DagEdge arc = null ;
-        if (cursorArcs != -1 &&
-            (cursorCompArcs == -1
-            || (in._compArcs.get(cursorCompArcs).feature
-                > in._edges.get(cursorArcs).feature))) {
-          int curr = cursorArcs;
-          if (++cursorArcs == in._edges.size()) {
-            cursorArcs = -1;
-          }
-          arc = in._edges.get(curr);
-        } else {
-          int curr = cursorCompArcs;
-          if (++cursorCompArcs == in._compArcs.size()) {
-            cursorCompArcs = -1;
-          }
-          arc = in._compArcs.get(curr);
+      compArcs = in.getCompArcs(ctx);
+      newsize = ((in._features == null) ? 0 : in._features.length)
+          + ((compArcs == null) ? 0 : compArcs.size());
+    }
+    if (newsize == 0) {
+      newCopy = new DagNode(newType);
+      in.setCopy(newCopy, ctx);
+      in.setCompArcs(null, ctx);
+      return newCopy;
+    }
+
+    in.setCopy(INSIDE, ctx);
+    Frame f = ctx.push();
+    f.in1 = in;
+    f.i1 = f.i2 = f.pos = 0;
+    f.newType = newType;
+    f.compArcs = compArcs;
+    f.newFeatures = new short[newsize];
+    f.newValues = new DagNode[newsize];
+    f.massager = m;
+    f.massagerIt = (m == null) ? null : m.iterator();
+    return null;
+  }
+
+  /** Non-recursive helper function for copyResult(), massager version.
+   *  Returns INSIDE if the result is cyclic.
+   */
+  DagNode copyResultIter(DagRestrictor m, UnificationContext ctx) {
+    int base = ctx.depth;
+    try {
+      // the copy of the pending edge of the topmost frame, or null if there
+      // is none
+      DagNode copy = copyEnter(m, ctx);
+      if (copy == INSIDE) return INSIDE;
+      frames:
+      while (ctx.depth > base) {
+        Frame f = ctx.top();
+        if (copy != null) {
+          f.newFeatures[f.pos] = f.feat1;
+          f.newValues[f.pos++] = copy;
         }
+        DagNode in = f.in1;
+        short[] features = in._features;
+        DagNode[] values = in._values;
+        ArrayList<DagEdge> compArcs = f.compArcs;
+        int noArcs = (features == null) ? 0 : features.length;
+        int noCompArcs = (compArcs == null) ? 0 : compArcs.size();
+        while (f.i1 < noArcs || f.i2 < noCompArcs) {
+          short feat;
+          DagNode value;
+          if (f.i1 < noArcs &&
+              (f.i2 == noCompArcs
+               || (compArcs.get(f.i2).feature > features[f.i1]))) {
+            feat = features[f.i1];
+            value = values[f.i1];
+            ++f.i1;
+          } else {
+            DagEdge arc = compArcs.get(f.i2++);
+            feat = arc.feature;
+            value = arc.value;
+          }
 
-        short feat = arc.feature;
-        DagRestrictor sub = it.next(feat);
+          DagRestrictor sub =
+              (f.massagerIt == null) ? null : f.massagerIt.next(feat);
 
-        if (m == null || m.keep(feat, sub)) {
-          DagNode child = arc.value.copyResultRec(sub);
-          if (true || ! (child._edges == null
-                 && newType == fsgrammar.getAppropriateType(feat)
-                 && child.getType() == fsgrammar.getMaxAppropriateType(feat))){
-            newCopy._edges.add(new DagEdge(feat, child));
+          if (f.massager == null || f.massager.keep(feat, sub)) {
+            copy = value.copyEnter(sub, ctx);
+            if (copy == INSIDE) return INSIDE;
+            if (copy == null) {
+              // descend into value, which is now on top of the stack
+              f.feat1 = feat;
+              continue frames;
+            }
+            f.newFeatures[f.pos] = feat;
+            f.newValues[f.pos++] = copy;
           }
         }
+        copy = new DagNode(f.newType);
+        copy.setEdges(f.newFeatures, f.newValues, f.pos);
+        in.setCopy(copy, ctx);
+        in.setCompArcs(null, ctx);
+        // if resetting the copy slot is really necessary, it must be done
+        // AFTER copying has finished in a new walkthrough
+        //in.setCopy(null);
+        ctx.pop();
       }
-      newCopy.edgesAreEmpty();
+      return copy;
+    } finally {
+      ctx.popTo(base);
     }
-
-    in.setCopy(newCopy);
-    in._compArcs = null;
-    // if resetting the copy slot is really necessary, it must be done AFTER
-    // copying has finished in a new recursive walkthrough
-    //in.setCopy(null);
-    return newCopy;
   }
 
   /** Copy the result after a series of unifications.
   *
-  *  This does *NOT* implement partial copying, so the resulting dag will be
-  *  completely independent of the unified source structures, which makes it
-  *  safe to use them in a parallel execution environment, as long as it's not
-  *  during unification
+  *  This does *NOT* implement partial copying, also not if structure sharing
+  *  is switched on, so the resulting dag will be completely independent of
+  *  the unified source structures, which makes it safe to use them in a
+  *  parallel execution environment, as long as it's not during unification
   *
   * @param deleteDaughters delete some top level features only concerned with
   *                        building the constituent tree (grammar specified)
   * @return a copied result independent from the input dag
   */
   public DagNode copyResult(DagRestrictor restrictor) {
+    UnificationContext ctx = UnificationContext.get();
     // Return a copied result using the scratch buffer of this node
-    DagNode result;
-    try {
-      result = copyResultRec(restrictor);
-    } catch (CycleError err) {
-      result = null;
-    }
-    invalidate();
+    ctx.failure = FailType.SUCCESS;
+    DagNode result = copyResultIter(restrictor, ctx);
+    if (result == INSIDE) result = cycleFailure(ctx);
+    ctx.invalidate();
     return result;
   }
 
   /** Copy the result after a series of unifications.
    *
-   *  This does *NOT* implement partial copying, so the resulting dag will be
-   *  completely independent of the unified source structures, which makes it
-   *  safe to use them in a parallel execution environment, as long as it's not
-   *  during unification
+   *  This does *NOT* implement partial copying, also not if structure sharing
+   *  is switched on, so the resulting dag will be completely independent of
+   *  the unified source structures, which makes it safe to use them in a
+   *  parallel execution environment, as long as it's not during unification
    *
    * @param deleteDaughters delete some top level features only concerned with
    *                        building the constituent tree (grammar specified)
    * @return a copied result independent from the input dag
    */
   public DagNode copyResult(DagNode restrictor) {
+    UnificationContext ctx = UnificationContext.get();
     // Return a copied result using the scratch buffer of this node
-    DagNode result = copyResultRec(restrictor, null);
-    invalidate();
+    ctx.failure = FailType.SUCCESS;
+    DagNode result = copyResultIter(restrictor, null, ctx);
+    ctx.invalidate();
     return result;
   }
 
@@ -779,25 +1178,51 @@ public class DagNode {
  }
  */
 
-  private boolean makeWellformed(int unifiedType) {
-    long generationSave = currentGeneration;
-    currentGeneration = ++currentGenerationMax;
-    // need a new generation to make a fresh copy: special invalidation
-    DagNode typeDag = fsgrammar.getFS(unifiedType).dag();
-    // don't call the normal invalidation here
-    typeDag = typeDag.cloneFSRec();
-    currentGeneration = generationSave;
-    if (typeDag._edges != null) {
-      return unifyFS1(typeDag, null);
-    }
-    return true;
+  private boolean makeWellformed(int unifiedType, UnificationContext ctx) {
+    FSGrammar grammar = ctx.getGrammar();
+    DagNode typeDag = grammar.getFS(unifiedType).dag();
+    if (typeDag._features == null) return true;
+    grammar.countExpansion(unifiedType);
+    return unifyFS1(constraintCopy(unifiedType, typeDag, grammar, ctx),
+        null, ctx);
   }
 
-  @SuppressWarnings("null")
-  private boolean unifyFS1(DagNode arg, IntTrie<int[]> _curr) {
-    DagNode in1 = this.dereference();
-    DagNode in2 = arg.dereference();
-    if (in1.getCopy() == INSIDE) {
+  /** Return a copy of typeDag, the constraint of type, that is not yet used
+   *  since the last invalidation of ctx. Copies are kept in ctx for reuse,
+   *  unless structure sharing is on, where the result of a unification may
+   *  contain nodes of the copy.
+   */
+  private static DagNode constraintCopy(int type, DagNode typeDag,
+      FSGrammar grammar, UnificationContext ctx) {
+    UnificationContext.Constraints constraints = null;
+    if (! structureSharing) {
+      constraints = ctx.constraints(grammar, type);
+      if (constraints.used < constraints.copies.size()) {
+        return constraints.copies.get(constraints.used++);
+      }
+    }
+    // the type dag may be in use in other threads: don't touch its scratch
+    // slots for the fresh copy
+    DagNode copy = typeDag.cloneSharedRec(ctx.cloneMap);
+    ctx.cloneMap.clear();
+    grammar.countConstraintCopy(type);
+    if (constraints != null
+        && constraints.copies.size() < UnificationContext.MAX_CONSTRAINT_COPIES) {
+      constraints.copies.add(copy);
+      ++constraints.used;
+    }
+    return copy;
+  }
+
+  /** Start the unification of this and arg for unifyFS1(): unify the types,
+   *  and if both nodes have edges, push a frame for unifying them.
+   */
+  private boolean unifyEnter(DagNode arg, IntTrie<int[]> _curr,
+      UnificationContext ctx) {
+    DagNode in1 = this.dereference(ctx);
+    DagNode in2 = arg.dereference(ctx);
+    if (in1.getCopy(ctx) == INSIDE) {
+      ctx.failure = FailType.CYCLE;
       if (recordFailures)
         forwardFailures.put(this, FailType.CYCLE);
       return false;
@@ -805,10 +1230,10 @@ public class DagNode {
 
     if (in1 == in2) return true;
 
-    int type1 = in1.getNewType();
-    int type2 = in2.getNewType();
+    int type1 = in1.getNewType(ctx);
+    int type2 = in2.getNewType(ctx);
 
-    int unifType = fsgrammar.unifyTypes(type1, type2);
+    int unifType = ctx.getGrammar().unifyTypes(type1, type2);
     if (unifType == FSGrammar.BOTTOM_TYPE) {
       if (_curr != null) {
         int[] f = _curr.getValue();
@@ -818,12 +1243,13 @@ public class DagNode {
         _curr.setValue(f);
       }
 
+      ctx.failure = FailType.TYPE;
       if (recordFailures)
         forwardFailures.put(this, FailType.TYPE);
       return false;
     }
 
-    in1.setNewType(unifType); // this makes all scratch slots of in1 current
+    in1.setNewType(unifType, ctx); // this makes all scratch slots of in1 current
     // when will nothing happen in wff unification (according to pet)
     // a) if the new type is the same as both old types
     // b) if the edge lists of both nodes are empty (including compArcs)
@@ -835,74 +1261,112 @@ public class DagNode {
     // i was more picky, but that resulted in extreme performance degradation
     // if the type has changed, the edge lists of both must be empty
     if ((type1 == unifType && type2 == unifType)
-        || (in1.newEdgesAreEmpty() && in2.newEdgesAreEmpty())
-        || (type1 == unifType && ! in1.newEdgesAreEmpty())
-        || (type2 == unifType && ! in2.newEdgesAreEmpty())) {
+        || (in1.newEdgesAreEmpty(ctx) && in2.newEdgesAreEmpty(ctx))
+        || (type1 == unifType && ! in1.newEdgesAreEmpty(ctx))
+        || (type2 == unifType && ! in2.newEdgesAreEmpty(ctx))) {
     } else {
-      if (! in1.makeWellformed(unifType)) {
+      if (! in1.makeWellformed(unifType, ctx)) {
+        ctx.failure = FailType.WELLFORMED;
         if (recordFailures)
           forwardFailures.put(this, FailType.WELLFORMED);
         return false;
       }
-      in1 = in1.dereference();
+      in1 = in1.dereference(ctx);
     }
 
-    EdgeIterator arc1It = in1.getNewEdgeIterator();
-    EdgeIterator arc2It = in2.getNewEdgeIterator();
+    EdgeIterator arc1It = in1.getNewEdgeIterator(ctx);
+    EdgeIterator arc2It = in2.getNewEdgeIterator(ctx);
 
-    // the test if the iterators are null is not necessary here (can't occur
-    // with a call to getNewEdgeIterator)
-    DagEdge arc1 = null, arc2 = null;
-    short feat1 = ((arc1It != null && arc1It.hasNext())
-                   ? (arc1 = arc1It.next()).feature : NO_FEAT);
-    short feat2 = ((arc2It != null && arc2It.hasNext())
-                   ? (arc2 = arc2It.next()).feature : NO_FEAT);
+    short feat1 = arc1It.nextFeature();
+    short feat2 = arc2It.nextFeature();
 
     if (feat2 == NO_FEAT) {
-      in2.setForward(in1);  // this makes all scratch slots of in2 current
+      in2.setForward(in1, ctx);  // this makes all scratch slots of in2 current
     } else if (feat1 == NO_FEAT) {
-      in2.setNewType(unifType); // this makes all scratch slots of in1 current
-      in1.setForward(in2);
+      in2.setNewType(unifType, ctx); // this makes all scratch slots of in1 current
+      in1.setForward(in2, ctx);
     } else {
-      in1.setCopy(INSIDE);
-      in2.setForward(in1);
+      in1.setCopy(INSIDE, ctx);
+      in2.setForward(in1, ctx);
+      Frame f = ctx.push();
+      f.pending = false;
+      f.in1 = in1;
+      f.it1 = arc1It;
+      f.it2 = arc2It;
+      f.feat1 = feat1;
+      f.feat2 = feat2;
+      f.curr = _curr;
+    }
 
-      while (feat1 != NO_FEAT || feat2 != NO_FEAT) {
-        while (feat1 < feat2) {
-          // feature in 1 but not in 2: skip
-          feat1 = (arc1It.hasNext() ? (arc1 = arc1It.next()).feature : NO_FEAT);
-        }
-        while (feat1 > feat2) { // feature in 2 missing in 1: add to compArcs
-          arc1It.add(arc2);
-          feat2 = (arc2It.hasNext() ? (arc2 = arc2It.next()).feature : NO_FEAT);
+    return true;
+  }
+
+  /** Unify this and arg without recursion, using the work stack of ctx.
+   *  Wellformedness unifications started by unifyEnter() are nested calls
+   *  that use the stack above the current frames.
+   */
+  private boolean unifyFS1(DagNode arg, IntTrie<int[]> _curr,
+      UnificationContext ctx) {
+    int base = ctx.depth;
+    try {
+      if (! unifyEnter(arg, _curr, ctx)) return false;
+      frames:
+      while (ctx.depth > base) {
+        Frame f = ctx.top();
+        EdgeIterator arc1It = f.it1;
+        EdgeIterator arc2It = f.it2;
+        short feat1 = f.feat1;
+        short feat2 = f.feat2;
+        if (f.pending) {
+          feat1 = arc1It.nextFeature();
+          feat2 = arc2It.nextFeature();
+          f.pending = false;
         }
-        if (feat1 == feat2 && feat1 != NO_FEAT) {
-          if (! arc1.value.unifyFS1(arc2.value,
-              _curr == null ? _curr : _curr.add(feat1)))
-            return false;
-          feat1 = (arc1It.hasNext() ? (arc1 = arc1It.next()).feature : NO_FEAT);
-          feat2 = (arc2It.hasNext() ? (arc2 = arc2It.next()).feature : NO_FEAT);
+        while (feat1 != NO_FEAT || feat2 != NO_FEAT) {
+          while (feat1 < feat2) {
+            // feature in 1 but not in 2: skip
+            feat1 = arc1It.nextFeature();
+          }
+          while (feat1 > feat2) { // feature in 2 missing in 1: add to compArcs
+            arc1It.add(feat2, arc2It.value());
+            feat2 = arc2It.nextFeature();
+          }
+          if (feat1 == feat2 && feat1 != NO_FEAT) {
+            IntTrie<int[]> curr = f.curr;
+            int depth = ctx.depth;
+            if (! arc1It.value().unifyEnter(arc2It.value(),
+                curr == null ? curr : curr.add(feat1), ctx))
+              return false;
+            if (ctx.depth != depth) {
+              // descend into the new frame, continue with the next edges
+              // afterwards
+              f.pending = true;
+              continue frames;
+            }
+            feat1 = arc1It.nextFeature();
+            feat2 = arc2It.nextFeature();
+          }
         }
+        f.in1.setCopy(null, ctx);
+        ctx.pop();
       }
-      in1.setCopy(null);
+      return true;
+    } finally {
+      ctx.popTo(base);
     }
-
-    return true;
   }
 
   /** Unify the \c this feature structure with \p arg and return a copy of the
    *  result, if unification succeeds, \c null otherwise
    */
   public DagNode unifyFS(DagNode arg) {
+    UnificationContext ctx = UnificationContext.get();
+    ctx.failure = FailType.SUCCESS;
     DagNode result = null;
-    if (unifyFS1(arg, paths)) {
-      try {
-        result = copyResultRec();
-      } catch (CycleError err) {
-        result = null;
-      }
+    if (unifyFS1(arg, paths, ctx)) {
+      result = copyResultIter(ctx);
     }
-    invalidate();
+    ctx.invalidate();
     return result;
   }
 
@@ -910,16 +1374,17 @@ public class DagNode {
    *  result, if unification succeeds, \c null otherwise.
    */
   public DagNode unifyFS(DagNode arg, DagNode sub) {
-    if (sub == null) return null;
+    UnificationContext ctx = UnificationContext.get();
+    if (sub == null) {
+      ctx.failure = FailType.FEATURE;
+      return null;
+    }
+    ctx.failure = FailType.SUCCESS;
     DagNode result = null;
-    if (sub.unifyFS1(arg, paths)) {
-      try {
-        result = copyResultRec();
-      } catch (CycleError err) {
-        result = null;
-      }
+    if (sub.unifyFS1(arg, paths, ctx)) {
+      result = copyResultIter(ctx);
     }
-    invalidate();
+    ctx.invalidate();
     return result;
   }
 
@@ -941,8 +1406,14 @@ public class DagNode {
    *  before the final copy is made.
    */
   public boolean unifyOnly(DagNode arg, int argNo) {
+    UnificationContext ctx = UnificationContext.get();
     DagNode subnode = this.getNthArg(argNo);
-    return (subnode != null && subnode.unifyFS1(arg, paths));
+    if (subnode == null) {
+      ctx.failure = FailType.FEATURE;
+      return false;
+    }
+    ctx.failure = FailType.SUCCESS;
+    return subnode.unifyFS1(arg, paths, ctx);
   }
 
   /** Unify \p arg with \c this and return the result, if unification succeeds,
@@ -951,7 +1422,9 @@ public class DagNode {
    *  before the final copy is made.
    */
   public DagNode unifyOnly(DagNode arg) {
-    return (unifyFS1(arg, paths) ? this : null);
+    UnificationContext ctx = UnificationContext.get();
+    ctx.failure = FailType.SUCCESS;
+    return (unifyFS1(arg, paths, ctx) ? this : null);
   }
 
   /** Test the unifiability of \c this and \p arg.
@@ -961,68 +1434,72 @@ public class DagNode {
    *  unification.
    */
   public boolean isUnifiable(DagNode arg) {
-    boolean result = unifyFS1(arg, paths);
-    invalidate();
+    UnificationContext ctx = UnificationContext.get();
+    ctx.failure = FailType.SUCCESS;
+    boolean result = unifyFS1(arg, paths, ctx);
+    ctx.invalidate();
     return result;
   }
 
 
-  private boolean checkCyclesRec() {
-    if (visited() < 0) {
-      setVisited(0);
-      setCopy(INSIDE);
-      for(EdgeIterator edgeIt = new EdgeIterator(); edgeIt.hasNext();) {
-        DagEdge fvpair = edgeIt.next();
-        if (fvpair.getValue().checkCyclesRec()) return true;
+  private boolean checkCyclesRec(UnificationContext ctx) {
+    if (visited(ctx) < 0) {
+      setVisited(0, ctx);
+      setCopy(INSIDE, ctx);
+      EdgeIterator edgeIt = new EdgeIterator(ctx);
+      while (edgeIt.nextFeature() != NO_FEAT) {
+        if (edgeIt.value().checkCyclesRec(ctx)) return true;
       }
-      setCopy(null);
+      setCopy(null, ctx);
     } else {
-      if (visited() == 0) {
-        if (getCopy() == INSIDE) return true;
-        setVisited(1);
+      if (visited(ctx) == 0) {
+        if (getCopy(ctx) == INSIDE) return true;
+        setVisited(1, ctx);
       }
     }
     return false;
   }
 
   public boolean checkCycles() {
-    boolean result = checkCyclesRec();
-    invalidate();
+    UnificationContext ctx = UnificationContext.get();
+    boolean result = checkCyclesRec(ctx);
+    ctx.invalidate();
     return result;
   }
 
-  private int countCorefsRec(int maxCoref) {
-    if (visited() < 0) {
-      setVisited(0);
-      for(EdgeIterator edgeIt = new EdgeIterator(); edgeIt.hasNext();) {
-        DagEdge fvpair = edgeIt.next();
-        maxCoref = fvpair.getValue().countCorefsRec(maxCoref);
+  private int countCorefsRec(int maxCoref, UnificationContext ctx) {
+    if (visited(ctx) < 0) {
+      setVisited(0, ctx);
+      EdgeIterator edgeIt = new EdgeIterator(ctx);
+      while (edgeIt.nextFeature() != NO_FEAT) {
+        maxCoref = edgeIt.value().countCorefsRec(maxCoref, ctx);
       }
     } else {
-      if (visited() == 0) {
-        setVisited(++maxCoref);
+      if (visited(ctx) == 0) {
+        setVisited(++maxCoref, ctx);
       }
     }
     return maxCoref;
   }
 
   public int countCorefs() {
-    int result = countCorefsRec(0);
-    invalidate();
+    UnificationContext ctx = UnificationContext.get();
+    int result = countCorefsRec(0, ctx);
+    ctx.invalidate();
     return result;
   }
 
-  private int countCorefsRigidRec(int maxCoref) {
-    if (visited() <= 0) {
-      if (visited() < 0) {
-        setVisited(0);
+  private int countCorefsRigidRec(int maxCoref, UnificationContext ctx) {
+    if (visited(ctx) <= 0) {
+      if (visited(ctx) < 0) {
+        setVisited(0, ctx);
       }
       else {
-        setVisited(++maxCoref);
+        setVisited(++maxCoref, ctx);
       }
-      for(EdgeIterator edgeIt = new EdgeIterator(); edgeIt.hasNext();) {
-        DagEdge fvpair = edgeIt.next();
-        maxCoref = fvpair.getValue().countCorefsRigidRec(maxCoref);
+      EdgeIterator edgeIt = new EdgeIterator(ctx);
+      while (edgeIt.nextFeature() != NO_FEAT) {
+        maxCoref = edgeIt.value().countCorefsRigidRec(maxCoref, ctx);
       }
     }
     return maxCoref;
@@ -1032,12 +1509,12 @@ public class DagNode {
    *  also be tagged with coreferences, not just the topmost reentrancy
    */
   public int countCorefsRigid() {
-    int result = countCorefsRigidRec(0);
+    int result = countCorefsRigidRec(0, UnificationContext.get());
     return result;
   }
 
   private int countCorefsRigidRecSafe(IdentityHashMap<DagNode, Integer> result,
-      int maxCoref){
+      int maxCoref, UnificationContext ctx){
     if (! result.containsKey(this)) {
       result.put(this, 0);
     } else {
@@ -1048,9 +1525,10 @@ public class DagNode {
       // result.get(this) == 0
       result.put(this, ++maxCoref);
     }
-    for(EdgeIterator edgeIt = new EdgeIterator(); edgeIt.hasNext();) {
-      DagEdge fvpair = edgeIt.next();
-      maxCoref = fvpair.getValue().countCorefsRigidRecSafe(result, maxCoref);
+    EdgeIterator edgeIt = new EdgeIterator(ctx);
+    while (edgeIt.nextFeature() != NO_FEAT) {
+      maxCoref =
+          edgeIt.value().countCorefsRigidRecSafe(result, maxCoref, ctx);
     }
     return maxCoref;
   }
@@ -1059,15 +1537,19 @@ public class DagNode {
    *  also be tagged with coreferences, not just the topmost reentrancy
    */
   public int countCorefsRigidSafe(IdentityHashMap<DagNode, Integer> result) {
-    return countCorefsRigidRecSafe(result, 0);
+    return countCorefsRigidRecSafe(result, 0, UnificationContext.get());
   }
 
-  @SuppressWarnings("null")
-  private int subsumesBiRec(DagNode in2, int result) {
-    { DagNode fs1 = this.getForward();
+  /** Start the bidirectional subsumption check of this and in2 for
+   *  subsumesBiIter(): compare the nodes and their types, and push a frame
+   *  for comparing the edges if both have edges.
+   */
+  private int subsumesBiEnter(DagNode in2, int result,
+      UnificationContext ctx) {
+    { DagNode fs1 = this.getForward(ctx);
       if ((result & THIS_MORE_GENERAL) != 0) {
         if (fs1 == null) {
-          this.setForward(in2);
+          this.setForward(in2, ctx);
         } else {
           if (fs1 != in2) { // forward = false
             if (recordFailures)
@@ -1079,10 +1561,10 @@ public class DagNode {
         }
       }
     }
-    { DagNode fs2 = in2.getCopy();
+    { DagNode fs2 = in2.getCopy(ctx);
       if ((result & ARG_MORE_GENERAL) != 0) {
         if (fs2 == null) {
-          in2.setCopy(this);
+          in2.setCopy(this, ctx);
         } else {
           if (fs2 != this) {  // backward = false
             if (recordFailures)
@@ -1094,23 +1576,23 @@ public class DagNode {
         }
       }
     }
-    int type1 = this.getNewType();
-    int type2 = in2.getNewType();
+    int type1 = this.getNewType(ctx);
+    int type2 = in2.getNewType(ctx);
     if (type1 != type2) {
-      if (! fsgrammar.subsumesType(type1, type2)) {
+      if (! ctx.getGrammar().subsumesType(type1, type2)) {
         if (recordFailures)
           forwardFailures.put(this, FailType.TYPE);
         if ((result &= THIS_MORE_GENERAL_MASK) == 0) return 0;
       }
-      if (! fsgrammar.subsumesType(type2, type1)) {
+      if (! ctx.getGrammar().subsumesType(type2, type1)) {
         if (recordFailures)
           backwardFailures.put(this, FailType.TYPE);
         if ((result &= ARG_MORE_GENERAL_MASK) == 0) return 0;
       }
     }
 
-    List<DagEdge> edges1 = this.getEdges();
-    List<DagEdge> edges2 = in2.getEdges();
+    short[] edges1 = this._features;
+    short[] edges2 = in2._features;
     if (edges1 == null || edges2 == null) {
       if (edges1 != edges2) {
         if (edges1 == null) {
@@ -1126,48 +1608,80 @@ public class DagNode {
       return result;
     }
 
-    Iterator<DagEdge> arc1It = edges1.iterator();
-    Iterator<DagEdge> arc2It = edges2.iterator();
-    DagEdge arc1 = null, arc2 = null;
-    int feat1 = (arc1It.hasNext() ? (arc1 = arc1It.next()).feature : NO_FEAT);
-    int feat2 = (arc2It.hasNext() ? (arc2 = arc2It.next()).feature : NO_FEAT);
-    while (feat1 != NO_FEAT && feat2 != NO_FEAT) {
-      if (feat1 < feat2) { // feature in 1 missing in 2: no forward
-        if (recordFailures)
-          forwardFailures.put(this, FailType.FEATURE);
-        if ((result &= THIS_MORE_GENERAL_MASK) == 0) return 0;
-        while (feat1 < feat2) {
-          feat1 = (arc1It.hasNext() ? (arc1 = arc1It.next()).feature : NO_FEAT);
+    Frame f = ctx.push();
+    f.in1 = this;
+    f.in2 = in2;
+    f.i1 = f.i2 = 0;
+    return result;
+  }
+
+  /** Non-recursive helper function for subsumesBi() */
+  private int subsumesBiIter(DagNode in2, int result, UnificationContext ctx) {
+    int base = ctx.depth;
+    try {
+      result = subsumesBiEnter(in2, result, ctx);
+      if (result == 0) return 0;
+      frames:
+      while (ctx.depth > base) {
+        Frame f = ctx.top();
+        DagNode in1 = f.in1;
+        in2 = f.in2;
+        short[] edges1 = in1._features;
+        short[] edges2 = in2._features;
+        int i1 = f.i1, i2 = f.i2;
+        int feat1 = (i1 < edges1.length) ? edges1[i1] : NO_FEAT;
+        int feat2 = (i2 < edges2.length) ? edges2[i2] : NO_FEAT;
+        while (feat1 != NO_FEAT && feat2 != NO_FEAT) {
+          if (feat1 < feat2) { // feature in 1 missing in 2: no forward
+            if (recordFailures)
+              forwardFailures.put(in1, FailType.FEATURE);
+            if ((result &= THIS_MORE_GENERAL_MASK) == 0) return 0;
+            while (feat1 < feat2) {
+              feat1 = (++i1 < edges1.length) ? edges1[i1] : NO_FEAT;
+            }
+          }
+          if (feat1 > feat2) { // feature in 2 missing in 1: no backward
+            if (recordFailures)
+              backwardFailures.put(in1, FailType.FEATURE);
+            if ((result &= ARG_MORE_GENERAL_MASK) == 0) return 0;
+            while (feat1 > feat2) {
+              feat2 = (++i2 < edges2.length) ? edges2[i2] : NO_FEAT;
+            }
+          }
+          if (feat1 == feat2 && feat1 != NO_FEAT) {
+            int depth = ctx.depth;
+            result = in1._values[i1].subsumesBiEnter(in2._values[i2], result,
+                ctx);
+            if (result == 0) return 0;
+            ++i1; ++i2;
+            if (ctx.depth != depth) {
+              // descend into the new frame, continue with the next edges
+              // afterwards
+              f.i1 = i1;
+              f.i2 = i2;
+              continue frames;
+            }
+            feat1 = (i1 < edges1.length) ? edges1[i1] : NO_FEAT;
+            feat2 = (i2 < edges2.length) ? edges2[i2] : NO_FEAT;
+          }
         }
-      }
-      if (feat1 > feat2) { // feature in 2 missing in 1: no backward
-        if (recordFailures)
-          backwardFailures.put(this, FailType.FEATURE);
-        if ((result &= ARG_MORE_GENERAL_MASK) == 0) return 0;
-        while (feat1 > feat2) {
-          feat2 = (arc2It.hasNext() ? (arc2 = arc2It.next()).feature : NO_FEAT);
+        if (feat1 != feat2) {
+          if (feat1 == NO_FEAT) { // more features in arg: this is more general
+            if (recordFailures)
+              backwardFailures.put(in1, FailType.FEATURE);
+            result &= ARG_MORE_GENERAL_MASK;
+          } else {
+            if (recordFailures)
+              forwardFailures.put(in1, FailType.FEATURE);
+            result &= THIS_MORE_GENERAL_MASK;
+          }
         }
+        ctx.pop();
       }
-      if (feat1 == feat2 && feat1 != NO_FEAT) {
-        if ((result = arc1.value.subsumesBiRec(arc2.value, result)) == 0)
-          return 0;
-        feat1 = (arc1It.hasNext() ? (arc1 = arc1It.next()).feature : NO_FEAT);
-        feat2 = (arc2It.hasNext() ? (arc2 = arc2It.next()).feature : NO_FEAT);
-      }
-    }
-    if (feat1 != feat2) {
-      if (feat1 == NO_FEAT) { // more features in arg: this is more general
-        if (recordFailures)
-          backwardFailures.put(this, FailType.FEATURE);
-        result &= ARG_MORE_GENERAL_MASK;
-      } else {
-        if (recordFailures)
-          forwardFailures.put(this, FailType.FEATURE);
-        result &= THIS_MORE_GENERAL_MASK;
-      }
+      return result;
+    } finally {
+      ctx.popTo(base);
     }
-
-    return result;
   }
 
   /** compute the subsumption relation between this and fs in both directions:
@@ -1181,31 +1695,36 @@ public class DagNode {
       forwardFailures.clear();
       backwardFailures.clear();
     }
-    int result = subsumesBiRec(fs, THIS_MORE_GENERAL + ARG_MORE_GENERAL);
-    invalidate();
+    UnificationContext ctx = UnificationContext.get();
+    int result =
+        subsumesBiIter(fs, THIS_MORE_GENERAL + ARG_MORE_GENERAL, ctx);
+    ctx.invalidate();
     return result;
   }
 
-  @SuppressWarnings("null")
-  private boolean subsumesRec(DagNode in2) {
-    { DagNode fs1 = this.getForward();
+  /** Start the subsumption check of this and in2 for subsumesIter(): compare
+   *  the nodes and their types, and push a frame for comparing the edges if
+   *  both have edges.
+   */
+  private boolean subsumesEnter(DagNode in2, UnificationContext ctx) {
+    { DagNode fs1 = this.getForward(ctx);
       if (fs1 == null) {
-        this.setForward(in2);
+        this.setForward(in2, ctx);
       } else {
         return (fs1 == in2);
       }
     }
 
-    int type1 = this.getNewType();
-    int type2 = in2.getNewType();
+    int type1 = this.getNewType(ctx);
+    int type2 = in2.getNewType(ctx);
     if (type1 != type2) {
-      if (! fsgrammar.subsumesType(type1, type2)) {
+      if (! ctx.getGrammar().subsumesType(type1, type2)) {
         return false;
       }
     }
 
-    List<DagEdge> edges1 = this.getEdges();
-    List<DagEdge> edges2 = in2.getEdges();
+    short[] edges1 = this._features;
+    short[] edges2 = in2._features;
     if (edges2 == null) {
       return (edges1 == edges2);
     }
@@ -1213,51 +1732,85 @@ public class DagNode {
       return true;
     }
 
-    Iterator<DagEdge> arc1It = edges1.iterator();
-    Iterator<DagEdge> arc2It = edges2.iterator();
-    DagEdge arc1 = null, arc2 = null;
-    int feat1 = (arc1It.hasNext() ? (arc1 = arc1It.next()).feature : NO_FEAT);
-    int feat2 = (arc2It.hasNext() ? (arc2 = arc2It.next()).feature : NO_FEAT);
-    while (feat1 != NO_FEAT && feat2 != NO_FEAT) {
-      if (feat1 < feat2) { // feature in 1 missing in 2: no forward
-        return false;
-      }
-      if (feat1 > feat2) { // feature in 2 missing in 1: no backward
-        while (feat1 > feat2) {
-          feat2 = (arc2It.hasNext() ? (arc2 = arc2It.next()).feature : NO_FEAT);
+    Frame f = ctx.push();
+    f.in1 = this;
+    f.in2 = in2;
+    f.i1 = f.i2 = 0;
+    return true;
+  }
+
+  /** Non-recursive helper function for subsumes() and isSubsumedBy() */
+  private boolean subsumesIter(DagNode in2, UnificationContext ctx) {
+    int base = ctx.depth;
+    try {
+      if (! subsumesEnter(in2, ctx)) return false;
+      frames:
+      while (ctx.depth > base) {
+        Frame f = ctx.top();
+        short[] edges1 = f.in1._features;
+        short[] edges2 = f.in2._features;
+        int i1 = f.i1, i2 = f.i2;
+        int feat1 = (i1 < edges1.length) ? edges1[i1] : NO_FEAT;
+        int feat2 = (i2 < edges2.length) ? edges2[i2] : NO_FEAT;
+        while (feat1 != NO_FEAT && feat2 != NO_FEAT) {
+          if (feat1 < feat2) { // feature in 1 missing in 2: no forward
+            return false;
+          }
+          if (feat1 > feat2) { // feature in 2 missing in 1: no backward
+            while (feat1 > feat2) {
+              feat2 = (++i2 < edges2.length) ? edges2[i2] : NO_FEAT;
+            }
+          }
+          if (feat1 == feat2 && feat1 != NO_FEAT) {
+            int depth = ctx.depth;
+            if (! f.in1._values[i1].subsumesEnter(f.in2._values[i2], ctx))
+              return false;
+            ++i1; ++i2;
+            if (ctx.depth != depth) {
+              f.i1 = i1;
+              f.i2 = i2;
+              continue frames;
+            }
+            feat1 = (i1 < edges1.length) ? edges1[i1] : NO_FEAT;
+            feat2 = (i2 < edges2.length) ? edges2[i2] : NO_FEAT;
+          }
         }
+        if (feat1 != feat2 && feat1 != NO_FEAT) return false;
+        ctx.pop();
       }
-      if (feat1 == feat2 && feat1 != NO_FEAT) {
-        if (! arc1.value.subsumesRec(arc2.value)) return false;
-        feat1 = (arc1It.hasNext() ? (arc1 = arc1It.next()).feature : NO_FEAT);
-        feat2 = (arc2It.hasNext() ? (arc2 = arc2It.next()).feature : NO_FEAT);
-      }
+      return true;
+    } finally {
+      ctx.popTo(base);
     }
-    return ((feat1 == feat2) || (feat1 == NO_FEAT));
   }
 
   /** Return true if `this' is more general than fs */
   public boolean subsumes(DagNode fs) {
-    boolean result = subsumesRec(fs);
-    invalidate();
+    UnificationContext ctx = UnificationContext.get();
+    boolean result = subsumesIter(fs, ctx);
+    ctx.invalidate();
     return result;
   }
 
 
   /** return true if fs is more general than `this' */
   public boolean isSubsumedBy(DagNode fs) {
-    boolean result = (fs).subsumesRec(this);
-    invalidate();
+    UnificationContext ctx = UnificationContext.get();
+    boolean result = (fs).subsumesIter(this, ctx);
+    ctx.invalidate();
     return result;
   }
 
-  @SuppressWarnings("null")
-  private boolean equalsRec(DagNode in2) {
-    DagNode fs1 = getForward();
-    DagNode fs2 = in2.getForward();
+  /** Start the equality check of this and in2 for equalsIter(): compare the
+   *  nodes and their types, and push a frame for comparing the edges if both
+   *  have edges.
+   */
+  private boolean equalsEnter(DagNode in2, UnificationContext ctx) {
+    DagNode fs1 = getForward(ctx);
+    DagNode fs2 = in2.getForward(ctx);
     if (fs1 == null && fs2 == null) {
-      in2.setForward(this);
-      this.setForward(this);
+      in2.setForward(this, ctx);
+      this.setForward(this, ctx);
     } else {
       // check if already visited
       if (fs1 == fs2) return true;
@@ -1271,60 +1824,129 @@ public class DagNode {
       return false;
     }
 
-    List<DagEdge> edges1 = this.getEdges();
-    List<DagEdge> edges2 = in2.getEdges();
+    short[] edges1 = this._features;
+    short[] edges2 = in2._features;
     if (edges1 == null || edges2 == null) {
       return (edges1 == edges2);
     }
+    if (edges1.length != edges2.length) {
+      return false;
+    }
 
-    Iterator<DagEdge> arc1It = edges1.iterator();
-    Iterator<DagEdge> arc2It = edges2.iterator();
-    DagEdge arc1 = null, arc2 = null;
-    int feat1 = (arc1It.hasNext() ? (arc1 = arc1It.next()).feature : NO_FEAT);
-    int feat2 = (arc2It.hasNext() ? (arc2 = arc2It.next()).feature : NO_FEAT);
-    while (feat1 == feat2 &&  feat1 != NO_FEAT) {
-      if (! arc1.value.equalsRec(arc2.value))
-        return false;
-      feat1 = (arc1It.hasNext() ? (arc1 = arc1It.next()).feature : NO_FEAT);
-      feat2 = (arc2It.hasNext() ? (arc2 = arc2It.next()).feature : NO_FEAT);
+    Frame f = ctx.push();
+    f.in1 = this;
+    f.in2 = in2;
+    f.i1 = f.i2 = 0;
+    return true;
+  }
+
+  /** Non-recursive helper function for equals() */
+  private boolean equalsIter(DagNode in2, UnificationContext ctx) {
+    int base = ctx.depth;
+    try {
+      if (! equalsEnter(in2, ctx)) return false;
+      frames:
+      while (ctx.depth > base) {
+        Frame f = ctx.top();
+        short[] edges1 = f.in1._features;
+        short[] edges2 = f.in2._features;
+        for (int i = f.i1; i < edges1.length; ++i) {
+          if (edges1[i] != edges2[i]) return false;
+          int depth = ctx.depth;
+          if (! f.in1._values[i].equalsEnter(f.in2._values[i], ctx))
+            return false;
+          if (ctx.depth != depth) {
+            f.i1 = i + 1;
+            continue frames;
+          }
+        }
+        ctx.pop();
+      }
+      return true;
+    } finally {
+      ctx.popTo(base);
     }
-    return (feat1 == feat2);
   }
 
   @Override
   public boolean equals(Object obj) {
     if (! (obj instanceof DagNode)) return false;
-    boolean result = equalsRec((DagNode) obj);
-    invalidate();
+    UnificationContext ctx = UnificationContext.get();
+    boolean result = equalsIter((DagNode) obj, ctx);
+    ctx.invalidate();
     return result;
   }
 
-  /** Add an edge array of the right size */
+  /** Add edge arrays of the right size, which must then be filled with
+   *  exactly noArcs calls of addEdge()
+   */
   public void addEdges(int noArcs) {
-    _edges = new ArrayList<DagEdge>(noArcs);
+    _features = new short[noArcs];
+    _values = new DagNode[noArcs];
   }
 
-  /** We assume the feature list is either equal to null or not empty. Other
-   *  code can rely on that
+  /** Add an edge at the end of the edge arrays, or in the next free position
+   *  of the arrays created by addEdges(). The edges may have to be sorted
+   *  afterwards.
    */
-  private void addEdge(DagEdge undumpArc) {
-    if (null == _edges) _edges = new ArrayList<DagEdge>(3);
-    _edges.add(undumpArc);
+  public void addEdge(short featCode, DagNode fs) {
+    int pos;
+    if (_features == null) {
+      pos = 0;
+      _features = new short[1];
+      _values = new DagNode[1];
+    } else if (_values[_values.length - 1] != null) {
+      pos = _values.length;
+      _features = Arrays.copyOf(_features, pos + 1);
+      _values = Arrays.copyOf(_values, pos + 1);
+    } else {
+      pos = 0;
+      while (_values[pos] != null) ++pos;
+    }
+    _features[pos] = featCode;
+    _values[pos] = fs;
   }
 
-  public void addEdge(short featCode, DagNode fs) {
-    addEdge(new DagEdge(featCode, fs));
+  /** Set the edges to the first n entries of the given arrays, which are
+   *  trimmed to the right size if necessary
+   */
+  private void setEdges(short[] features, DagNode[] values, int n) {
+    if (n == 0) {
+      _features = null;
+      _values = null;
+    } else if (n == features.length) {
+      _features = features;
+      _values = values;
+    } else {
+      _features = Arrays.copyOf(features, n);
+      _values = Arrays.copyOf(values, n);
+    }
   }
 
-  private ArrayList<DagEdge> getEdges() {
-    return _edges;
+  private void removeEdgeAt(int pos) {
+    int n = _features.length - 1;
+    if (n == 0) {
+      _features = null;
+      _values = null;
+      return;
+    }
+    short[] features = new short[n];
+    DagNode[] values = new DagNode[n];
+    System.arraycopy(_features, 0, features, 0, pos);
+    System.arraycopy(_values, 0, values, 0, pos);
+    System.arraycopy(_features, pos + 1, features, pos, n - pos);
+    System.arraycopy(_values, pos + 1, values, pos, n - pos);
+    _features = features;
+    _values = values;
   }
 
   /** This edge iterator works correctly only on complete dags.
    *  It should be preferred if it can be made sure that the dag is complete.
+   *  The DagEdge objects are created on demand, changing their values does
+   *  not change this dag.
    */
   public Iterator<DagEdge> getEdgeIterator() {
-    return _edges == null ? emptyEdges : _edges.iterator();
+    return _features == null ? emptyEdges : new ArrayEdgeIterator();
   }
 
   /** This edge iterator works correctly both on complete and temporary dags.
@@ -1332,62 +1954,114 @@ public class DagNode {
    *  avoided if it can be made sure that the dag is complete
    */
   public EdgeIterator getTransitionalEdgeIterator() {
-    return new EdgeIterator();
+    return new EdgeIterator(UnificationContext.get());
+  }
+
+  /** Return the position of feature in the edge arrays, or -1.
+   *  Narrow nodes are searched linearly. For wide nodes that have exactly the
+   *  appropriate features of their type, the position is taken from the
+   *  feature slot table of the grammar, all others use binary search.
+   * Works correctly only on non-temporary dags.
+   */
+  private int getEdgeIndex(short feature) {
+    short[] features = _features;
+    if (features == null) return -1;
+    int n = features.length;
+    if (n <= LINEAR_SEARCH_LIMIT) {
+      for (int i = 0; i < n; ++i) {
+        int f = features[i];
+        if (f == feature)
+          return i;
+        if (f > feature)
+          break;
+      }
+      return -1;
+    }
+    FSGrammar grammar;
+    if (INDEXED_LOOKUP && (grammar = grammar()) != null) {
+      short[] slots = grammar.getFeatureSlots(_typeCode, n);
+      if (slots != null && feature >= 0 && feature < slots.length) {
+        int i = slots[feature];
+        // the check is necessary for nodes that are not well-typed, like
+        // restrictor dags: they fall back to binary search
+        if (i >= 0 && features[i] == feature) return i;
+      }
+    }
+    int low = 0, high = n - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int f = features[mid];
+      if (f < feature) {
+        low = mid + 1;
+      } else if (f > feature) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
   }
 
   /** Return the substructure under feature, if existent, null otherwise
-   * Could be improved using binary or interpolation search.
    * Works correctly only on non-temporary dags.
    */
   public DagNode getValue(short feature) {
-    DagEdge edge = getEdge(feature);
-    return (edge == null) ? null : edge.getValue();
+    int i = getEdgeIndex(feature);
+    return (i < 0) ? null : _values[i];
   }
 
   /** Return the edge leaving this dag labeled with feature, if existent,
-   *  null otherwise
-   * Could be improved using binary or interpolation search.
+   *  null otherwise. The edge is created on demand, changing its value does
+   *  not change this dag.
    * Works correctly only on non-temporary dags.
    */
   public DagEdge getEdge(short feature) {
-    if (_edges == null) return null;
-    for (DagEdge edge : _edges) {
-      int f = edge.getFeature();
-      if (f == feature)
-        return edge;
-      if (f > feature)
-        break;
-    }
-    return null;
+    int i = getEdgeIndex(feature);
+    return (i < 0) ? null : new DagEdge(_features[i], _values[i]);
   }
 
+  /** Sort the edges according to the feature ids. Insertion sort, since
+   *  there are only few edges per node.
+   */
   private void sortEdges() {
-    if (_edges != null)
-      Collections.sort(_edges);
+    if (_features == null) return;
+    for (int i = 1; i < _features.length; ++i) {
+      short feat = _features[i];
+      DagNode value = _values[i];
+      int j = i - 1;
+      while (j >= 0 && _features[j] > feat) {
+        _features[j + 1] = _features[j];
+        _values[j + 1] = _values[j];
+        --j;
+      }
+      _features[j + 1] = feat;
+      _values[j + 1] = value;
+    }
   }
 
   // clear the edges slot if it is not needed
   protected void edgesAreEmpty() {
-    if (_edges != null && _edges.size() == 0) _edges = null;
+    if (_features != null && _features.length == 0) {
+      _features = null;
+      _values = null;
+    }
   }
 
   // **************************************************************************
   // BEGIN general convenience functions, path/arg access, etc.
   // **************************************************************************
 
+  /** Visit this node for countCorefsLocal(), and push a frame for its edges
+   *  if it is visited for the first time
+   */
   private int
-  countCorefsLocal(IdentityHashMap<DagNode, Integer> corefs, int nextCorefNo) {
-    DagNode here = dereference();
+  countCorefsEnter(IdentityHashMap<DagNode, Integer> corefs, int nextCorefNo,
+      UnificationContext ctx) {
+    DagNode here = dereference(ctx);
     Integer corefNo = corefs.get(here);
     if (corefNo == null) { // visited for the first time
       corefs.put(here, 0);
-      EdgeIterator fvListIt = here.getNewEdgeIterator();
-      if (fvListIt != null) {
-        while(fvListIt.hasNext()) {
-          nextCorefNo = fvListIt.next().getValue()
-            .countCorefsLocal(corefs, nextCorefNo);
-        }
-      }
+      ctx.push().it1 = here.getNewEdgeIterator(ctx);
     } else {
       if (corefNo == 0) { // visited for the second time at least
         corefs.put(here, ++nextCorefNo);
@@ -1396,28 +2070,50 @@ public class DagNode {
     return nextCorefNo;
   }
 
+  private int
+  countCorefsLocal(IdentityHashMap<DagNode, Integer> corefs, int nextCorefNo,
+      UnificationContext ctx) {
+    int base = ctx.depth;
+    try {
+      nextCorefNo = countCorefsEnter(corefs, nextCorefNo, ctx);
+      while (ctx.depth > base) {
+        EdgeIterator fvListIt = ctx.top().it1;
+        if (fvListIt.nextFeature() != NO_FEAT) {
+          nextCorefNo = fvListIt.value()
+            .countCorefsEnter(corefs, nextCorefNo, ctx);
+        } else {
+          ctx.pop();
+        }
+      }
+      return nextCorefNo;
+    } finally {
+      ctx.release(base);
+    }
+  }
+
   public int getListLength() {
     int result = 0;
     DagNode curr = this;
-    while ((curr = curr.getValue(fsgrammar.restFeatureId)) != null) {
+    while ((curr = curr.getValue(grammar().restFeatureId)) != null) {
       ++result;
     }
     return result;
   }
 
   public int getArity() {
-    DagNode args = getValue(fsgrammar.argsFeatureId);
+    DagNode args = getValue(grammar().argsFeatureId);
     if (args == null) return 0;
     return args.getListLength();
   }
 
   public DagNode getNthArg(int argNo) {
-    DagNode subnode = getValue(ARGS_FEATURE);
+    FSGrammar grammar = grammar();
+    DagNode subnode = getValue(grammar.argsFeatureId);
     while (argNo != 0 && subnode != null) {
-      subnode = subnode.getValue(REST_FEATURE);
+      subnode = subnode.getValue(grammar.restFeatureId);
       --argNo;
     }
-    return (subnode == null ? null : subnode.getValue(FIRST_FEATURE));
+    return (subnode == null ? null : subnode.getValue(grammar.firstFeatureId));
   }
 
   /** Get the node under the given path.
@@ -1433,19 +2129,20 @@ public class DagNode {
 
   /** Return the key arg of this structure, or -1 if there is none */
   public int getKeyArg() {
+    FSGrammar grammar = grammar();
     int result = -1;
-    DagNode curr = getValue(fsgrammar.argsFeatureId);
+    DagNode curr = getValue(grammar.argsFeatureId);
     int arg = 0;
     while (curr != null && result == -1) {
-      DagNode key = curr.getValue(fsgrammar.firstFeatureId);
+      DagNode key = curr.getValue(grammar.firstFeatureId);
       if (key != null) {
-        key = key.getSubNode(fsgrammar.keyargMarkerPath.iterator());
+        key = key.getSubNode(grammar.keyargMarkerPath.iterator());
       }
-      if (key != null && key.getType() == fsgrammar.trueTypeId) {
+      if (key != null && key.getType() == grammar.trueTypeId) {
         result = arg;
       } else {
         ++arg;
-        curr = curr.getValue(fsgrammar.restFeatureId);
+        curr = curr.getValue(grammar.restFeatureId);
       }
     }
     return result;
@@ -1472,7 +2169,7 @@ public class DagNode {
     if (it == null) return ;
     while (it.hasNext()) {
       DagEdge edge = it.next();
-      if (! fsgrammar.keepFeature(edge.getFeature())) {
+      if (! grammar().keepFeature(edge.getFeature())) {
         it.remove();
       }
     }
@@ -1493,7 +2190,7 @@ public class DagNode {
     visited.put(here, here);
     int value = here.getType();
     if (value != FSGrammar.TOP_TYPE) {
-      String valString = fsgrammar.getTypeName(value);
+      String valString = grammar().getTypeName(value);
       // could also be a string constant
       if (valString.startsWith("\""))
         valString = valString.substring(1, valString.length() - 1);
@@ -1517,9 +2214,9 @@ public class DagNode {
   }
 
   @SuppressWarnings("null")
-  private void restrictRec(DagNode restrictor) {
-    if (this.getCopy() == restrictor) return;
-    this.setCopy(restrictor);
+  private void restrictRec(DagNode restrictor, UnificationContext ctx) {
+    if (this.getCopy(ctx) == restrictor) return;
+    this.setCopy(restrictor, ctx);
     RESTRICT restrictType = restrictor.getRestrictorType();
 
     Iterator<? extends DagEdge> arc1It = this.getEdgeIterator();
@@ -1550,7 +2247,7 @@ public class DagNode {
         if (arc2.getValue().getRestrictorType() == RESTRICT.RSTR_DEL) {
           arc1It.remove();
         } else {
-          arc1.getValue().restrictRec(arc2.getValue());
+          arc1.getValue().restrictRec(arc2.getValue(), ctx);
         }
         feat1 = (arc1It.hasNext()
                  ? (arc1 = arc1It.next()).getFeature() : NO_FEAT);
@@ -1566,8 +2263,9 @@ public class DagNode {
    *  meanings.
    */
   public void restrict(DagNode restrictor) {
-    restrictRec(restrictor);
-    invalidate();
+    UnificationContext ctx = UnificationContext.get();
+    restrictRec(restrictor, ctx);
+    ctx.invalidate();
   }
 
   public static int emptiedDlists = 0;
@@ -1575,22 +2273,23 @@ public class DagNode {
 
   @SuppressWarnings("null")
   private void restrictSpecialRec(DagNode restrictor, boolean sloppy,
-      int slashDepth) {
-    if (this.getCopy() == restrictor) return;
-    this.setCopy(restrictor);
+      int slashDepth, UnificationContext ctx) {
+    if (this.getCopy(ctx) == restrictor) return;
+    this.setCopy(restrictor, ctx);
+    FSGrammar grammar = ctx.getGrammar();
 
     /**/
     // first check if this is an empty DLIST that should be massaged
-    if (fsgrammar.subsumesType(fsgrammar.dListTypeId, getType())) {
-      DagNode list = getValue(fsgrammar.listFeatureId);
+    if (grammar.subsumesType(grammar.dListTypeId, getType())) {
+      DagNode list = getValue(grammar.listFeatureId);
       if (list != null) {
-        DagNode last = getValue(fsgrammar.lastFeatureId);
-        if (list == last && list._edges != null) {
+        DagNode last = getValue(grammar.lastFeatureId);
+        if (list == last && list._features != null) {
           ++emptiedDlists;
-          list._edges = null;
-          list._compArcs = null;
-          last._edges = null;
-          last._compArcs = null;
+          list.setEdges(null, null, 0);
+          list.setCompArcs(null, ctx);
+          last.setEdges(null, null, 0);
+          last.setCompArcs(null, ctx);
           // list._typeCode = fsgrammar.nullTypeId; // this is illegal!
         }
       }
@@ -1618,9 +2317,9 @@ public class DagNode {
         } else {
           DagNode dag = arc1.getValue();
           //dag.unfillRec(sloppy);
-          if ((dag._edges == null || dag._edges.isEmpty())
-              && (sloppy || getType() == fsgrammar.getAppropriateType(arc1.getFeature()))
-              && dag.getType() == fsgrammar.getMaxAppropriateType(arc1.getFeature())) {
+          if (dag._features == null
+              && (sloppy || getType() == grammar.getAppropriateType(arc1.getFeature()))
+              && dag.getType() == grammar.getMaxAppropriateType(arc1.getFeature())) {
             arc1It.remove();
           }
         }
@@ -1637,23 +2336,23 @@ public class DagNode {
         } else {
           DagNode dag = arc1.getValue();
           // this increases slashDepth if arc1 is SLASH arc
-          if (feat1 == SLASH_FEATURE && (++slashDepth == MAX_SLASH_DEPTH)) {
+          if (feat1 == grammar.slashFeatureId && (++slashDepth == MAX_SLASH_DEPTH)) {
             // max slash depth exceeded
             // dag is the slash dlist, make it an empty dlist
-            DagNode list = dag.getValue(fsgrammar.listFeatureId);
+            DagNode list = dag.getValue(grammar.listFeatureId);
             if (list != null) {
               ++depthRestrictedSlashes;
-              list._edges = null;
-              list._compArcs = null;
+              list.setEdges(null, null, 0);
+              list.setCompArcs(null, ctx);
               // list._typeCode = fsgrammar.nullTypeId; // this is illegal!
-              DagEdge lastEdge = dag.getEdge(fsgrammar.lastFeatureId);
-              lastEdge.value = list;
+              int lastEdge = dag.getEdgeIndex(grammar.lastFeatureId);
+              dag._values[lastEdge] = list;
             }
           } else {
-            dag.restrictSpecialRec(arc2.getValue(), sloppy, slashDepth);
-            if ((dag._edges == null || dag._edges.isEmpty())
-                && (sloppy || getType() == fsgrammar.getAppropriateType(arc1.getFeature()))
-                && dag.getType() == fsgrammar.getMaxAppropriateType(arc1.getFeature())) {
+            dag.restrictSpecialRec(arc2.getValue(), sloppy, slashDepth, ctx);
+            if (dag._features == null
+                && (sloppy || getType() == grammar.getAppropriateType(arc1.getFeature()))
+                && dag.getType() == grammar.getMaxAppropriateType(arc1.getFeature())) {
               arc1It.remove();
             }
           }
@@ -1677,8 +2376,9 @@ public class DagNode {
    *  MAX_SLASH_DEPTH and unfills.
    */
   public void restrictSpecial(DagNode restrictor) {
-    restrictSpecialRec(restrictor, false, 0);
-    invalidate();
+    UnificationContext ctx = UnificationContext.get();
+    restrictSpecialRec(restrictor, false, 0, ctx);
+    ctx.invalidate();
   }
 
   @SuppressWarnings("null")
@@ -1688,31 +2388,22 @@ public class DagNode {
       qcvector[qcPos - 1] = this;
     }
 
-    Iterator<? extends DagEdge> arc1It = this.getEdgeIterator();
-    Iterator<? extends DagEdge> arc2It = qcnode.getEdgeIterator();
-    DagEdge arc1 = null, arc2 = null;
-    short feat1 = ((arc1It != null && arc1It.hasNext())
-                   ? (arc1 = arc1It.next()).getFeature() : NO_FEAT);
-    short feat2 = ((arc2It != null && arc2It.hasNext())
-                   ? (arc2 = arc2It.next()).getFeature() : NO_FEAT);
+    short[] edges1 = this._features;
+    short[] edges2 = qcnode._features;
+    if (edges1 == null || edges2 == null) return;
 
-    while (feat1 != NO_FEAT && feat2 != NO_FEAT) {
-      while (feat1 < feat2) {
+    int i1 = 0, i2 = 0;
+    while (i1 < edges1.length && i2 < edges2.length) {
+      if (edges1[i1] < edges2[i2]) {
         // feature in this dag but not in qcnode
-        feat1 = (arc1It.hasNext()
-                 ? (arc1 = arc1It.next()).getFeature() : NO_FEAT);
-      }
-      while (feat1 > feat2) { // feature in qc vector missing in this dag
-        feat2 = (arc2It.hasNext()
-                 ? (arc2 = arc2It.next()).getFeature() : NO_FEAT);
-      }
-      if (feat1 == feat2 && feat1 != NO_FEAT) {
-        arc1.getValue().getQCVector(arc2.getValue(), qcvector);
-
-        feat1 = (arc1It.hasNext()
-                 ? (arc1 = arc1It.next()).getFeature() : NO_FEAT);
-        feat2 = (arc2It.hasNext()
-                 ? (arc2 = arc2It.next()).getFeature() : NO_FEAT);
+        ++i1;
+      } else if (edges1[i1] > edges2[i2]) {
+        // feature in qc vector missing in this dag
+        ++i2;
+      } else {
+        _values[i1].getQCVector(qcnode._values[i2], qcvector);
+        ++i1;
+        ++i2;
       }
     }
   }
@@ -1724,7 +2415,7 @@ public class DagNode {
     visited.put(this, this);
     while (arcIt.hasNext()) {
       DagEdge arc = arcIt.next();
-      if (! fsgrammar.keepFeature(arc.getFeature())) {
+      if (! grammar().keepFeature(arc.getFeature())) {
         arcIt.remove();
       } else {
         arc.getValue().restrictSimpleRec(visited);
@@ -1737,19 +2428,19 @@ public class DagNode {
     restrictSimpleRec(new IdentityHashMap<DagNode, DagNode>());
   }
 
-  private void unfillRec(boolean sloppy) {
+  private void unfillRec(boolean sloppy, UnificationContext ctx) {
     Iterator<? extends DagEdge> arcIt = this.getEdgeIterator();
-    if (visited() == 0)  // returns -1 if not visited
+    if (visited(ctx) == 0)  // returns -1 if not visited
       return;
 
-    setVisited(0);
+    setVisited(0, ctx);
     while (arcIt.hasNext()) {
       DagEdge arc = arcIt.next();
       DagNode dag = arc.getValue();
-      dag.unfillRec(sloppy);
-      if ((dag._edges == null || dag._edges.isEmpty())
-          && (sloppy || getType() == fsgrammar.getAppropriateType(arc.getFeature()))
-          && dag.getType() == fsgrammar.getMaxAppropriateType(arc.getFeature())) {
+      dag.unfillRec(sloppy, ctx);
+      if (dag._features == null
+          && (sloppy || getType() == grammar().getAppropriateType(arc.getFeature()))
+          && dag.getType() == grammar().getMaxAppropriateType(arc.getFeature())) {
         arcIt.remove();
       }
     }
@@ -1760,16 +2451,18 @@ public class DagNode {
    *  type for a structure and the appropriate type
    */
   public void unfill() {
-    unfillRec(false);
-    invalidate();
+    UnificationContext ctx = UnificationContext.get();
+    unfillRec(false, ctx);
+    ctx.invalidate();
   }
 
   /** Remove all structures that can be explained by the maximally appropriate
    *  type for a structure
    */
   public void unfillSloppy() {
-    unfillRec(true);
-    invalidate();
+    UnificationContext ctx = UnificationContext.get();
+    unfillRec(true, ctx);
+    ctx.invalidate();
   }
 
   private void unfillSimpleRec(IdentityHashMap<DagNode, DagNode> visited,
@@ -1781,9 +2474,9 @@ public class DagNode {
       DagEdge arc = arcIt.next();
       DagNode dag = arc.getValue();
       dag.unfillSimpleRec(visited, sloppy);
-      if ((dag._edges == null || dag._edges.isEmpty())
-          && (sloppy || getType() == fsgrammar.getAppropriateType(arc.getFeature()))
-          && dag.getType() == fsgrammar.getMaxAppropriateType(arc.getFeature())) {
+      if (dag._features == null
+          && (sloppy || getType() == grammar().getAppropriateType(arc.getFeature()))
+          && dag.getType() == grammar().getMaxAppropriateType(arc.getFeature())) {
         arcIt.remove();
       }
     }
@@ -1833,9 +2526,12 @@ public class DagNode {
     }
   }
 
-  private void walkDagRec(DagVisitor visitor,
-      IdentityHashMap<DagNode, Integer> corefs) {
-    DagNode here = this.dereference();
+  /** Visit this node for walkDagIter(), and push a frame for its edges if
+   *  it has not been visited before
+   */
+  private void walkDagEnter(DagVisitor visitor,
+      IdentityHashMap<DagNode, Integer> corefs, UnificationContext ctx) {
+    DagNode here = this.dereference(ctx);
     int corefNo = corefs.get(here);
     visitor.startDag(this, here, corefNo);
     if (corefNo < 0) { // already visited
@@ -1844,24 +2540,39 @@ public class DagNode {
     if (corefNo > 0) { // mark visited
       corefs.put(here, -corefNo);
     }
+    Frame f = ctx.push();
+    f.in1 = here;
+    f.it1 = here.getNewEdgeIterator(ctx);
+  }
 
-    EdgeIterator fvListIt = here.getNewEdgeIterator();
-    if (fvListIt != null) {
-      while(fvListIt.hasNext()) {
-        DagEdge edge = fvListIt.next();
-        visitor.visitEdge(here, edge);
-        edge.getValue().walkDagRec(visitor, corefs);
+  private void walkDagIter(DagVisitor visitor,
+      IdentityHashMap<DagNode, Integer> corefs, UnificationContext ctx) {
+    int base = ctx.depth;
+    try {
+      walkDagEnter(visitor, corefs, ctx);
+      while (ctx.depth > base) {
+        Frame f = ctx.top();
+        if (f.it1.hasNext()) {
+          DagEdge edge = f.it1.next();
+          visitor.visitEdge(f.in1, edge);
+          edge.getValue().walkDagEnter(visitor, corefs, ctx);
+        } else {
+          visitor.endDag(f.in1);
+          ctx.pop();
+        }
       }
+    } finally {
+      ctx.release(base);
     }
-    visitor.endDag(here);
   }
 
   public void walkDag(DagVisitor visitor) {
     IdentityHashMap<DagNode, Integer> corefMap =
         new IdentityHashMap<DagNode, Integer>();
+    UnificationContext ctx = UnificationContext.get();
     int corefs = 0;
-    corefs = countCorefsLocal(corefMap, corefs);
-    walkDagRec(visitor, corefMap);
+    corefs = countCorefsLocal(corefMap, corefs, ctx);
+    walkDagIter(visitor, corefMap, ctx);
   }
 
   // *************************************************************************
@@ -1910,14 +2621,15 @@ public class DagNode {
   public void write(Writer out) throws IOException {
     IdentityHashMap<DagNode, Integer> corefMap =
         new IdentityHashMap<DagNode, Integer>();
+    UnificationContext ctx = UnificationContext.get();
     int corefs = 0;
-    corefs = countCorefsLocal(corefMap, corefs);
+    corefs = countCorefsLocal(corefMap, corefs, ctx);
     if (_DEFAULT_PRINTER != null) {
       _DEFAULT_PRINTER.toStringRec(this, PRINT_READABLE, out, corefMap);
     }
     else {
       try { /** print fs in jxchg format */
-        walkDagRec(new PrintVisitor(out, PRINT_READABLE), corefMap);
+        walkDagIter(new PrintVisitor(out, PRINT_READABLE), corefMap, ctx);
       } catch (Error e) {
         if (e.getCause() instanceof IOException)
           throw (IOException) e.getCause();
@@ -1981,7 +2693,7 @@ public class DagNode {
       // node array and add them
       short noArcs = u.undumpShort();
       if (noArcs > 0) {
-        node.addEdges(noArcs); // node.edges = new ArrayList<DagEdge>(noArcs);
+        node.addEdges(noArcs);
         for (short i = (short) 0; i < noArcs; i++) {
           short feature = u.undumpShort();
           short nodeIndex = u.undumpShort();
@@ -1994,6 +2706,21 @@ public class DagNode {
   }
 
 
+  /** Skip a feature structure in PET binary format, see buildFS(PetUndumper)
+   * @param u a stream wrapper of class PetUndumper
+   */
+  public static void skipFS(PetUndumper u) {
+    int noNodes = u.undumpInt();
+    u.undumpInt();
+    for (int j = 0; j < noNodes; j++) {
+      u.undumpInt();
+      short noArcs = u.undumpShort();
+      // every arc is a pair of shorts
+      u.skip(4 * noArcs);
+    }
+  }
+
+
   /** buildFS1() does the recursive build-up for buildFS() from JxchgTokenizer
    * helper method for buildFS(JxchgTokenizer, FSGrammar)
    * @throws {@link IOException}, {@link InvalidSyntaxException}
@@ -2026,7 +2753,8 @@ public class DagNode {
         // the plain new fs, put into the still empty this object
         DagNode placeHolder = buildFS1(in, gram, coref2FS, container);
         result._typeCode = placeHolder._typeCode;
-        result._edges = placeHolder._edges;
+        result._features = placeHolder._features;
+        result._values = placeHolder._values;
       }
       // We're done
       return result;
@@ -2103,7 +2831,7 @@ public class DagNode {
       @Override
       public void startDag(DagNode here, DagNode deref, int corefNo) {
         result[0] = result[0]
-            && here.getType() < fsgrammar.getNoOfGrammarTypes();
+            && here.getType() < grammar().getNoOfGrammarTypes();
       }
     });
     return result[0];
@@ -2,25 +2,32 @@ package de.dfki.lt.loot.tfs;
 
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.TLongIntMap;
-import gnu.trove.map.custom_hash.TObjectIntCustomHashMap;
 import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.procedure.TIntIntProcedure;
 import gnu.trove.procedure.TLongIntProcedure;
 import gnu.trove.set.hash.TShortHashSet;
-import gnu.trove.strategy.HashingStrategy;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,16 +36,21 @@ import de.dfki.lt.loot.tfs.io.Consumer;
 import de.dfki.lt.loot.tfs.io.EdgeConsumer;
 import de.dfki.lt.loot.tfs.io.InvalidSyntaxException;
 import de.dfki.lt.loot.tfs.io.JxchgTokenizer;
+import de.dfki.lt.loot.tfs.io.PetDumper;
 import de.dfki.lt.loot.tfs.io.PetUndumper;
 import de.dfki.lt.loot.tfs.io.TableOfContents;
+import de.dfki.lt.loot.tfs.util.BoundedLongIntCache;
+import de.dfki.lt.loot.tfs.util.ConcurrentIDMap;
+import de.dfki.lt.loot.tfs.util.ConcurrentLongIntMap;
+import de.dfki.lt.loot.tfs.util.LongIntCache;
 import de.dfki.lt.loot.tfs.util.IntIDMap;
 import de.dfki.lt.loot.tfs.util.ShortIDMap;
 
 /** @author Bernd Kiefer
  *  This is a re-implementation of PET's grammar class
  *
- *  As far as i can see, this should now be fully thread safe. The only
- *  non-thread safe operation, unifyTypes, is now protected by a ReadWriteLock
+ *  As far as i can see, this should now be fully thread safe. The glb caches
+ *  of unifyTypes and unifyTypesSubs are concurrent maps that need no locking.
  */
 public class FSGrammar {
 
@@ -49,6 +61,11 @@ public class FSGrammar {
   /** This map maps from strings to (int) type ids and back */
   protected IntIDMap<String> _typeIdMap;
 
+  /** The types that are not in the grammar, e.g., string atoms read from
+   *  input. Their ids follow those of the grammar types.
+   */
+  protected ConcurrentIDMap<String> _dynamicTypes;
+
   /** This map maps from strings to (short) feature ids and back */
   protected ShortIDMap<String> _featureIdMap;
 
@@ -66,6 +83,12 @@ public class FSGrammar {
   /** A very simple restrictor deleting all features mentioned here */
   protected TShortHashSet _featuresToDelete = null;
 
+  /** The description string from the header of the grammar file */
+  protected String _description;
+
+  /** The charset of the strings in the grammar file */
+  private final Charset _charset;
+
   /** Number of types in the grammar */
   protected int _grammarTypes;
 
@@ -78,8 +101,22 @@ public class FSGrammar {
   /** Number of all known features */
   protected short _featureNo;
 
-  /** store the skeleton feature structure for a type */
-  protected TFS[] _typeFS;
+  /** store the skeleton feature structure for a type, null for the types
+   *  whose structure has not been built yet, see getFS()
+   */
+  protected AtomicReferenceArray<TFS> _typeFS;
+
+  /** The grammar file and the position of the dumped structure of every
+   *  grammar type in it, to build the structures on demand, or null if all
+   *  were built when the grammar was loaded
+   */
+  private PetUndumper _constraints;
+  private long[] _typeFSOffset;
+
+  /** the skeleton feature structures in the compact Dag representation,
+   *  created on demand
+   */
+  private Dag[] _typeDags;
 
   /** contains for every leaf type the single parent this type has.
    *  Remember that when accessing this array, one has to subtract the
@@ -90,17 +127,83 @@ public class FSGrammar {
   /** The super/subtype structure of the proper types */
   protected TIntArrayList[] _parents, _children;
 
+  /* The hierarchy index, built after loading, see buildHierarchyIndex() */
+
+  /** The direct super- and subtypes of all grammar types, as returned by
+   *  superTypes() and subTypes()
+   */
+  private int[][] _superTypeArrays, _subTypeArrays;
+
+  /** The distance of every grammar type from the top type */
+  private int[] _topDistance;
+
+  /** For every leaf type, its nearest proper supertype. Indexed like
+   *  _leaftypeParent.
+   */
+  private int[] _leafProperParent;
+
+  /** The preorder number of every leaf type in the forest of leaf types, and
+   *  the number following those of all its leaf subtypes. Indexed like
+   *  _leaftypeParent.
+   */
+  private int[] _leafPre, _leafEnd;
+
+  /** For every proper type, the set of its supertypes including itself, in
+   *  _ancestorWords words per type, or null if there are too many proper
+   *  types, see ANCESTOR_BITSET_LIMIT
+   */
+  private long[] _ancestors;
+  private int _ancestorWords;
+
   /** cache computed type glbs in this map */
-  protected TLongIntMap _glbCache;
+  protected LongIntCache _glbCache;
 
   /** cache computed type glbs for subsumption in this map */
-  protected TLongIntMap _glbCacheSubs;
+  protected LongIntCache _glbCacheSubs;
+
+  /** the precomputed glbs of all pairs of proper types, or null */
+  GlbTable _glbTable = null;
+
+  /** Is informed about the use of the glb caches, if not null */
+  private volatile GlbCacheListener _glbListener = null;
+
+  /** The number of wellformedness expansions and of constraint copies per
+   *  type, or null if they are not counted, see setCountExpansions()
+   */
+  private volatile AtomicLongArray _expansions = null;
+  private volatile AtomicLongArray _constraintCopies = null;
+
+  /** The cache of failed unifications of TFSs with an ID, or null, see
+   *  setFailureCache()
+   */
+  private volatile FailureCache _failureCache = null;
+
+  /** the glbs saved by a previous run, see mapGlbCache(), or null */
+  GlbCacheFile _savedGlbs = null;
+
+  /** the bitcodes for all proper types, to compute glbs effectively. The
+   *  code of type t occupies the _codeWords words starting at t * _codeWords
+   */
+  protected long[] _bitcodes;
+
+  /** The number of long words of one bit code */
+  protected int _codeWords;
+
+  /** the fingerprints of the bit codes of all proper types */
+  private long[] _fingerprints;
 
-  /** the bitcodes for all proper types, to compute glbs effectively */
-  protected int[][] _bitcode;
+  /** A mapping from bit code fingerprints to types, an open addressing hash
+   *  table with linear probing, where empty slots contain BOTTOM_TYPE
+   */
+  private int[] _codeTable;
 
-  /** A mapping from bit codes to types */
-  protected TObjectIntCustomHashMap<int[]> _bitcodeToType;
+  /** A buffer for the intersection of two bit codes, for every thread */
+  private final ThreadLocal<long[]> _meetBuffer = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[_codeWords];
+    }
+  };
 
   /* ======================================================================
    * Information for a fixed arity encoding implementation of the dags
@@ -115,6 +218,12 @@ public class FSGrammar {
   /** The feature set descriptors for this grammar */
   short[][] _featSetDescriptors;
 
+  /** For every feature set, the position of every feature in the sorted edge
+   *  arrays of a node that has exactly these features, or -1. Created on
+   *  demand.
+   */
+  private short[][] _featSetSlots;
+
   /** contains the type where a feature was introduced for the first time */
   private int _appType[];
 
@@ -156,6 +265,73 @@ public class FSGrammar {
   public static String ATOM_STATUS_NAME = "*atom*";
   public static String RULE_STATUS_NAME = "rule";
 
+  /** If true, the glbs of all pairs of proper types are computed when the
+   *  grammar is loaded, see precomputeGlbTable()
+   */
+  public static boolean PRECOMPUTE_GLBS = false;
+
+  /** Up to this number of proper types, the precomputed glb table is a dense
+   *  matrix, otherwise, only the non-bottom glbs are stored.
+   */
+  public static int DENSE_GLB_TABLE_LIMIT = 4096;
+
+  /** Up to this number of proper types, the supertypes of every proper type
+   *  are stored as bit set, which takes (n * n / 8) bytes for n proper types.
+   *  Otherwise, subsumption of proper types is checked with the bit codes.
+   */
+  public static int ANCESTOR_BITSET_LIMIT = 16384;
+
+  /** If not null, the binary glb cache file that is mapped when the grammar
+   *  is loaded, see mapGlbCache()
+   */
+  public static String GLB_CACHE_FILE = null;
+
+  /** If positive, the maximal number of entries of each of the two glb
+   *  caches, which then evict entries that are rarely used. Otherwise, the
+   *  caches grow without limit.
+   */
+  public static int GLB_CACHE_BUDGET = 0;
+
+  /** If true, the feature structure of a type is built from the grammar file
+   *  the first time it is requested, otherwise, all are built when the
+   *  grammar is loaded.
+   *
+   *  A lazy grammar keeps its grammar file (or snapshot) mapped as long as it
+   *  is alive, so the file must not be changed or truncated in place during
+   *  that time, e.g., by deploying a new version for GrammarHolder.reload()
+   *  over the old one. Write the new version to another file and rename it
+   *  instead.
+   */
+  public static boolean LAZY_TYPE_FS = false;
+
+  /** If true, the feature structures of the rules are built when the grammar
+   *  is loaded, also if LAZY_TYPE_FS is set
+   */
+  public static boolean PRELOAD_RULE_FS = true;
+
+  /** If true, the sections of the grammar file, and the type structures if
+   *  they are not built lazily, are read in parallel by the common fork-join
+   *  pool.
+   */
+  public static boolean PARALLEL_LOAD = false;
+
+  /** If true, a snapshot of the loaded grammar is written next to the
+   *  grammar file, and loaded instead of it as long as the grammar file does
+   *  not change, see snapshotFile()
+   */
+  public static boolean GRAMMAR_SNAPSHOT = false;
+
+  /** If true, the names of types, features and status values read from the
+   *  grammar file are interned
+   */
+  public static boolean INTERN_NAMES = false;
+
+  /** If true, a grammar created with FSGrammar(String) becomes the default
+   *  grammar of DagNode at the end of its constructor. Switch this off to
+   *  load grammars that are only used by threads of their own, see call().
+   */
+  public static boolean MAKE_DEFAULT = true;
+
   /** Cached code for the atom status */
   protected final int atomStatusId;
 
@@ -202,6 +378,9 @@ public class FSGrammar {
   /** The feature id for the ARGS of a rule FS */
   public final short argsFeatureId;
 
+  /** The feature id for SLASH, which is treated specially by restrictors */
+  public final short slashFeatureId;
+
 
   /* ======================================================================
    * path constants
@@ -210,97 +389,237 @@ public class FSGrammar {
   /** The path to the keyarg marker */
   public final List<Short> keyargMarkerPath;
 
+  /** The quick check paths as dag with the path numbers as types, and the
+   *  number of paths, set by TFS.initQuickCheck()
+   */
+  DagNode qcSet;
+  int qcLen;
+
   /* ======================================================================
    * bit code methods
    * ====================================================================== */
 
-  /** Return the bit code representation for a type
-   *  Bit codes are only stored for proper types, leaf types can be handled
-   *  more efficiently and with less space requirements.
+  /** Add the next word of a bit code to the fingerprint fp */
+  private static long fingerprintStep(long fp, long word) {
+    return Long.rotateLeft((fp ^ word) * 0x9e3779b97f4a7c15L, 31);
+  }
+
+  /** Return the start index of the table slot chain for a fingerprint */
+  private int codeTableIndex(long fp) {
+    return (int) (fp ^ (fp >>> 32)) & (_codeTable.length - 1);
+  }
+
+  /** Set the bit codes and fingerprints of all proper types from the given
+   *  int codes, and fill the table from fingerprints to types.
    */
-  private int[] getBitcode(int type) {
-    return this._bitcode[type];
+  private void initBitcodes(int[][] codes, int codesize) {
+    _codeWords = (codesize + 1) / 2;
+    _bitcodes = new long[_firstLeafType * _codeWords];
+    _fingerprints = new long[_firstLeafType];
+    int capacity = 16;
+    while (capacity < 2 * _firstLeafType) capacity <<= 1;
+    _codeTable = new int[capacity];
+    Arrays.fill(_codeTable, BOTTOM_TYPE);
+    for (int type = 0; type < _firstLeafType; ++type) {
+      int[] code = codes[type];
+      int start = type * _codeWords;
+      long fp = 0;
+      for (int w = 0; w < _codeWords; ++w) {
+        long word = code[2 * w] & 0xffffffffL;
+        if (2 * w + 1 < codesize) word |= ((long) code[2 * w + 1]) << 32;
+        _bitcodes[start + w] = word;
+        fp = fingerprintStep(fp, word);
+      }
+      _fingerprints[type] = fp;
+      int i = codeTableIndex(fp);
+      while (_codeTable[i] != BOTTOM_TYPE) i = (i + 1) & (capacity - 1);
+      _codeTable[i] = type;
+    }
   }
 
-  /** return the type associated with the given bitcode */
-  private int getType(int[] bitcode) {
-    if (bitcode == null)
-      return BOTTOM_TYPE;
-    return _bitcodeToType.get(bitcode);
+  /** return the type whose bit code is code, which has the fingerprint fp */
+  private int getType(long[] code, long fp) {
+    int mask = _codeTable.length - 1;
+    for (int i = codeTableIndex(fp); _codeTable[i] != BOTTOM_TYPE;
+         i = (i + 1) & mask) {
+      int type = _codeTable[i];
+      if (_fingerprints[type] == fp) {
+        int start = type * _codeWords;
+        int w = 0;
+        while (w < _codeWords && _bitcodes[start + w] == code[w]) ++w;
+        if (w == _codeWords) return type;
+      }
+    }
+    return BOTTOM_TYPE;
   }
 
-  /** return true if code1 is subsumed by code 2, that is, if all set bits in
-   *  code2 are also set in code1
+  /** return true if the code of type1 is subsumed by the code of type2, that
+   *  is, if all set bits in the code of type2 are also set in that of type1
    */
-  private boolean subsumesCode(int[] code1, int[] code2) {
-    // all bit codes have the same length
-    for (int i = 0; i < code1.length; ++i) {
-      if ((code1[i] & code2[i]) != code2[i])
+  private boolean subsumesCode(int type1, int type2) {
+    int start1 = type1 * _codeWords, start2 = type2 * _codeWords;
+    for (int w = 0; w < _codeWords; ++w) {
+      long code2 = _bitcodes[start2 + w];
+      if ((_bitcodes[start1 + w] & code2) != code2)
         return false;
     }
     return true;
   }
 
-  /** To unify to bit vectors, we have to compute their intersection.
-   *  @return a new bit vector that is the intersection of the arguments, or
-   *  null, if the result would contain no set bit.
+  /** To unify two proper types, we have to compute the intersection of their
+   *  bit codes, and look up the type with the resulting code. The
+   *  intersection is computed in a thread local buffer.
+   *  @return the glb of the two types, or BOTTOM_TYPE if the intersection
+   *  contains no set bit.
    */
-  private int[] unifyCodes(int[] code1, int[] code2) {
-    int[] result = new int[code1.length];
-    boolean set = false;
-    for (int i = 0; i < code1.length; ++i) {
-      result[i] = code1[i] & code2[i];
-      set |= (result[i] != 0);
+  private int unifyCodes(int type1, int type2) {
+    long[] meet = _meetBuffer.get();
+    int start1 = type1 * _codeWords, start2 = type2 * _codeWords;
+    long set = 0, fp = 0;
+    for (int w = 0; w < _codeWords; ++w) {
+      long word = _bitcodes[start1 + w] & _bitcodes[start2 + w];
+      meet[w] = word;
+      set |= word;
+      fp = fingerprintStep(fp, word);
     }
-    return set ? result : null;
+    return set != 0 ? getType(meet, fp) : BOTTOM_TYPE;
   }
 
   /* ======================================================================
    * constructors
    * ====================================================================== */
 
-  /** Read the contents of this grammar from a flop-generated binary file */
+  /** Return the description string of the grammar file */
+  public String getDescription() {
+    return _description;
+  }
+
+  /** Return the charset of the strings in the grammar file */
+  public Charset getCharset() {
+    return _charset;
+  }
+
+  /** Read the contents of this grammar from a flop-generated binary file,
+   *  whose strings are in PetUndumper.DEFAULT_CHARSET.
+   *  The program is terminated if the file can not be read.
+   */
   public FSGrammar(String filename) {
-    _type2Status = new TIntIntHashMap();
-    _statusIdMap = new IntIDMap<String>();
-    _typeIdMap = new IntIDMap<String>();
-    _featureIdMap = new ShortIDMap<String>();
+    this(filename, MAKE_DEFAULT, null, true);
+  }
+
+  /** Read the contents of this grammar from a flop-generated binary file,
+   *  whose strings are in PetUndumper.DEFAULT_CHARSET, and make it the
+   *  default grammar if makeDefault is true
+   *  @throws UncheckedIOException if the file can not be read
+   */
+  public FSGrammar(String filename, boolean makeDefault) {
+    this(filename, makeDefault, null, false);
+  }
+
+  /** Read the contents of this grammar from a flop-generated binary file,
+   *  whose strings are in the given charset, and make it the default grammar
+   *  if makeDefault is true. If charset is null,
+   *  PetUndumper.DEFAULT_CHARSET is used.
+   *  @throws UncheckedIOException if the file can not be read
+   */
+  public FSGrammar(String filename, boolean makeDefault, Charset charset) {
+    this(filename, makeDefault, charset, false);
+  }
+
+  private FSGrammar(String filename, boolean makeDefault, Charset charset,
+      boolean exitOnError) {
+    _charset = (charset != null) ? charset : PetUndumper.DEFAULT_CHARSET;
+    // everything the grammar builds during loading belongs to it
+    FSGrammar previous = DagNode.setThreadGrammar(this);
+    try {
+      _type2Status = new TIntIntHashMap();
+      _statusIdMap = new IntIDMap<String>();
+      _typeIdMap = new IntIDMap<String>();
+      _featureIdMap = new ShortIDMap<String>();
+
+      if (exitOnError) {
+        loadGrammar(filename);
+      } else {
+        try {
+          readGrammar(filename);
+        } catch (IOException ex) {
+          throw new UncheckedIOException(
+              "Error while reading grammar from " + filename, ex);
+        }
+      }
+
+      _dynamicTypes = new ConcurrentIDMap<String>(_typeIdMap.size());
+
+      atomStatusId = _statusIdMap.register(ATOM_STATUS_NAME);
+
+      getNumberForTypeName("*TOP*");
+
+      // finally assign the type number to the instance field stringType, used
+      // during type unification and subsumption with unknown (string) types
+      stringTypeId = getNumberForTypeName(STRING_TYPE_NAME);
 
-    loadGrammar(filename);
+      consTypeId = getNumberForTypeName(CONS_TYPE_NAME);
+      nullTypeId = getNumberForTypeName(NULL_TYPE_NAME);
 
-    atomStatusId = _statusIdMap.register(ATOM_STATUS_NAME);
+      dListTypeId = getNumberForTypeName(DLIST_TYPE_NAME);
 
-    getNumberForTypeName("*TOP*");
+      trueTypeId = getNumberForTypeName(TRUE_TYPE_NAME);
 
-    // finally assign the type number to the instance field stringType, used
-    // during type unification and subsumption with unknown (string) types
-    stringTypeId = getNumberForTypeName(STRING_TYPE_NAME);
+      firstFeatureId = getNumberForFeatureName(FIRST_FEATURE_NAME);
+      restFeatureId = getNumberForFeatureName(REST_FEATURE_NAME);
 
-    consTypeId = getNumberForTypeName(CONS_TYPE_NAME);
-    nullTypeId = getNumberForTypeName(NULL_TYPE_NAME);
+      listFeatureId = getNumberForFeatureName(LIST_FEATURE_NAME);
+      lastFeatureId = getNumberForFeatureName(LAST_FEATURE_NAME);
 
-    dListTypeId = getNumberForTypeName(DLIST_TYPE_NAME);
+      argsFeatureId = getNumberForFeatureName(ARGS_FEATURE_NAME);
+      slashFeatureId = getFeatureId("SLASH");
 
-    trueTypeId = getNumberForTypeName(TRUE_TYPE_NAME);
+      keyargMarkerPath = new ArrayList<Short>(1);
+      keyargMarkerPath.add(getNumberForFeatureName("KEY-ARG"));
 
-    firstFeatureId = getNumberForFeatureName(FIRST_FEATURE_NAME);
-    restFeatureId = getNumberForFeatureName(REST_FEATURE_NAME);
+      _glbCache = newGlbCache();
 
-    listFeatureId = getNumberForFeatureName(LIST_FEATURE_NAME);
-    lastFeatureId = getNumberForFeatureName(LAST_FEATURE_NAME);
+      _glbCacheSubs = newGlbCache();
 
-    argsFeatureId = getNumberForFeatureName(ARGS_FEATURE_NAME);
+      // _grammarTypes = 1; // only the TOP type is a proper type
 
-    keyargMarkerPath = new ArrayList<Short>(1);
-    keyargMarkerPath.add(getNumberForFeatureName("KEY-ARG"));
+      if (PRECOMPUTE_GLBS) precomputeGlbTable();
 
-    _glbCache = new TLongIntHashMap(30000, 0.5f, 0, -2);
+      if (GLB_CACHE_FILE != null && new File(GLB_CACHE_FILE).exists()) {
+        mapGlbCache(new File(GLB_CACHE_FILE));
+      }
+
+      TFS.initQuickCheck(this);
 
-    _glbCacheSubs = new TLongIntHashMap(30000, 0.5f, 0, -2);
+      if (PRELOAD_RULE_FS) {
+        for (int type : getRuleTypes()) getFS(type);
+      }
+    } finally {
+      DagNode.setThreadGrammar(previous);
+    }
+    if (makeDefault) TFS.setGrammar(this);
+  }
 
-    // _grammarTypes = 1; // only the TOP type is a proper type
+  /** Call task with this grammar as the grammar of the current thread, see
+   *  DagNode.setThreadGrammar(), and return its result
+   */
+  public <T> T call(Callable<T> task) throws Exception {
+    FSGrammar previous = DagNode.setThreadGrammar(this);
+    try {
+      return task.call();
+    } finally {
+      DagNode.setThreadGrammar(previous);
+    }
+  }
 
-    TFS.setGrammar(this);
+  /** Run task with this grammar as the grammar of the current thread */
+  public void run(Runnable task) {
+    FSGrammar previous = DagNode.setThreadGrammar(this);
+    try {
+      task.run();
+    } finally {
+      DagNode.setThreadGrammar(previous);
+    }
   }
 
   /* ======================================================================
@@ -361,6 +680,31 @@ public class FSGrammar {
     return ! _featuresToDelete.contains(feature);
   }
 
+  /** If a node of the given type with noFeatures edges has exactly the
+   *  appropriate features of its type, return a table that contains the
+   *  position of every feature in the node's sorted edge arrays, or -1 for
+   *  features not in the set. Return null otherwise.
+   */
+  short[] getFeatureSlots(int type, int noFeatures) {
+    if (_featSet == null || type < 0 || type >= _featSet.length) return null;
+    int set = _featSet[type];
+    short[] descriptor = _featSetDescriptors[set];
+    if (descriptor == null || descriptor.length != noFeatures) return null;
+    short[] slots = _featSetSlots[set];
+    if (slots == null) {
+      // another thread may compute the same table, which does no harm
+      short[] sorted = descriptor.clone();
+      Arrays.sort(sorted);
+      slots = new short[_featureNo];
+      Arrays.fill(slots, (short) -1);
+      for (short i = 0; i < sorted.length; ++i) {
+        slots[sorted[i]] = i;
+      }
+      _featSetSlots[set] = slots;
+    }
+    return slots;
+  }
+
   /** Return the type introducing a feature */
   public int getAppropriateType(short feature) {
     return _appType[feature];
@@ -394,27 +738,38 @@ public class FSGrammar {
     return (type >= _firstLeafType) && (type < _typeNo);
   }
 
+  /** Return true if the type was created at runtime, see
+   *  getNumberForTypeName(). Such a type is an atom directly below the string
+   *  type.
+   */
+  public boolean isDynamicType(int type) { return (type >= _grammarTypes); }
+
   /** Return the type id for the given type name, or BOTTOM_TYPE, if
    *  the name is not known
    */
   public int getTypeId(String typeName) {
-    return (this._typeIdMap.contains(typeName)
-        ? this._typeIdMap.getId(typeName) : BOTTOM_TYPE);
+    if (this._typeIdMap.contains(typeName))
+      return this._typeIdMap.getId(typeName);
+    int result = _dynamicTypes.getId(typeName);
+    return (result < 0) ? BOTTOM_TYPE : result;
   }
 
   /** Return the type name for the given type id, or null, if the id is not
    *  known
    */
-  public String getTypeName(int type) { return this._typeIdMap.fromId(type); }
+  public String getTypeName(int type) {
+    return (isDynamicType(type)
+        ? _dynamicTypes.fromId(type) : this._typeIdMap.fromId(type));
+  }
 
-  /** create a new type id for the given name, or return a known one */
+  /** create a new type id for the given name, or return a known one. Unknown
+   *  names become dynamic atomic types, this may be called by parallel
+   *  threads.
+   */
   public int getNumberForTypeName(String typeName) {
     // obtain the type id for the type name
     if (! _typeIdMap.contains(typeName)) {
-      int result = _typeIdMap.register(typeName);
-      // if so, make it an atomic type
-      _type2Status.put(result, atomStatusId);
-      return result;
+      return _dynamicTypes.register(typeName);
     }
     return _typeIdMap.getId(typeName);
   }
@@ -432,36 +787,131 @@ public class FSGrammar {
     return _leaftypeParent[type - this._firstLeafType];
   }
 
-  /** return the supertype(s) of some type */
+  /** return the supertype(s) of some type. The result must not be modified.
+   */
   public int[] superTypes(int type) {
-    int[] result = null;
-    if (isLeafType(type)) {
-      result = new int[1];
-      result[0] = getLeafTypeParent(type);
-    } else {
-      TIntArrayList supers = _parents[type];
-      result = new int[supers.size()];
-      for (int i = 0; i < supers.size(); ++i) {
-        result[i] = supers.get(i);
+    if (isDynamicType(type)) return new int[] { stringTypeId };
+    return _superTypeArrays[type];
+  }
+
+  /** return the subtype(s) of some type (currently only for proper types,
+   *  null for leaf types). The result must not be modified.
+   */
+  public int[] subTypes(int type) {
+    if (isDynamicType(type)) return null;
+    return _subTypeArrays[type];
+  }
+
+  /* ======================================================================
+   * hierarchy index
+   * ====================================================================== */
+
+  private static int[] toArray(TIntArrayList list) {
+    return (list == null) ? new int[0] : list.toArray();
+  }
+
+  /** Compute the distance of type from the top type, using the distances
+   *  already stored in _topDistance
+   */
+  private int computeTopDistance(int type) {
+    if (_topDistance[type] == 0) {
+      int dist = Integer.MAX_VALUE;
+      if (type == TOP_TYPE) {
+        dist = 0;
+      } else {
+        for (int superType : _superTypeArrays[type]) {
+          dist = Math.min(dist, computeTopDistance(superType));
+        }
       }
+      _topDistance[type] = dist + 1;
     }
-    return result;
+    return _topDistance[type];
   }
 
-  /** return the subtype(s) of some type (currently only for proper types */
-  public int[] subTypes(int type) {
-    int[] result = null;
-    if (isLeafType(type)) {
-      //result = new int[1];
-      //result[0] = getLeafTypeParent(type);
-    } else {
-      TIntArrayList subs = _children[type];
-      result = new int[subs.size()];
-      for (int i = 0; i < subs.size(); ++i) {
-        result[i] = subs.get(i);
+  /** Add the supertypes of the proper type to _ancestors, if not yet done */
+  private void computeAncestors(int type, boolean[] done) {
+    if (done[type]) return;
+    int start = type * _ancestorWords;
+    _ancestors[start + (type >>> 6)] |= 1L << type;
+    for (int parent : _superTypeArrays[type]) {
+      computeAncestors(parent, done);
+      int parentStart = parent * _ancestorWords;
+      for (int w = 0; w < _ancestorWords; ++w) {
+        _ancestors[start + w] |= _ancestors[parentStart + w];
+      }
+    }
+    done[type] = true;
+  }
+
+  /** Build the tables for constant time subsumption checks and top
+   *  distances of grammar types. Needs the hierarchy and the super types.
+   */
+  private void buildHierarchyIndex() {
+    _superTypeArrays = new int[_grammarTypes][];
+    _subTypeArrays = new int[_grammarTypes][];
+    for (int type = 0; type < _firstLeafType; ++type) {
+      _superTypeArrays[type] = toArray(_parents[type]);
+      _subTypeArrays[type] = toArray(_children[type]);
+    }
+    int leafTypes = _grammarTypes - _firstLeafType;
+    // the children of the leaf types in the forest of leaf types, as linked
+    // lists, and the roots of the trees
+    int[] firstChild = new int[leafTypes];
+    int[] nextSibling = new int[leafTypes];
+    Arrays.fill(firstChild, -1);
+    TIntArrayList roots = new TIntArrayList();
+    for (int leaf = leafTypes - 1; leaf >= 0; --leaf) {
+      int parent = _leaftypeParent[leaf];
+      _superTypeArrays[leaf + _firstLeafType] = new int[] { parent };
+      if (isLeafType(parent)) {
+        nextSibling[leaf] = firstChild[parent - _firstLeafType];
+        firstChild[parent - _firstLeafType] = leaf;
+      } else {
+        roots.add(leaf);
+      }
+    }
+    // number the leaf types in preorder, and pass the proper parent down
+    _leafProperParent = new int[leafTypes];
+    _leafPre = new int[leafTypes];
+    _leafEnd = new int[leafTypes];
+    int[] stack = new int[leafTypes];
+    int counter = 0;
+    for (int r = 0; r < roots.size(); ++r) {
+      int root = roots.get(r);
+      _leafProperParent[root] = _leaftypeParent[root];
+      int depth = 0;
+      stack[depth++] = root;
+      _leafPre[root] = counter++;
+      while (depth > 0) {
+        int leaf = stack[depth - 1];
+        // the next unvisited child is the one after the last visited one
+        int child = firstChild[leaf];
+        if (child >= 0) {
+          firstChild[leaf] = nextSibling[child];
+          _leafProperParent[child] = _leafProperParent[leaf];
+          _leafPre[child] = counter++;
+          stack[depth++] = child;
+        } else {
+          _leafEnd[leaf] = counter;
+          --depth;
+        }
+      }
+    }
+
+    _topDistance = new int[_grammarTypes];
+    for (int type = 0; type < _grammarTypes; ++type) {
+      computeTopDistance(type);
+    }
+
+    _ancestors = null;
+    if (_firstLeafType <= ANCESTOR_BITSET_LIMIT) {
+      _ancestorWords = (_firstLeafType + 63) >>> 6;
+      _ancestors = new long[_firstLeafType * _ancestorWords];
+      boolean[] done = new boolean[_firstLeafType];
+      for (int type = 0; type < _firstLeafType; ++type) {
+        computeAncestors(type, done);
       }
     }
-    return result;
   }
 
   /* ======================================================================
@@ -470,6 +920,11 @@ public class FSGrammar {
 
   /** Is type1 more general than type2, i.e. is type2 a subtype of type1? */
   public boolean subsumesType(int type1, int type2) {
+    if (type1 == type2 || type1 == TOP_TYPE) return true;
+    if (type1 > 0 && type2 > 0
+        && isGrammarType(type1) && isGrammarType(type2)) {
+      return subType(type2, type1);
+    }
     return (unifyTypesSubs(type1, type2) == type2);
   }
 
@@ -481,24 +936,42 @@ public class FSGrammar {
     if (t1 == BOTTOM_TYPE) return true;
     if (t2 == BOTTOM_TYPE) return false;
 
-    if (isLeafType(t1))
-      return subType(getLeafTypeParent(t1), t2);
+    if (isLeafType(t1)) {
+      if (isLeafType(t2))
+        return subTypeBothLeafTypes(t1, t2);
+      t1 = _leafProperParent[t1 - _firstLeafType];
+      if (t1 == t2) return true;
+    } else if (isLeafType(t2)) {
+      // a proper type is never below a leaf type
+      return false;
+    }
 
-    // t1 is not a leaf type:
+    // both are proper types
+    if (_ancestors != null) {
+      return (_ancestors[t1 * _ancestorWords + (t2 >>> 6)] & (1L << t2)) != 0;
+    }
     // return true if the code vector for t2 is more general than for t1
-    return subsumesCode(getBitcode(t2), getBitcode(t1));
+    return subsumesCode(t2, t1);
   }
 
   protected boolean subTypeBothLeafTypes(int t1, int t2) {
     if (t1 == t2) return true;
-    if (isLeafType(t1))
-      return subTypeBothLeafTypes(getLeafTypeParent(t1), t2);
-    return false;
+    int pre1 = _leafPre[t1 - _firstLeafType];
+    return _leafPre[t2 - _firstLeafType] <= pre1
+        && pre1 < _leafEnd[t2 - _firstLeafType];
   }
 
-  boolean[] lockSubs = { false };
+  /** Return the glb of a type t1 and a different dynamic type t2 > t1. A
+   *  dynamic type is only compatible with the string type and its super
+   *  types. The glb caches are not used for these.
+   */
+  private int dynamicGlb(int t1, int t2) {
+    if (t1 < 0 || isDynamicType(t1)) return BOTTOM_TYPE;
+    return (t1 == stringTypeId || subType(stringTypeId, t1))
+        ? t2 : BOTTOM_TYPE;
+  }
 
-  /** Fully thread safe by synchronizing the glb cache with an efficient lock
+  /** Fully thread safe, the glb cache is a concurrent map
    *
    *  This function is a duplicate of unifyTypes to keep the effect of
    *  type unifications separate from those of subsumption operations
@@ -517,21 +990,29 @@ public class FSGrammar {
     if (t1 == TOP_TYPE || t1 == t2)
       return t2;
 
-    if (! isGrammarType(t2)) return BOTTOM_TYPE;
+    if (isDynamicType(t2)) return dynamicGlb(t1, t2);
     // typeIdent2 may not be TOP_TYPE) since TOP has the
     // smallest ident and tI1 <= tI2
 
-    // now obtain the (unique long) integer code for the GLB of tI1 and tI2
-    // TODO this is wrong given that types could be added !
-    long idx = t2 + _typeNo * t1;
-    while (lockSubs[0]) {
-      synchronized(lockSubs) {
+    GlbTable table = _glbTable;
+    if (table != null && t2 < _firstLeafType) return table.glb(t1, t2);
 
-      }
-    }
+    // now obtain the (unique long) integer code for the GLB of tI1 and tI2
+    // dynamic types were handled above, so t1, t2 < _typeNo and idx is unique
+    long idx = t2 + (long) _typeNo * t1;
+    GlbCacheListener listener = _glbListener;
     int val = _glbCacheSubs.get(idx);
-    if (val != -2)
+    if (val != -2) {
+      if (listener != null) listener.cacheHit(true);
+      return val;
+    }
+    if (listener != null) listener.cacheMiss(true);
+    GlbCacheFile saved = _savedGlbs;
+    if (saved != null && (val = saved.getSubsGlb(t1, t2)) != -2) {
+      _glbCacheSubs.put(idx, val);
+      if (listener != null) listener.cacheInsert(true);
       return val;
+    }
 
     int result = BOTTOM_TYPE;
     // now distinguish between proper types and leaf types, since only
@@ -559,24 +1040,18 @@ public class FSGrammar {
 
         // since the type hierarchy is a BCPO (or equivalently, a LSL), the
         // inverse image of gamma is guaranteed to exist
-        result = getType(
-            unifyCodes(getBitcode(t2), getBitcode(t1)));
+        result = (listener == null)
+            ? unifyCodes(t2, t1) : timedUnifyCodes(t2, t1, listener);
       }
     }
 
-    synchronized(lockSubs) {
-      lockSubs[0] = true;
-      this._glbCacheSubs.put(idx, result);
-      lockSubs[0] = false;
-      lockSubs.notifyAll();
-    }
+    this._glbCacheSubs.put(idx, result);
+    if (listener != null) listener.cacheInsert(true);
 
     return result;
   }
 
-  boolean[] lock = { false };
-
-  /** Fully thread safe by synchronizing the glb cache with an efficient lock */
+  /** Fully thread safe, the glb cache is a concurrent map */
   public int unifyTypes(int t1, int t2) {
     // swap the parameter value in order to guarantee that
     // typeIdent1 <= typeIdent2 is ALWAYS the case;
@@ -591,20 +1066,30 @@ public class FSGrammar {
     if (t1 == TOP_TYPE || t1 == t2)
       return t2;
 
+    if (isDynamicType(t2)) return dynamicGlb(t1, t2);
+
     // typeIdent2 may not be TOP_TYPE) since TOP has the
     // smallest ident and tI1 <= tI2
 
-    // now obtain the (unique long) integer code for the GLB of tI1 and tI2
-    // TODO this is wrong given that types could be added !
-    long idx = t2 + _typeNo * t1;
-    while (lock[0]) {
-      synchronized(lock) {
+    GlbTable table = _glbTable;
+    if (table != null && t2 < _firstLeafType) return table.glb(t1, t2);
 
-      }
-    }
+    // now obtain the (unique long) integer code for the GLB of tI1 and tI2
+    // dynamic types were handled above, so t1, t2 < _typeNo and idx is unique
+    long idx = t2 + (long) _typeNo * t1;
+    GlbCacheListener listener = _glbListener;
     int val = _glbCache.get(idx);
-    if (val != -2)
+    if (val != -2) {
+      if (listener != null) listener.cacheHit(false);
+      return val;
+    }
+    if (listener != null) listener.cacheMiss(false);
+    GlbCacheFile saved = _savedGlbs;
+    if (saved != null && (val = saved.getGlb(t1, t2)) != -2) {
+      _glbCache.put(idx, val);
+      if (listener != null) listener.cacheInsert(false);
       return val;
+    }
 
     int result = BOTTOM_TYPE;
     // now distinguish between proper types and leaf types, since only
@@ -632,84 +1117,240 @@ public class FSGrammar {
 
         // since the type hierarchy is a BCPO (or equivalently, a LSL), the
         // inverse image of gamma is guaranteed to exist
-        result = getType(
-            unifyCodes(getBitcode(t2), getBitcode(t1)));
+        result = (listener == null)
+            ? unifyCodes(t2, t1) : timedUnifyCodes(t2, t1, listener);
       }
     }
 
-    synchronized(lock) {
-      lock[0] = true;
-      this._glbCache.put(idx, result);
-      lock[0] = false;
-      lock.notifyAll();
-    }
+    this._glbCache.put(idx, result);
+    if (listener != null) listener.cacheInsert(false);
 
     return result;
   }
 
+  /** unifyCodes(), reporting the time it takes to the listener */
+  private int timedUnifyCodes(int type1, int type2,
+      GlbCacheListener listener) {
+    long start = System.nanoTime();
+    int result = unifyCodes(type1, type2);
+    listener.bitcodeMeet(System.nanoTime() - start);
+    return result;
+  }
+
+  /** Install a listener that is informed about the use of the glb caches, or
+   *  remove it with null. Without a listener, the caches are not instrumented.
+   */
+  public void setGlbCacheListener(GlbCacheListener listener) {
+    _glbListener = listener;
+  }
+
+  /** Return the listener of the glb caches, or null */
+  public GlbCacheListener getGlbCacheListener() {
+    return _glbListener;
+  }
+
+  /** Use \p cache to remember failed unifications between TFSs of this
+   *  grammar that have an ID, or switch this off with null, see
+   *  TFS.setFailureCache()
+   */
+  public void setFailureCache(FailureCache cache) {
+    _failureCache = cache;
+  }
+
+  /** Return the failure cache of this grammar, or null if there is none */
+  public FailureCache getFailureCache() {
+    return _failureCache;
+  }
+
+  /** Switch the counting of wellformedness expansions per type on or off.
+   *  Switching it on resets the counters.
+   */
+  public void setCountExpansions(boolean on) {
+    _expansions = on ? new AtomicLongArray(_typeNo) : null;
+    _constraintCopies = on ? new AtomicLongArray(_typeNo) : null;
+  }
+
+  /** Return how often the constraint of type was unified into a structure
+   *  whose type became type, or -1 if expansions are not counted
+   */
+  public long getExpansionCount(int type) {
+    AtomicLongArray counts = _expansions;
+    return (counts == null) ? -1 : counts.get(type);
+  }
+
+  /** Return how often the constraint of type had to be copied for an
+   *  expansion, or -1 if expansions are not counted. Other expansions reused
+   *  an earlier copy.
+   */
+  public long getConstraintCopyCount(int type) {
+    AtomicLongArray counts = _constraintCopies;
+    return (counts == null) ? -1 : counts.get(type);
+  }
+
+  void countExpansion(int type) {
+    AtomicLongArray counts = _expansions;
+    if (counts != null) counts.incrementAndGet(type);
+  }
+
+  void countConstraintCopy(int type) {
+    AtomicLongArray counts = _constraintCopies;
+    if (counts != null) counts.incrementAndGet(type);
+  }
+
+  /** Return true if other has the same types and type hierarchy as this
+   *  grammar, so that all glbs of grammar types are the same. The names of
+   *  the types are not compared.
+   */
+  public boolean sameHierarchy(FSGrammar other) {
+    return _typeNo == other._typeNo
+        && _firstLeafType == other._firstLeafType
+        && _codeWords == other._codeWords
+        && Arrays.equals(_bitcodes, other._bitcodes)
+        && Arrays.equals(_leaftypeParent, other._leaftypeParent);
+  }
+
+  /** Copy the entries of the glb caches of old, a previous version of this
+   *  grammar, into the caches of this grammar, if both have the same type
+   *  hierarchy. Return the number of copied entries, or -1 if the
+   *  hierarchies differ.
+   */
+  public int rollForwardGlbCache(FSGrammar old) {
+    if (! sameHierarchy(old)) return -1;
+    return copyEntries(old._glbCache, _glbCache)
+        + copyEntries(old._glbCacheSubs, _glbCacheSubs);
+  }
+
+  /** Put all entries of from into to, and return their number */
+  private static int copyEntries(LongIntCache from, final LongIntCache to) {
+    final int[] copied = { 0 };
+    from.forEachEntry(new TLongIntProcedure() {
+      @Override
+      public boolean execute(long key, int glb) {
+        to.put(key, glb);
+        ++copied[0];
+        return true;
+      }
+    });
+    return copied[0];
+  }
+
+  /** Compute the glb of two proper types from their bit codes */
+  int computeProperGlb(int t1, int t2) {
+    return unifyCodes(t2, t1);
+  }
+
+  /** Compute the glbs of all pairs of proper types in parallel, so that
+   *  unifyTypes and unifyTypesSubs find them with one table lookup. Up to
+   *  DENSE_GLB_TABLE_LIMIT proper types, a dense matrix is used, otherwise
+   *  a sparse table that only stores the non-bottom glbs.
+   */
+  public void precomputeGlbTable() {
+    long time = System.currentTimeMillis();
+    _glbTable = (_firstLeafType <= DENSE_GLB_TABLE_LIMIT
+                 && _firstLeafType < Character.MAX_VALUE)
+        ? GlbTable.dense(this, _firstLeafType)
+        : GlbTable.sparse(this, _firstLeafType);
+    infoLogger.info("glb table for " + _firstLeafType + " proper types: "
+        + ((System.currentTimeMillis() - time) / 1000.0) + " secs");
+  }
+
+  /** Return a new, empty glb cache, bounded if GLB_CACHE_BUDGET is set */
+  private LongIntCache newGlbCache() {
+    if (GLB_CACHE_BUDGET > 0) {
+      if ((long) _typeNo * _typeNo <= BoundedLongIntCache.MAX_KEY
+          && _typeNo <= BoundedLongIntCache.MAX_VALUE) {
+        return new BoundedLongIntCache(GLB_CACHE_BUDGET, -2);
+      }
+      LOGGER.warn("Too many types for a bounded glb cache: " + _typeNo);
+    }
+    return new ConcurrentLongIntMap(30000, -2);
+  }
+
   /** Save a filled GLB cache to file, as a triple of type1, type2, result.
    *  type2 is always smaller than type1, and to reconstruct the cache,
    *  the pair (type1 + _typeNo * type2, result) must be put into the map.
    */
   public void dumpGlbCache(final Writer out) {
-    synchronized(_glbCache) {
-      _glbCache.forEachEntry(new TLongIntProcedure() {
-        private final String nl = System.getProperty("line.separator");
-        @Override
-        public boolean execute(long argTypes, int resType) {
-          try {
-            int type1 = (int) (argTypes % _typeNo);
-            int type2 = (int) (argTypes / _typeNo);
-            assert(type1 + _typeNo * type2 == argTypes);
-            out.append(Integer.toString(type1)).append(' ');
-            out.append(Integer.toString(type2)).append(' ');
-            out.append(Integer.toString(resType)).append(nl);
-          } catch (IOException ex) {
-            LOGGER.error("Error during dump of glb cache: " + ex);
-            return false;
-          }
-          return true;
+    _glbCache.forEachEntry(new TLongIntProcedure() {
+      private final String nl = System.getProperty("line.separator");
+      @Override
+      public boolean execute(long argTypes, int resType) {
+        try {
+          int type1 = (int) (argTypes % _typeNo);
+          int type2 = (int) (argTypes / _typeNo);
+          assert(type1 + (long) _typeNo * type2 == argTypes);
+          out.append(Integer.toString(type1)).append(' ');
+          out.append(Integer.toString(type2)).append(' ');
+          out.append(Integer.toString(resType)).append(nl);
+        } catch (IOException ex) {
+          LOGGER.error("Error during dump of glb cache: " + ex);
+          return false;
         }
-      });
-    }
+        return true;
+      }
+    });
   }
 
 
-  /** Load a saved GLB cache from a file with triples of type1, type2, result.
+  /** Load a saved GLB cache from a file with triples of type1, type2, result,
+   *  install it as the glb cache of this grammar and return it.
    *  type2 is always smaller than type1, and to reconstruct the cache,
    *  the pair (type1 + _typeNo * type2, result) must be put into the map.
    */
-  public TLongIntMap undumpGlbCache(Reader inReader) {
-    final TLongIntMap cache = new TLongIntHashMap();
+  public ConcurrentLongIntMap undumpGlbCache(Reader inReader) {
+    final ConcurrentLongIntMap cache = new ConcurrentLongIntMap(30000, -2);
     final BufferedReader in = new BufferedReader(inReader);
     String line;
-    synchronized(cache) {
-      cache.clear();
-      try {
-        while ((line = in.readLine()) != null) {
-          String[] entryStrings = line.split("\\s+");
-          assert(entryStrings.length == 3);
-          int type1 = Integer.parseInt(entryStrings[0]);
-          int type2 = Integer.parseInt(entryStrings[1]);
-          int resType = Integer.parseInt(entryStrings[2]);
-          cache.put(type1 + _typeNo * type2, resType);
-        }
-      }
-      catch (IOException ex) {
-        LOGGER.error("Error while loading glb cache: " + ex);
-      }
-      catch (NumberFormatException ex) {
-        LOGGER.error("Error while loading glb cache: " + ex);
+    try {
+      while ((line = in.readLine()) != null) {
+        String[] entryStrings = line.split("\\s+");
+        assert(entryStrings.length == 3);
+        int type1 = Integer.parseInt(entryStrings[0]);
+        int type2 = Integer.parseInt(entryStrings[1]);
+        int resType = Integer.parseInt(entryStrings[2]);
+        cache.put(type1 + (long) _typeNo * type2, resType);
       }
     }
+    catch (IOException ex) {
+      LOGGER.error("Error while loading glb cache: " + ex);
+    }
+    catch (NumberFormatException ex) {
+      LOGGER.error("Error while loading glb cache: " + ex);
+    }
+    _glbCache = cache;
     return cache;
   }
 
+  /** Save the glb caches in binary form, see mapGlbCache(). The entries of a
+   *  currently mapped cache file are saved, too.
+   */
+  public void saveGlbCache(File file) throws IOException {
+    GlbCacheFile.write(file, _description, _grammarTypes, _typeNo,
+        _glbCache, _glbCacheSubs, _savedGlbs);
+  }
+
+  /** Map a binary glb cache file written by saveGlbCache(). Glbs that are not
+   *  in the in-memory caches are then searched in the mapped file. The file
+   *  is only used if it was written for a grammar with the same description
+   *  and number of types.
+   *  @return true if the file could be used, false otherwise
+   */
+  public boolean mapGlbCache(File file) {
+    try {
+      _savedGlbs = GlbCacheFile.open(file, _description, _grammarTypes);
+      return true;
+    } catch (IOException ex) {
+      LOGGER.warn("Glb cache not used: " + ex.getMessage());
+      return false;
+    }
+  }
+
 
   /** Return a map of second unification arg --> result type for a given
    *  input type.
    */
-  public TIntIntMap getUnificationTypes(TLongIntMap cache, final int type) {
+  public TIntIntMap getUnificationTypes(LongIntCache cache,
+      final int type) {
     final TIntIntMap result = new TIntIntHashMap();
     cache.forEachEntry(new TLongIntProcedure() {
       @Override
@@ -726,22 +1367,12 @@ public class FSGrammar {
     return result;
   }
 
-  private TIntIntMap _dist = new TIntIntHashMap();
-
+  /** Return the length of the shortest path from the top type to type,
+   *  counting both ends, i.e., the top type has distance one.
+   */
   public int getTopDistance(int type) {
-    if (_dist.containsKey(type))
-      return _dist.get(type);
-    int dist = Integer.MAX_VALUE;
-    if (type == TOP_TYPE) {
-      dist = 0;
-    } else {
-      for (int superType : superTypes(type)) {
-        dist = Math.min(dist, getTopDistance(superType));
-      }
-    }
-    ++dist;
-    _dist.put(type, dist);
-    return dist;
+    if (isDynamicType(type)) return _topDistance[stringTypeId] + 1;
+    return _topDistance[type];
   }
 
   /* ======================================================================
@@ -780,6 +1411,7 @@ public class FSGrammar {
 
   /** Return the status id for the given type */
   public int getStatusForType(int type) {
+    if (isDynamicType(type)) return atomStatusId;
     return this._type2Status.get(type);
   }
 
@@ -801,7 +1433,47 @@ public class FSGrammar {
 
   /** get the expanded (type) FS for the given type */
   public TFS getFS(int type) {
-    return (isGrammarType(type) ? _typeFS[type] : new TFS(type));
+    if (! isGrammarType(type)) return new TFS(type);
+    TFS result = _typeFS.get(type);
+    return (result != null) ? result : buildTypeFS(type);
+  }
+
+  /** Build the FS of the given type from the grammar file. If other threads
+   *  do the same concurrently, all get the FS of the first one.
+   */
+  private TFS buildTypeFS(int type) {
+    PetUndumper u = _constraints.duplicate();
+    try {
+      u.seekAbsolute(_typeFSOffset[type]);
+    } catch (IOException ex) {
+      // this can not happen, since the file is mapped into memory
+      throw new IllegalStateException(ex);
+    }
+    FSGrammar previous = DagNode.setThreadGrammar(this);
+    TFS result;
+    try {
+      result = TFS.buildFS(u);
+    } finally {
+      DagNode.setThreadGrammar(previous);
+    }
+    return _typeFS.compareAndSet(type, null, result)
+        ? result : _typeFS.get(type);
+  }
+
+  /** get the expanded (type) FS for the given type as Dag, or null if this
+   *  FS has no features
+   */
+  public Dag getTypeDag(int type) {
+    if (! isGrammarType(type) || ! getFS(type).dag().getEdgeIterator().hasNext())
+      return null;
+    // Dags are immutable, so it does not matter if two threads convert the
+    // same type dag concurrently
+    Dag result = _typeDags[type];
+    if (result == null) {
+      result = Dag.DagnodeToDag(getFS(type).dag());
+      _typeDags[type] = result;
+    }
+    return result;
   }
 
   /** get the expanded (type) FS for the given type */
@@ -857,12 +1529,12 @@ public class FSGrammar {
 
     // establish a mapping from ints onto status names
     for (int i = 0; i < statusNo; ++i)
-      _statusIdMap.register(u.undumpString());
+      _statusIdMap.register(name(u.undumpString()));
 
     // read in the type tables and type -> status mappings
     _typeIdMap = new IntIDMap<String>(this._typeNo);
     for (int i = 0; i < _typeNo; i++) {
-      String typeName = u.undumpString();
+      String typeName = name(u.undumpString());
       int newId = _typeIdMap.register(typeName);
       assert(newId == i);
       int statId = u.undumpInt();
@@ -872,12 +1544,17 @@ public class FSGrammar {
     // establish the feature mapping
     _featureIdMap = new ShortIDMap<String>(_featureNo);
     for (short i = (short) 0; i < _featureNo; ++i) {
-      String featureName = u.undumpString();
+      String featureName = name(u.undumpString());
       int newId = _featureIdMap.register(featureName);
       assert(newId == i);
     }
   }
 
+  /** Return the name, interned if INTERN_NAMES is set */
+  private static String name(String name) {
+    return INTERN_NAMES ? name.intern() : name;
+  }
+
   /** Read the bit codes and the table of leaf types from the undumper
    *  Format:
    *  bitcode_length (int)
@@ -893,33 +1570,13 @@ public class FSGrammar {
     // compute the number of ints for encoding the proper types
     int codesize = (noOfBits / FSGrammar.INT_SIZE) + 1;
 
-    // create an array for all proper types containing the bit vectors of length
-    // codesize
-    _bitcode = new int[_firstLeafType][codesize];
-
-    // and the mapping from bit vectors to types
-    this._bitcodeToType = new TObjectIntCustomHashMap<int[]>(
-        new HashingStrategy<int[]>() {
-          private static final long serialVersionUID = 1L;
-
-          public int computeHashCode(int[] arg) {
-            int i = 0;
-            while (i < arg.length && arg[i] == 0) { ++i; }
-            return (i * INT_SIZE)
-                + Integer.numberOfTrailingZeros(arg[i]);
-          }
-
-          public boolean equals(int[] arg0, int[] arg1) {
-            return Arrays.equals(arg0, arg1);
-          }
-        }, _firstLeafType);
-
     // read in the code vector for the proper types
+    int[][] codes = new int[_firstLeafType][];
     for (int i = 0; i < _firstLeafType; ++i) {
-      int[] code = u.undumpBitcode(codesize);
-      _bitcodeToType.put(code, i);
-      _bitcode[i] = code;
+      codes[i] = u.undumpBitcode(codesize);
     }
+    // and store them as long words, with the mapping from codes to types
+    initBitcodes(codes, codesize);
 
     // For every leaf type, store its unique parent
     int leafTypes = _grammarTypes - _firstLeafType;
@@ -989,6 +1646,7 @@ public class FSGrammar {
 
       _featSetDescriptors[i] = featSet;
     }
+    _featSetSlots = new short[nFeatSets][];
 
     // read appropriate sorts table
     _appType = new int[_featureNo];
@@ -1016,22 +1674,168 @@ public class FSGrammar {
   }
   */
 
-  /** Read the (expanded, maybe unfilled) feature structures from the stream.
+  /** Read the (expanded, maybe unfilled) feature structures from the stream,
+   *  or only their positions if LAZY_TYPE_FS is set.
    * @param u the undumper to read from
    */
-  private void undumpDags(PetUndumper u) {
+  private void undumpDags(PetUndumper u) throws IOException {
     infoLogger.info("reading constraints ...");
 
-    _typeFS = new TFS[this._typeNo];
+    _typeFS = new AtomicReferenceArray<TFS>(this._typeNo);
+    _typeDags = new Dag[this._typeNo];
+    if (LAZY_TYPE_FS || PARALLEL_LOAD) {
+      _constraints = u;
+      _typeFSOffset = new long[this._typeNo];
+      for (int i = 0; i < this._typeNo; ++i) {
+        _typeFSOffset[i] = u.getPosition();
+        DagNode.skipFS(u);
+      }
+      if (! LAZY_TYPE_FS) buildAllTypeFS();
+      return;
+    }
+    _constraints = null;
+    _typeFSOffset = null;
     // successively read in the dumped FSs
     for (int i = 0; i < this._typeNo; ++i) {
-      _typeFS[i] = TFS.buildFS(u);
+      _typeFS.set(i, TFS.buildFS(u));
     }
     LOGGER.debug("  # created nodes: " + DagNode.totalNoNodes);
     LOGGER.debug("  # created arcs: " + DagNode.totalNoArcs);
   }
 
 
+  /** Build the structures of all types from their recorded positions, in
+   *  parallel slices if PARALLEL_LOAD is set.
+   */
+  private void buildAllTypeFS() throws IOException {
+    if (PARALLEL_LOAD) {
+      int slices = 4 * ForkJoinPool.getCommonPoolParallelism();
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(slices);
+      for (int s = 0; s < slices; ++s) {
+        final int from = (int)((long) _typeNo * s / slices);
+        final int to = (int)((long) _typeNo * (s + 1) / slices);
+        tasks.add(new Callable<Void>() {
+          @Override
+          public Void call() {
+            for (int type = from; type < to; ++type) buildTypeFS(type);
+            return null;
+          }
+        });
+      }
+      runParallel(tasks);
+    } else {
+      for (int type = 0; type < _typeNo; ++type) buildTypeFS(type);
+    }
+    _constraints = null;
+    _typeFSOffset = null;
+  }
+
+  /** Read the hierarchy, feature table, constraint and supertype sections
+   *  one after the other.
+   */
+  private void undumpSections(TableOfContents toc, PetUndumper u)
+  throws IOException {
+    // read in the hierarchy,
+    toc.gotoSection(TableOfContents.Section.HIERARCHY);
+    undumpHierarchy(u);
+
+    // tables for fixed arity encoding of feature structures
+    toc.gotoSection(TableOfContents.Section.FEATTABS);
+    undumpFeatureTables(u);
+
+    // read in the full form "morphology"
+    //toc.gotoSection(TableOfContents.Section.FULLFORMS);
+    //undumpFullforms(u);
+
+    // read in the inflection rules morphology
+    //toc.gotoSection(TableOfContents.Section.INFLR);
+    //undumpInflectionRules(u);
+
+    // read the irregular morphological forms
+    //toc.gotoSection(TableOfContents.Section.IRREGS);
+    //undumpIrregulars(u);
+
+    // read in the constraints for proper and leaf types
+    toc.gotoSection(TableOfContents.Section.CONSTRAINTS);
+    undumpDags(u);
+
+    // read the properties for the statistical models
+    //toc.gotoSection(TableOfContents.Section.PROPERTIES);
+    //undumpProperties(u);
+
+    // read in the hierarchy of proper types
+    toc.gotoSection(TableOfContents.Section.SUPERTYPES);
+    undumpSuperTypes(u);
+  }
+
+  /** Read the hierarchy, feature table, constraint and supertype sections at
+   *  the same time, each with its own undumper.
+   */
+  private void undumpSectionsParallel(final TableOfContents toc)
+  throws IOException {
+    final PetUndumper hierarchy =
+        toc.sectionReader(TableOfContents.Section.HIERARCHY);
+    final PetUndumper featTabs =
+        toc.sectionReader(TableOfContents.Section.FEATTABS);
+    final PetUndumper constraints =
+        toc.sectionReader(TableOfContents.Section.CONSTRAINTS);
+    final PetUndumper superTypes =
+        toc.sectionReader(TableOfContents.Section.SUPERTYPES);
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        undumpHierarchy(hierarchy);
+        return null;
+      }
+    });
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() {
+        undumpFeatureTables(featTabs);
+        return null;
+      }
+    });
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        undumpDags(constraints);
+        return null;
+      }
+    });
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() {
+        undumpSuperTypes(superTypes);
+        return null;
+      }
+    });
+    runParallel(tasks);
+  }
+
+  /** Run the tasks in the common fork-join pool and wait for all of them.
+   *  Exceptions of the tasks are rethrown.
+   */
+  private static void runParallel(List<Callable<Void>> tasks)
+  throws IOException {
+    List<Future<Void>> futures;
+    try {
+      futures = ForkJoinPool.commonPool().invokeAll(tasks);
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading grammar", ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IllegalStateException(cause);
+    }
+  }
+
   /** Initialise the array of maximally appropriate types under a feature */
   private void initializeMaxapp() {
     _maxAppType = new int[_featureNo];
@@ -1039,7 +1843,7 @@ public class FSGrammar {
       _maxAppType[i] = 0;
       // the direct access to typedag[] is ok here because no dynamic type
       // can be appropriate for a feature
-      DagNode cval = _typeFS[_appType[i]].dag().getValue(i);
+      DagNode cval = getFS(_appType[i]).dag().getValue(i);
       if(cval != null)
         _maxAppType[i] = cval.getType();
     }
@@ -1047,19 +1851,38 @@ public class FSGrammar {
 
   /**
    * loadGrammar() contains the grammar loading calls from the PET
-   * tGrammar constructor.
+   * tGrammar constructor. The program is terminated if the file can not be
+   * read.
    */
   public void loadGrammar(String filename) {
+    try {
+      readGrammar(filename);
+    } catch (IOException ioe) {
+      LOGGER.error("Error while reading grammar from " + filename + ": " + ioe);
+      System.exit(1);
+    }
+  }
+
+  /** Read the grammar from the given file, see loadGrammar()
+   *  @throws IOException if the file can not be read or is truncated
+   */
+  private void readGrammar(String filename) throws IOException {
     long time = System.currentTimeMillis();
+    if (GRAMMAR_SNAPSHOT && loadSnapshot(new File(filename))) {
+      infoLogger.info("overall load time (snapshot): "
+          + ((System.currentTimeMillis() - time) / 1000.0) + " secs");
+      return;
+    }
     PetUndumper u = null;
     // read in the binary file
     try {
       // now read the complete grm file into the byte array
-      u = new PetUndumper();
+      u = new PetUndumper(_charset);
       u.open(new File(filename));
 
       infoLogger.info("reading table of contents ...");
       TableOfContents toc = new TableOfContents(u);
+      _description = toc.grammarDescription();
 
       // read symbol tables for int-to-type/feature mappings;
       toc.gotoSection(TableOfContents.Section.SYMTAB);
@@ -1069,42 +1892,19 @@ public class FSGrammar {
       //toc.gotoSection(TableOfContents.Section.PRINTNAMES);
       //undumpPrintNames(u);
 
-      // read in the hierarchy,
-      toc.gotoSection(TableOfContents.Section.HIERARCHY);
-      undumpHierarchy(u);
-
-      // tables for fixed arity encoding of feature structures
-      toc.gotoSection(TableOfContents.Section.FEATTABS);
-      undumpFeatureTables(u);
-
-      // read in the full form "morphology"
-      //toc.gotoSection(TableOfContents.Section.FULLFORMS);
-      //undumpFullforms(u);
-
-      // read in the inflection rules morphology
-      //toc.gotoSection(TableOfContents.Section.INFLR);
-      //undumpInflectionRules(u);
-
-      // read the irregular morphological forms
-      //toc.gotoSection(TableOfContents.Section.IRREGS);
-      //undumpIrregulars(u);
-
-      // read in the constraints for proper and leaf types
-      toc.gotoSection(TableOfContents.Section.CONSTRAINTS);
-      undumpDags(u);
+      if (PARALLEL_LOAD) {
+        // all other sections only depend on the symbol tables
+        undumpSectionsParallel(toc);
+      } else {
+        undumpSections(toc, u);
+      }
       initializeMaxapp(); // needs feature tables AND dags
+      buildHierarchyIndex();
 
-      // read the properties for the statistical models
-      //toc.gotoSection(TableOfContents.Section.PROPERTIES);
-      //undumpProperties(u);
-
-      // read in the hierarchy of proper types
-      toc.gotoSection(TableOfContents.Section.SUPERTYPES);
-      undumpSuperTypes(u);
-
-    } catch (IOException ioe) {
-      LOGGER.error("Error while reading grammar from " + filename + ": " + ioe);
-      System.exit(1);
+      if (GRAMMAR_SNAPSHOT) saveSnapshot(new File(filename), toc);
+    } catch (IndexOutOfBoundsException ex) {
+      // a section ends after the end of the file
+      throw new IOException("Grammar file " + filename + " is truncated", ex);
     } finally {
       try {
         // and finally close the stream and free the memory
@@ -1119,6 +1919,241 @@ public class FSGrammar {
   }
 
 
+  /* ======================================================================
+   * Grammar snapshots
+   * ====================================================================== */
+
+  private static final int SNAPSHOT_MAGIC = 0x54465353;
+
+  private static final int SNAPSHOT_VERSION = 3;
+
+  /** Return the snapshot file of the given grammar file */
+  public static File snapshotFile(File grammarFile) {
+    return new File(grammarFile.getPath() + ".snapshot");
+  }
+
+  /** Write the snapshot of this grammar, which has just been loaded from
+   *  grammarFile. A failure is only logged, since the grammar is usable
+   *  without the snapshot.
+   */
+  private void saveSnapshot(File grammarFile, TableOfContents toc) {
+    File file = snapshotFile(grammarFile);
+    File tmp = new File(file.getPath() + ".tmp");
+    PetDumper d = new PetDumper(StandardCharsets.UTF_8);
+    try {
+      d.open(tmp);
+      try {
+        d.dumpInt(SNAPSHOT_MAGIC);
+        d.dumpInt(SNAPSHOT_VERSION);
+        d.dumpLong(grammarFile.length());
+        d.dumpLong(grammarFile.lastModified());
+        d.dumpString(_charset.name());
+        dumpSnapshot(d, toc.sectionReader(TableOfContents.Section.CONSTRAINTS));
+      } finally {
+        d.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      infoLogger.info("wrote grammar snapshot " + file);
+    } catch (IOException ex) {
+      LOGGER.warn("Could not write grammar snapshot " + file + ": " + ex);
+      tmp.delete();
+    }
+  }
+
+  /** Load the snapshot of grammarFile, if there is one that was written for
+   *  the current version of the file and the charset of this grammar.
+   *  @return true if the snapshot was loaded, false otherwise
+   */
+  private boolean loadSnapshot(File grammarFile) {
+    File file = snapshotFile(grammarFile);
+    if (! file.exists()) return false;
+    PetUndumper u = new PetUndumper(StandardCharsets.UTF_8);
+    try {
+      u.open(file);
+      if (u.undumpInt() != SNAPSHOT_MAGIC
+          || u.undumpInt() != SNAPSHOT_VERSION
+          || u.undumpLong() != grammarFile.length()
+          || u.undumpLong() != grammarFile.lastModified()
+          || ! u.undumpString().equals(_charset.name())) {
+        infoLogger.info("grammar snapshot " + file + " is outdated");
+        return false;
+      }
+      undumpSnapshot(u);
+      return true;
+    } catch (IOException ex) {
+      LOGGER.warn("Could not read grammar snapshot " + file + ": " + ex);
+    } catch (RuntimeException ex) {
+      LOGGER.warn("Corrupt grammar snapshot " + file + ": " + ex);
+    } finally {
+      try {
+        u.close();
+      } catch (IOException ex) {
+        // the snapshot was read or is not used, so this does not matter
+      }
+    }
+    return false;
+  }
+
+  private static void dumpIntArrays(PetDumper d, int[][] arrays)
+  throws IOException {
+    d.dumpInt(arrays.length);
+    for (int[] array : arrays) d.dumpIntArray(array);
+  }
+
+  private static int[][] undumpIntArrays(PetUndumper u) {
+    int[][] result = new int[u.undumpInt()][];
+    for (int i = 0; i < result.length; ++i) result[i] = u.undumpIntArray();
+    return result;
+  }
+
+  private static void dumpLists(PetDumper d, TIntArrayList[] lists)
+  throws IOException {
+    d.dumpInt(lists.length);
+    for (TIntArrayList list : lists) {
+      d.dumpIntArray(list == null ? null : list.toArray());
+    }
+  }
+
+  private static TIntArrayList[] undumpLists(PetUndumper u) {
+    TIntArrayList[] result = new TIntArrayList[u.undumpInt()];
+    for (int i = 0; i < result.length; ++i) {
+      int[] array = u.undumpIntArray();
+      if (array != null) result[i] = new TIntArrayList(array);
+    }
+    return result;
+  }
+
+  /** Write all tables of this grammar to the snapshot, and the dumped type
+   *  structures, which are copied from the CONSTRAINTS section unchanged.
+   *  undumpSnapshot() must read everything in the same order.
+   */
+  private void dumpSnapshot(PetDumper d, PetUndumper constraints)
+  throws IOException {
+    d.dumpString(_description == null ? "" : _description);
+
+    // symbol tables
+    d.dumpInt(_statusIdMap.size());
+    for (int i = 0; i < _statusIdMap.size(); ++i) {
+      d.dumpString(_statusIdMap.fromId(i));
+    }
+    d.dumpInt(_firstLeafType);
+    d.dumpInt(_grammarTypes);
+    int[] status = new int[_grammarTypes];
+    for (int i = 0; i < _grammarTypes; ++i) {
+      d.dumpString(_typeIdMap.fromId(i));
+      status[i] = _type2Status.get(i);
+    }
+    d.dumpIntArray(status);
+    d.dumpShort(_featureNo);
+    for (short i = 0; i < _featureNo; ++i) {
+      d.dumpString(_featureIdMap.fromId(i));
+    }
+
+    // hierarchy
+    d.dumpInt(_codeWords);
+    d.dumpLongArray(_bitcodes);
+    d.dumpLongArray(_fingerprints);
+    d.dumpIntArray(_codeTable);
+    d.dumpIntArray(_leaftypeParent);
+    dumpLists(d, _parents);
+    dumpLists(d, _children);
+
+    // feature tables
+    d.dumpInt(_dagNocasts ? 1 : 0);
+    d.dumpIntArray(_featSet);
+    d.dumpInt(_featSetDescriptors.length);
+    for (short[] featSet : _featSetDescriptors) d.dumpShortArray(featSet);
+    d.dumpIntArray(_appType);
+    d.dumpIntArray(_maxAppType);
+
+    // hierarchy index
+    dumpIntArrays(d, _superTypeArrays);
+    dumpIntArrays(d, _subTypeArrays);
+    d.dumpIntArray(_topDistance);
+    d.dumpIntArray(_leafProperParent);
+    d.dumpIntArray(_leafPre);
+    d.dumpIntArray(_leafEnd);
+    d.dumpInt(_ancestorWords);
+    d.dumpLongArray(_ancestors);
+
+    // the type structures, with their positions relative to the first
+    long start = constraints.getPosition();
+    long[] offsets = new long[_grammarTypes];
+    for (int i = 0; i < _grammarTypes; ++i) {
+      offsets[i] = constraints.getPosition() - start;
+      DagNode.skipFS(constraints);
+    }
+    d.dumpLongArray(offsets);
+    constraints.copyTo(start, constraints.getPosition(), d);
+  }
+
+  /** Read the tables written by dumpSnapshot(). The type structures are
+   *  built on demand from the mapped snapshot, or at once if LAZY_TYPE_FS is
+   *  not set.
+   */
+  private void undumpSnapshot(PetUndumper u) throws IOException {
+    _description = u.undumpString();
+
+    int statusNo = u.undumpInt();
+    _statusIdMap = new IntIDMap<String>(statusNo);
+    for (int i = 0; i < statusNo; ++i) {
+      _statusIdMap.register(name(u.undumpString()));
+    }
+    _firstLeafType = u.undumpInt();
+    _typeNo = _grammarTypes = u.undumpInt();
+    _typeIdMap = new IntIDMap<String>(_typeNo);
+    for (int i = 0; i < _typeNo; ++i) {
+      _typeIdMap.register(name(u.undumpString()));
+    }
+    int[] status = u.undumpIntArray();
+    _type2Status = new TIntIntHashMap(_typeNo);
+    for (int i = 0; i < _typeNo; ++i) {
+      _type2Status.put(i, status[i]);
+    }
+    _featureNo = u.undumpShort();
+    _featureIdMap = new ShortIDMap<String>(_featureNo);
+    for (short i = 0; i < _featureNo; ++i) {
+      _featureIdMap.register(name(u.undumpString()));
+    }
+
+    _codeWords = u.undumpInt();
+    _bitcodes = u.undumpLongArray();
+    _fingerprints = u.undumpLongArray();
+    _codeTable = u.undumpIntArray();
+    _leaftypeParent = u.undumpIntArray();
+    _parents = undumpLists(u);
+    _children = undumpLists(u);
+
+    _dagNocasts = (u.undumpInt() != 0);
+    _featSet = u.undumpIntArray();
+    _featSetDescriptors = new short[u.undumpInt()][];
+    for (int i = 0; i < _featSetDescriptors.length; ++i) {
+      _featSetDescriptors[i] = u.undumpShortArray();
+    }
+    _featSetSlots = new short[_featSetDescriptors.length][];
+    _appType = u.undumpIntArray();
+    _maxAppType = u.undumpIntArray();
+
+    _superTypeArrays = undumpIntArrays(u);
+    _subTypeArrays = undumpIntArrays(u);
+    _topDistance = u.undumpIntArray();
+    _leafProperParent = u.undumpIntArray();
+    _leafPre = u.undumpIntArray();
+    _leafEnd = u.undumpIntArray();
+    _ancestorWords = u.undumpInt();
+    _ancestors = u.undumpLongArray();
+
+    long[] offsets = u.undumpLongArray();
+    long start = u.getPosition();
+    for (int i = 0; i < offsets.length; ++i) offsets[i] += start;
+    _typeFS = new AtomicReferenceArray<TFS>(_typeNo);
+    _typeDags = new Dag[_typeNo];
+    _constraints = u;
+    _typeFSOffset = offsets;
+    if (! LAZY_TYPE_FS) buildAllTypeFS();
+  }
+
   /* ======================================================================
    * Miscellaneous methods
    * ====================================================================== */
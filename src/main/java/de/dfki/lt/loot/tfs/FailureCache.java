@@ -0,0 +1,92 @@
+package de.dfki.lt.loot.tfs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A bounded cache of unifications that are known to fail, keyed by the IDs
+ *  of the two TFSs (see TFS.setID()) and the argument position.
+ *
+ *  The cache is direct mapped: every key has exactly one entry, and a new
+ *  failure simply replaces the key stored there. Reads and writes are single
+ *  atomic operations on a long array, so the cache can be shared by parallel
+ *  threads without locking.
+ *
+ *  The IDs must identify the TFSs uniquely as long as the cache is in use,
+ *  and the TFSs must not be changed destructively in that time. Call clear()
+ *  when the IDs are reused, e.g., for a new input.
+ */
+public class FailureCache {
+
+  /** Keys are non-negative, so this never matches one */
+  private static final long EMPTY = -1L;
+
+  /** The number of bits for the rule ID */
+  private static final int RULE_BITS = 26;
+
+  /** The number of bits for the argument position, plus one */
+  private static final int ARG_NO_BITS = 5;
+
+  private final AtomicLongArray _keys;
+
+  private final int _mask;
+
+  /** Create a cache with room for at least \p size failures. The size is
+   *  rounded up to the next power of two.
+   */
+  public FailureCache(int size) {
+    int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+    _keys = new AtomicLongArray(capacity);
+    _mask = capacity - 1;
+    clear();
+  }
+
+  /** Return the key for the given combination, or EMPTY if the IDs are out
+   *  of range. The argument number is -1 for the unification of two complete
+   *  TFSs.
+   */
+  private static long key(int ruleId, int argNo, int argId) {
+    if (ruleId < 0 || ruleId >= (1 << RULE_BITS) || argId < 0
+        || argNo < -1 || argNo >= (1 << ARG_NO_BITS) - 1) {
+      return EMPTY;
+    }
+    return ((((long) ruleId << ARG_NO_BITS) | (argNo + 1)) << 32) | argId;
+  }
+
+  /** Return the table index of key */
+  private int index(long key) {
+    // the finalization step of MurmurHash3
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb93e7f4bb53L;
+    key ^= key >>> 33;
+    return (int) key & _mask;
+  }
+
+  /** Is the unification of the TFSs with these IDs known to fail? */
+  public boolean contains(int ruleId, int argNo, int argId) {
+    long key = key(ruleId, argNo, argId);
+    return key != EMPTY && _keys.get(index(key)) == key;
+  }
+
+  /** Record that the unification of the TFSs with these IDs fails. This is
+   *  ignored if one of the IDs is not set.
+   */
+  public void add(int ruleId, int argNo, int argId) {
+    long key = key(ruleId, argNo, argId);
+    if (key != EMPTY) {
+      _keys.set(index(key), key);
+    }
+  }
+
+  /** Remove all entries */
+  public void clear() {
+    for (int i = 0; i < _keys.length(); ++i) {
+      _keys.set(i, EMPTY);
+    }
+  }
+
+  /** Return the maximal number of entries */
+  public int capacity() {
+    return _keys.length();
+  }
+}
@@ -0,0 +1,216 @@
+package de.dfki.lt.loot.tfs;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.procedure.TLongIntProcedure;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import de.dfki.lt.loot.tfs.util.LongIntCache;
+
+/** A binary file with the contents of the glb caches of a grammar, which is
+ *  memory mapped and searched directly in the mapping.
+ *
+ *  Format (big endian):
+ *  magic number (int), format version (int),
+ *  number of grammar types (int), length of the grammar description (int),
+ *  the description in UTF-8, padding to a multiple of eight bytes,
+ *  and then for the unification and the subsumption cache:
+ *  number of entries (int), padding (int),
+ *  the sorted keys (long), type1 in the upper and type2 in the lower half,
+ *  with type1 < type2,
+ *  the glbs (int) in the same order, padding to a multiple of eight bytes.
+ *
+ *  Only entries for grammar types are stored, since dynamic types do not
+ *  have the same number in another run.
+ */
+class GlbCacheFile {
+
+  private static final int MAGIC = 0x474c4243;
+
+  private static final int VERSION = 1;
+
+  /** The sorted keys and the glbs of one cache */
+  private static class Section {
+    final LongBuffer keys;
+    final IntBuffer glbs;
+
+    Section(ByteBuffer buf) {
+      int size = buf.getInt();
+      buf.getInt();
+      ByteBuffer keyBytes = buf.slice();
+      keyBytes.limit(8 * size);
+      keys = keyBytes.asLongBuffer();
+      buf.position(buf.position() + 8 * size);
+      ByteBuffer glbBytes = buf.slice();
+      glbBytes.limit(4 * size);
+      glbs = glbBytes.asIntBuffer();
+      buf.position(buf.position() + 4 * size + (size % 2) * 4);
+    }
+
+    /** Return the saved glb of t1 < t2, or -2 if there is none */
+    int get(int t1, int t2) {
+      long key = ((long) t1 << 32) | t2;
+      int low = 0, high = keys.limit() - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        long midKey = keys.get(mid);
+        if (midKey < key) {
+          low = mid + 1;
+        } else if (midKey > key) {
+          high = mid - 1;
+        } else {
+          return glbs.get(mid);
+        }
+      }
+      return -2;
+    }
+  }
+
+  /** The saved glbs of unifyTypes and unifyTypesSubs */
+  private final Section _glbs, _subsGlbs;
+
+  private GlbCacheFile(ByteBuffer buf) {
+    _glbs = new Section(buf);
+    _subsGlbs = new Section(buf);
+  }
+
+  /** Return the saved glb of unifyTypes for t1 < t2, or -2 */
+  int getGlb(int t1, int t2) {
+    return _glbs.get(t1, t2);
+  }
+
+  /** Return the saved glb of unifyTypesSubs for t1 < t2, or -2 */
+  int getSubsGlb(int t1, int t2) {
+    return _subsGlbs.get(t1, t2);
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return (s == null ? "" : s).getBytes("UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /** Map the given file. Throw an IOException if it is not a glb cache file
+   *  for a grammar with this description and number of grammar types.
+   */
+  static GlbCacheFile open(File file, String description, int grammarTypes)
+  throws IOException {
+    MappedByteBuffer buf;
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ);
+    try {
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      channel.close();
+    }
+    if (buf.limit() < 16 || buf.getInt() != MAGIC) {
+      throw new IOException("Not a glb cache file: " + file);
+    }
+    if (buf.getInt() != VERSION) {
+      throw new IOException("Wrong glb cache file version: " + file);
+    }
+    int types = buf.getInt();
+    byte[] desc = new byte[buf.getInt()];
+    if (desc.length > buf.remaining()) {
+      throw new IOException("Corrupt glb cache file: " + file);
+    }
+    buf.get(desc);
+    if (types != grammarTypes || ! Arrays.equals(desc, utf8(description))) {
+      throw new IOException("Glb cache file " + file
+          + " was written for a different grammar");
+    }
+    buf.position((buf.position() + 7) & ~7);
+    try {
+      return new GlbCacheFile(buf);
+    } catch (RuntimeException ex) {
+      throw new IOException("Corrupt glb cache file: " + file, ex);
+    }
+  }
+
+  /** Write one cache, using the key encoding of FSGrammar.unifyTypes, merged
+   *  with the entries of a previously saved section, if it is not null
+   */
+  private static void writeSection(DataOutputStream out, LongIntCache cache,
+      Section saved, final int typeNo, final int grammarTypes)
+  throws IOException {
+    final TLongIntHashMap entries = new TLongIntHashMap(cache.size(),
+        Constants.DEFAULT_LOAD_FACTOR, 0, -2);
+    if (saved != null) {
+      for (int i = 0; i < saved.keys.limit(); ++i) {
+        entries.put(saved.keys.get(i), saved.glbs.get(i));
+      }
+    }
+    // the values are taken during the iteration, since a bounded cache may
+    // evict them at any time
+    cache.forEachEntry(new TLongIntProcedure() {
+      @Override
+      public boolean execute(long idx, int glb) {
+        int t1 = (int) (idx / typeNo);
+        int t2 = (int) (idx % typeNo);
+        if (t2 < grammarTypes && glb < grammarTypes) {
+          entries.put(((long) t1 << 32) | t2, glb);
+        }
+        return true;
+      }
+    });
+    long[] sorted = entries.keys();
+    Arrays.sort(sorted);
+    out.writeInt(sorted.length);
+    out.writeInt(0);
+    for (long key : sorted) {
+      out.writeLong(key);
+    }
+    for (long key : sorted) {
+      out.writeInt(entries.get(key));
+    }
+    if (sorted.length % 2 != 0) out.writeInt(0);
+  }
+
+  /** Write the given caches to file, together with the entries of saved, if
+   *  that is not null. The data is written to a temporary file first, which
+   *  then replaces file, so that existing mappings of file stay valid.
+   */
+  static void write(File file, String description, int grammarTypes,
+      int typeNo, LongIntCache glbs, LongIntCache subsGlbs,
+      GlbCacheFile saved) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      byte[] desc = utf8(description);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(grammarTypes);
+      out.writeInt(desc.length);
+      out.write(desc);
+      for (int pad = (16 + desc.length) % 8; pad > 0 && pad < 8; ++pad) {
+        out.writeByte(0);
+      }
+      writeSection(out, glbs, saved == null ? null : saved._glbs,
+          typeNo, grammarTypes);
+      writeSection(out, subsGlbs, saved == null ? null : saved._subsGlbs,
+          typeNo, grammarTypes);
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
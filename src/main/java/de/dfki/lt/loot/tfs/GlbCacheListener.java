@@ -0,0 +1,25 @@
+package de.dfki.lt.loot.tfs;
+
+/** Is informed by FSGrammar about the use of its glb caches, see
+ *  FSGrammar.setGlbCacheListener(). The methods are called by all threads
+ *  that unify types, so they must be thread safe and fast.
+ *
+ *  The argument subsumption is true for the cache of unifyTypesSubs and false
+ *  for the cache of unifyTypes.
+ */
+public interface GlbCacheListener {
+
+  /** The glb was found in the cache */
+  public void cacheHit(boolean subsumption);
+
+  /** The glb was not in the cache */
+  public void cacheMiss(boolean subsumption);
+
+  /** A glb was put into the cache */
+  public void cacheInsert(boolean subsumption);
+
+  /** The glb of two proper types was computed from their bit codes, which
+   *  took the given number of nanoseconds.
+   */
+  public void bitcodeMeet(long nanos);
+}
@@ -0,0 +1,131 @@
+package de.dfki.lt.loot.tfs;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/** Counts the lookups, hits, misses and inserts of the two glb caches of a
+ *  grammar and the duration of bit code meets. The counters are LongAdders,
+ *  which are striped over threads, so updating them does not contend.
+ *
+ *  Install an object of this class with FSGrammar.setGlbCacheListener(), and
+ *  read it directly or via JMX after calling registerMBean().
+ */
+public class GlbStatistics implements GlbCacheListener, GlbStatisticsMXBean {
+
+  private static final int BUCKETS = 32;
+
+  private final LongAdder _unifyHits = new LongAdder();
+  private final LongAdder _unifyMisses = new LongAdder();
+  private final LongAdder _unifyInserts = new LongAdder();
+
+  private final LongAdder _subsHits = new LongAdder();
+  private final LongAdder _subsMisses = new LongAdder();
+  private final LongAdder _subsInserts = new LongAdder();
+
+  private final LongAdder[] _meets = new LongAdder[BUCKETS];
+
+  public GlbStatistics() {
+    for (int i = 0; i < BUCKETS; ++i) {
+      _meets[i] = new LongAdder();
+    }
+  }
+
+  @Override
+  public void cacheHit(boolean subsumption) {
+    (subsumption ? _subsHits : _unifyHits).increment();
+  }
+
+  @Override
+  public void cacheMiss(boolean subsumption) {
+    (subsumption ? _subsMisses : _unifyMisses).increment();
+  }
+
+  @Override
+  public void cacheInsert(boolean subsumption) {
+    (subsumption ? _subsInserts : _unifyInserts).increment();
+  }
+
+  @Override
+  public void bitcodeMeet(long nanos) {
+    int bucket = 63 - Long.numberOfLeadingZeros(Math.max(1, nanos));
+    _meets[Math.min(bucket, BUCKETS - 1)].increment();
+  }
+
+  @Override
+  public long getUnifyLookups() { return getUnifyHits() + getUnifyMisses(); }
+  @Override
+  public long getUnifyHits() { return _unifyHits.sum(); }
+  @Override
+  public long getUnifyMisses() { return _unifyMisses.sum(); }
+  @Override
+  public long getUnifyInserts() { return _unifyInserts.sum(); }
+
+  @Override
+  public long getSubsumptionLookups() {
+    return getSubsumptionHits() + getSubsumptionMisses();
+  }
+  @Override
+  public long getSubsumptionHits() { return _subsHits.sum(); }
+  @Override
+  public long getSubsumptionMisses() { return _subsMisses.sum(); }
+  @Override
+  public long getSubsumptionInserts() { return _subsInserts.sum(); }
+
+  @Override
+  public long getMeetCount() {
+    long result = 0;
+    for (LongAdder meets : _meets) result += meets.sum();
+    return result;
+  }
+
+  @Override
+  public long[] getMeetHistogram() {
+    long[] result = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; ++i) {
+      result[i] = _meets[i].sum();
+    }
+    return result;
+  }
+
+  @Override
+  public void reset() {
+    for (LongAdder counter : new LongAdder[] { _unifyHits, _unifyMisses,
+        _unifyInserts, _subsHits, _subsMisses, _subsInserts }) {
+      counter.reset();
+    }
+    for (LongAdder meets : _meets) meets.reset();
+  }
+
+  /** Return the JMX name for statistics with the given name */
+  public static ObjectName objectName(String name) throws JMException {
+    return new ObjectName("de.dfki.lt.loot.tfs:type=GlbStatistics,name="
+        + ObjectName.quote(name));
+  }
+
+  /** Register this object with the platform MBean server under the given
+   *  name, see objectName()
+   */
+  public void registerMBean(String name) throws JMException {
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+        objectName(name));
+  }
+
+  /** Remove the statistics with the given name from the platform MBean
+   *  server
+   */
+  public static void unregisterMBean(String name) throws JMException {
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+        objectName(name));
+  }
+
+  @Override
+  public String toString() {
+    return "unify: " + getUnifyHits() + "/" + getUnifyLookups() + " hits, "
+        + getUnifyInserts() + " inserts; subsumption: " + getSubsumptionHits()
+        + "/" + getSubsumptionLookups() + " hits, " + getSubsumptionInserts()
+        + " inserts; meets: " + getMeetCount();
+  }
+}
@@ -0,0 +1,26 @@
+package de.dfki.lt.loot.tfs;
+
+/** The management interface of GlbStatistics */
+public interface GlbStatisticsMXBean {
+
+  public long getUnifyLookups();
+  public long getUnifyHits();
+  public long getUnifyMisses();
+  public long getUnifyInserts();
+
+  public long getSubsumptionLookups();
+  public long getSubsumptionHits();
+  public long getSubsumptionMisses();
+  public long getSubsumptionInserts();
+
+  /** The number of bit code meets */
+  public long getMeetCount();
+
+  /** The number of bit code meets per duration: element i counts the meets
+   *  that took less than 2^(i+1) nanoseconds (and at least 2^i for i > 0).
+   */
+  public long[] getMeetHistogram();
+
+  /** Set all counters to zero */
+  public void reset();
+}
@@ -0,0 +1,137 @@
+package de.dfki.lt.loot.tfs;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** A precomputed table of the glbs of all pairs of proper types, which
+ *  replaces the bit code computation and the glb cache for these pairs.
+ *
+ *  The dense variant stores the triangular matrix of all pairs in one array.
+ *  The sparse variant stores, for every type, only the smaller types with a
+ *  non-bottom glb, and is meant for hierarchies where the dense matrix gets
+ *  too big. Both are filled in parallel by the common fork-join pool.
+ */
+abstract class GlbTable {
+
+  /** The number of rows computed by one fork-join task */
+  private static final int ROWS_PER_TASK = 32;
+
+  /** Return the glb of the proper types t1 < t2, or BOTTOM_TYPE */
+  abstract int glb(int t1, int t2);
+
+  /** Compute row t2 of the table, i.e., the glbs of all t1 < t2 */
+  abstract void computeRow(FSGrammar grammar, int t2);
+
+  /** Return a dense table for the given number of proper types. The number
+   *  of types must be less than Character.MAX_VALUE.
+   */
+  static GlbTable dense(FSGrammar grammar, int properTypes) {
+    return new Dense(properTypes).fill(grammar, properTypes);
+  }
+
+  /** Return a sparse table for the given number of proper types */
+  static GlbTable sparse(FSGrammar grammar, int properTypes) {
+    return new Sparse(properTypes).fill(grammar, properTypes);
+  }
+
+  /** Compute all rows of this table in parallel and return it */
+  GlbTable fill(FSGrammar grammar, int properTypes) {
+    ForkJoinPool.commonPool().invoke(new Rows(grammar, 1, properTypes));
+    return this;
+  }
+
+  /** Compute the rows from (inclusive) to to (exclusive) */
+  private class Rows extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final FSGrammar _grammar;
+    private final int _from, _to;
+
+    Rows(FSGrammar grammar, int from, int to) {
+      _grammar = grammar;
+      _from = from;
+      _to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (_to - _from <= ROWS_PER_TASK) {
+        for (int t2 = _from; t2 < _to; ++t2) {
+          computeRow(_grammar, t2);
+        }
+      } else {
+        int middle = (_from + _to) >>> 1;
+        invokeAll(new Rows(_grammar, _from, middle),
+            new Rows(_grammar, middle, _to));
+      }
+    }
+  }
+
+  /** The triangular matrix, stored row by row, with glb + 1 in every cell, so
+   *  that BOTTOM_TYPE is zero.
+   */
+  private static final class Dense extends GlbTable {
+    private final char[] _table;
+
+    Dense(int properTypes) {
+      _table = new char[(int)((long) properTypes * (properTypes - 1) / 2)];
+    }
+
+    private static int rowStart(int t2) {
+      return (int)((long) t2 * (t2 - 1) / 2);
+    }
+
+    @Override
+    int glb(int t1, int t2) {
+      return _table[rowStart(t2) + t1] - 1;
+    }
+
+    @Override
+    void computeRow(FSGrammar grammar, int t2) {
+      int start = rowStart(t2);
+      for (int t1 = 0; t1 < t2; ++t1) {
+        _table[start + t1] = (char) (grammar.computeProperGlb(t1, t2) + 1);
+      }
+    }
+  }
+
+  /** For every type t2, the sorted list of smaller types with a non-bottom
+   *  glb, and the glbs in the same order.
+   */
+  private static final class Sparse extends GlbTable {
+    private static final int[] EMPTY = {};
+
+    private final int[][] _partners;
+    private final int[][] _glbs;
+
+    Sparse(int properTypes) {
+      _partners = new int[properTypes][];
+      _glbs = new int[properTypes][];
+      _partners[0] = _glbs[0] = EMPTY;
+    }
+
+    @Override
+    int glb(int t1, int t2) {
+      int i = Arrays.binarySearch(_partners[t2], t1);
+      return (i < 0) ? FSGrammar.BOTTOM_TYPE : _glbs[t2][i];
+    }
+
+    @Override
+    void computeRow(FSGrammar grammar, int t2) {
+      TIntArrayList partners = new TIntArrayList();
+      TIntArrayList glbs = new TIntArrayList();
+      for (int t1 = 0; t1 < t2; ++t1) {
+        int glb = grammar.computeProperGlb(t1, t2);
+        if (glb != FSGrammar.BOTTOM_TYPE) {
+          partners.add(t1);
+          glbs.add(glb);
+        }
+      }
+      _partners[t2] = partners.toArray();
+      _glbs[t2] = glbs.toArray();
+    }
+  }
+}
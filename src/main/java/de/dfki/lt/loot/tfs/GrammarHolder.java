@@ -0,0 +1,122 @@
+package de.dfki.lt.loot.tfs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Holds the current grammar of an application that processes requests in
+ *  parallel threads, and replaces it by a new version without a restart.
+ *
+ *  Every request should be run with call(), which binds the grammar that is
+ *  current when the request starts to the thread (see FSGrammar.call()).
+ *  reload() loads the new grammar while the old one is still in use, and then
+ *  switches atomically: requests started afterwards use the new grammar,
+ *  requests in flight finish with the old one. If the new grammar can not be
+ *  loaded, e.g., because the file is truncated, the old one stays current.
+ *
+ *  The held grammars do not become the default grammar of DagNode. New
+ *  versions are read in the charset of the current grammar.
+ */
+public class GrammarHolder {
+
+  private static final Logger logger =
+    LoggerFactory.getLogger(GrammarHolder.class);
+
+  private final AtomicReference<FSGrammar> _current;
+
+  /** Hold the given grammar */
+  public GrammarHolder(FSGrammar grammar) {
+    _current = new AtomicReference<FSGrammar>(grammar);
+  }
+
+  /** Load the grammar from the given file and hold it */
+  public GrammarHolder(String filename) throws IOException {
+    this(filename, null);
+  }
+
+  /** Load the grammar from the given file, whose strings are in charset,
+   *  and hold it. If charset is null, PetUndumper.DEFAULT_CHARSET is used.
+   */
+  public GrammarHolder(String filename, Charset charset) throws IOException {
+    this(load(filename, charset));
+  }
+
+  private static FSGrammar load(String filename, Charset charset)
+      throws IOException {
+    if (! new File(filename).canRead())
+      throw new FileNotFoundException("Can not read grammar " + filename);
+    try {
+      return new FSGrammar(filename, false, charset);
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  /** Return the current grammar */
+  public FSGrammar get() {
+    return _current.get();
+  }
+
+  /** Call task with the current grammar as grammar of the calling thread,
+   *  and return its result. The thread keeps this grammar until task
+   *  returns, also if the grammar is reloaded in between.
+   */
+  public <T> T call(Callable<T> task) throws Exception {
+    return get().call(task);
+  }
+
+  /** Load a new version of the grammar from the given file and make it the
+   *  current grammar, after copying the glb caches of the old grammar if the
+   *  type hierarchy did not change. Return the old grammar. Concurrent
+   *  reloads are done one after the other.
+   *  @throws IOException if the new grammar can not be read, the old grammar
+   *          then stays current
+   */
+  public synchronized FSGrammar reload(String filename) throws IOException {
+    long time = System.currentTimeMillis();
+    FSGrammar grammar = load(filename, _current.get().getCharset());
+    warmUp(grammar, _current.get());
+    FSGrammar old = _current.getAndSet(grammar);
+    logger.info("reloaded grammar " + filename + " in "
+        + ((System.currentTimeMillis() - time) / 1000.0) + " secs");
+    return old;
+  }
+
+  /** Run reload() with the given executor, the future returns the old
+   *  grammar
+   */
+  public Future<FSGrammar> reloadInBackground(final String filename,
+      ExecutorService executor) {
+    return executor.submit(new Callable<FSGrammar>() {
+      @Override
+      public FSGrammar call() throws IOException {
+        return reload(filename);
+      }
+    });
+  }
+
+  /** Prepare grammar to take over from old. The failures recorded for old
+   *  are not copied, since the TFSs of the new grammar reuse the IDs.
+   */
+  private static void warmUp(FSGrammar grammar, FSGrammar old) {
+    FailureCache failures = old.getFailureCache();
+    if (failures != null) {
+      grammar.setFailureCache(new FailureCache(failures.capacity()));
+    }
+    int copied = grammar.rollForwardGlbCache(old);
+    if (copied < 0) {
+      logger.info("type hierarchy changed, glb caches start empty");
+    } else {
+      logger.info("copied " + copied + " glb cache entries");
+    }
+  }
+}
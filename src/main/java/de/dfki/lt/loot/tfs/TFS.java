@@ -5,9 +5,15 @@ import gnu.trove.set.hash.TShortHashSet;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,9 +32,6 @@ public class TFS {
 
   private static Logger logger = LoggerFactory.getLogger(TFS.class);
 
-  private static DagNode qcSet;
-  private static int qcLen;
-
   // leave this at -1 to indicate that it has not been set
   private int id = -1;
 
@@ -36,11 +39,11 @@ public class TFS {
   private DagNode[] qcVector;
   private int[] argsQCVector;
 
-  private static int transformQCDagRec(DagNode qcdag, int result) {
+  private static int transformQCDagRec(DagNode qcdag, int result,
+      FSGrammar gram) {
     int value = qcdag.getType();
     if (value != FSGrammar.TOP_TYPE) {
-      String valString =
-        DagNode.getGrammar().getTypeName(qcdag.getType());
+      String valString = gram.getTypeName(qcdag.getType());
       value = Integer.valueOf(valString.substring(1, valString.length() -1));
     }
     result = Math.max(result, value);
@@ -48,32 +51,79 @@ public class TFS {
     Iterator<? extends DagEdge> arc1It = qcdag.getEdgeIterator();
     if (arc1It != null) {
       while (arc1It.hasNext()) {
-        value = transformQCDagRec(arc1It.next().getValue(), result);
+        value = transformQCDagRec(arc1It.next().getValue(), result, gram);
         result = Math.max(result, value);
       }
     }
     return result;
   }
 
-  private static void getPetQCDag(FSGrammar gram) {
+  /** Compute the quick check paths of \p gram from its QC type. Must be
+   *  called with gram as grammar of the current thread.
+   */
+  static void initQuickCheck(FSGrammar gram) {
     TFS qcTFS = gram.getQCDag();
     if (qcTFS != null) {
-      qcSet = qcTFS.dag().getValue(gram.getArgsFeature());
-      qcLen = qcSet == null ? 0 : transformQCDagRec(qcSet, 0);
+      // work on a copy, the type FS of the grammar must stay unchanged
+      DagNode qcSet = qcTFS.dag().cloneFS().getValue(gram.getArgsFeature());
+      gram.qcLen = qcSet == null ? 0 : transformQCDagRec(qcSet, 0, gram);
+      gram.qcSet = qcSet;
     }
   }
 
+  /** Make \p gram the default grammar, see DagNode.setGrammar() */
   public static void setGrammar(FSGrammar gram) {
     DagNode.setGrammar(gram);
-    qcLen = 0;
-    getPetQCDag(gram);
+  }
+
+  /** Use \p cache to remember failed unifications between TFSs that have an
+   *  ID, or switch this off with null. Unifications found in the cache fail
+   *  immediately, with DagNode.FailType.CACHED as reason.
+   *
+   *  Only failures of unifications that start with no pending intermediate
+   *  results are recorded.
+   *
+   *  The cache belongs to the grammar of the current thread (see
+   *  FSGrammar.setFailureCache()), so the failures recorded with one grammar
+   *  do not affect the TFSs of another one with the same IDs, e.g., the rules
+   *  of a grammar that was reloaded with GrammarHolder.reload().
+   */
+  public static void setFailureCache(FailureCache cache) {
+    DagNode.getGrammar().setFailureCache(cache);
+  }
+
+  /** Return the failure cache of the grammar of the current thread, or null
+   *  if there is none
+   */
+  public static FailureCache getFailureCache() {
+    FSGrammar gram = DagNode.getGrammar();
+    return (gram == null) ? null : gram.getFailureCache();
+  }
+
+  /** Is the unification of \p arg into argument \p argNo of this TFS known
+   *  to fail? argNo is -1 if arg is unified with the whole TFS.
+   */
+  private boolean knownFailure(FailureCache cache, TFS arg, int argNo) {
+    if (cache != null && cache.contains(id, argNo, arg.id)) {
+      UnificationContext.get().failure = DagNode.FailType.CACHED;
+      return true;
+    }
+    return false;
+  }
+
+  /** Return true if there are no pending intermediate results, so that the
+   *  outcome of the next unification only depends on the two TFSs.
+   */
+  private static boolean cacheable(FailureCache cache) {
+    return cache != null && UnificationContext.get().getSize() == 0;
   }
 
   /** compute the (parent) qc vector for this dag and store it for future use */
   private void setQCVector() {
-    if (qcLen > 0) {
-      qcVector = new DagNode[qcLen];
-      val.getQCVector(qcSet, qcVector);
+    FSGrammar gram = DagNode.getGrammar();
+    if (gram != null && gram.qcLen > 0) {
+      qcVector = new DagNode[gram.qcLen];
+      val.getQCVector(gram.qcSet, qcVector);
     }
   }
 
@@ -109,20 +159,141 @@ public class TFS {
     return new TFS(val.copyFs(toDelete, typesToGeneralize));
   }
 
-  public boolean unifiable(TFS arg){ return val.isUnifiable(arg.val); }
+  public boolean unifiable(TFS arg){
+    FailureCache cache = getFailureCache();
+    if (knownFailure(cache, arg, -1)) return false;
+    boolean record = cacheable(cache);
+    boolean result = val.isUnifiable(arg.val);
+    if (! result && record) cache.add(id, -1, arg.id);
+    return result;
+  }
 
   public TFS unifyFS(TFS arg) {
+    FailureCache cache = getFailureCache();
+    if (knownFailure(cache, arg, -1)) return null;
+    boolean record = cacheable(cache);
     DagNode resultDag = val.unifyFS(arg.val);
+    if (resultDag == null && record) cache.add(id, -1, arg.id);
     return resultDag == null ? null : new TFS(resultDag);
   }
 
   public TFS unifyFS(TFS arg, int argNo) {
+    FailureCache cache = getFailureCache();
+    if (knownFailure(cache, arg, argNo)) return null;
+    boolean record = cacheable(cache);
     DagNode resultDag = val.unifyFS(arg.val, argNo);
+    if (resultDag == null && record) cache.add(id, argNo, arg.id);
     return resultDag == null ? null : new TFS(resultDag);
   }
 
   public boolean unifyOnly(TFS arg, int argNo) {
-    return dag().unifyOnly(arg.dag(), argNo);
+    FailureCache cache = getFailureCache();
+    if (knownFailure(cache, arg, argNo)) return false;
+    boolean record = cacheable(cache);
+    boolean result = dag().unifyOnly(arg.dag(), argNo);
+    if (! result && record) cache.add(id, argNo, arg.id);
+    return result;
+  }
+
+  /** Unify every candidate into the \p argNo'th argument of this (rule) TFS.
+   *
+   *  The argument node and its QC vector are computed only once, candidates
+   *  that fail the quick check are not unified at all. If \p massager is not
+   *  null, the results are copied with FSMassager.copyRestrict().
+   *
+   *  @return a list with one element per candidate, in the same order, which
+   *          is the result TFS or null if unification failed
+   */
+  public List<TFS> unifyAll(List<TFS> candidates, int argNo,
+      FSMassager massager) {
+    TFS[] results = new TFS[candidates.size()];
+    DagNode sub = val.getNthArg(argNo);
+    if (sub != null) {
+      unifyRange(sub, argNo, getQCTypes(sub), candidates, 0, results.length,
+          massager, results);
+    }
+    return Arrays.asList(results);
+  }
+
+  /** Like unifyAll(candidates, argNo, massager), but the candidates are split
+   *  into \p chunks slices, which are unified in parallel by \p executor.
+   *  Every slice gets its own clone of this TFS.
+   *
+   *  @attention The candidates of different slices must not share any dag
+   *  nodes, which is not the case if they were produced with structure
+   *  sharing switched on, or if one candidate occurs more than once.
+   */
+  public List<TFS> unifyAll(final List<TFS> candidates, final int argNo,
+      final FSMassager massager, ExecutorService executor, int chunks)
+  throws InterruptedException {
+    final TFS[] results = new TFS[candidates.size()];
+    DagNode sub = val.getNthArg(argNo);
+    if (sub == null) return Arrays.asList(results);
+    final int[] qcTypes = getQCTypes(sub);
+    // the workers use the grammar of the calling thread
+    final FSGrammar grammar = DagNode.getGrammar();
+    chunks = Math.max(1, Math.min(chunks, results.length));
+    List<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+    for (int c = 0; c < chunks; ++c) {
+      // the rule is cloned here, since the clones can not be made in parallel
+      final TFS rule = cloneFS();
+      rule.id = id;
+      final int from = (int)((long)results.length * c / chunks);
+      final int to = (int)((long)results.length * (c + 1) / chunks);
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          FSGrammar previous = DagNode.setThreadGrammar(grammar);
+          try {
+            rule.unifyRange(rule.val.getNthArg(argNo), argNo, qcTypes,
+                candidates, from, to, massager, results);
+          } finally {
+            DagNode.setThreadGrammar(previous);
+          }
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IllegalStateException(cause);
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  /** Unify the candidates from \p from to \p to into \p sub, the \p argNo'th
+   *  argument of this TFS, and store the results in \p results.
+   */
+  private void unifyRange(DagNode sub, int argNo, int[] qcTypes,
+      List<TFS> candidates, int from, int to, FSMassager massager,
+      TFS[] results) {
+    FailureCache cache = getFailureCache();
+    for (int i = from; i < to; ++i) {
+      TFS arg = candidates.get(i);
+      if (qcTypes != null && ! qcCompatible(qcTypes, arg)) continue;
+      if (knownFailure(cache, arg, argNo)) continue;
+      boolean record = cacheable(cache);
+      if (massager == null) {
+        DagNode resultDag = val.unifyFS(arg.val, sub);
+        if (resultDag != null) results[i] = new TFS(resultDag);
+      } else if (sub.unifyOnly(arg.val) != null) {
+        // copyRestrict also invalidates
+        results[i] = massager.copyRestrict(this);
+      } else {
+        invalidate();
+      }
+      if (results[i] == null && record) cache.add(id, argNo, arg.id);
+    }
   }
 
   public TFS copyResult() {
@@ -287,24 +458,37 @@ public class TFS {
       setQCVector();
       return;
     }
+    int qcLen = getQCSize();
     if (qcLen > 0) {
-      argsQCVector = new int[qcLen];
-      Arrays.fill(argsQCVector, FSGrammar.BOTTOM_TYPE);
       DagNode arg = val.getNthArg(argNo);
       if (arg != null) {
-        DagNode[] argsDagQCVector = new DagNode[qcLen];
-        arg.getQCVector(qcSet, argsDagQCVector);
-        int i = 0;
-        for (DagNode argsDag : argsDagQCVector) {
-          if (argsDag == null) {
-            argsQCVector[i] = FSGrammar.BOTTOM_TYPE;
-          } else {
-            argsQCVector[i] = argsDag.dereference().getNewType();
-          }
-          ++i;
-        }
+        argsQCVector = getQCTypes(arg);
+      } else {
+        argsQCVector = new int[qcLen];
+        Arrays.fill(argsQCVector, FSGrammar.BOTTOM_TYPE);
+      }
+    }
+  }
+
+  /** Return the types of the QC vector of \p arg, or null if there is no QC
+   *  set.
+   */
+  private static int[] getQCTypes(DagNode arg) {
+    FSGrammar gram = DagNode.getGrammar();
+    if (gram == null || gram.qcLen == 0) return null;
+    int[] result = new int[gram.qcLen];
+    DagNode[] argsDagQCVector = new DagNode[gram.qcLen];
+    arg.getQCVector(gram.qcSet, argsDagQCVector);
+    int i = 0;
+    for (DagNode argsDag : argsDagQCVector) {
+      if (argsDag == null) {
+        result[i] = FSGrammar.BOTTOM_TYPE;
+      } else {
+        result[i] = argsDag.dereference().getNewType();
       }
+      ++i;
     }
+    return result;
   }
 
   /** Is this (active, a.k.a. rule) TFS compatible with the given arg TFS, when
@@ -328,9 +512,14 @@ public class TFS {
    *  only quick check vectors are concerned?
    */
   public boolean qcCompatible(TFS arg) {
-    for (int pos = 0; pos < qcLen; ++pos) {
+    return qcCompatible(argsQCVector, arg);
+  }
+
+  private static boolean qcCompatible(int[] parentQCVector, TFS arg) {
+    if (parentQCVector == null) return true;
+    for (int pos = 0; pos < parentQCVector.length; ++pos) {
       int argsType = arg.getQCType(pos);
-      int parentType = argsQCVector[pos];
+      int parentType = parentQCVector[pos];
       if (argsType != FSGrammar.BOTTOM_TYPE
           && parentType != FSGrammar.BOTTOM_TYPE
           && FSGrammar.BOTTOM_TYPE == DagNode.unifyTypes(argsType, parentType))
@@ -339,12 +528,16 @@ public class TFS {
     return true;
   }
 
+  /** Return the number of quick check paths of the current grammar */
   public static int getQCSize() {
-    return qcLen;
+    FSGrammar gram = DagNode.getGrammar();
+    return (gram == null) ? 0 : gram.qcLen;
   }
 
+  /** Return the quick check paths of the current grammar */
   public static DagNode getQCDag() {
-    return qcSet;
+    FSGrammar gram = DagNode.getGrammar();
+    return (gram == null) ? null : gram.qcSet;
   }
 
   public DagNode[] getQCDagVector() {
@@ -353,7 +546,7 @@ public class TFS {
   }
 
   public int getQCType(int pos) {
-    assert(pos < qcLen);
+    assert(pos < qcVector.length);
     // return the value of the pos'th element of the qc vector or -1
     return ((qcVector[pos] == null)
         ? FSGrammar.BOTTOM_TYPE
@@ -364,7 +557,7 @@ public class TFS {
    *  argument of this TFS or -1
    */
   public int getArgQCType(int pos) {
-    assert(pos < qcLen);
+    assert(pos < argsQCVector.length);
     return argsQCVector[pos] ;
   }
 
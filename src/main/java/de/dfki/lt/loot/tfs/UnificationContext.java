@@ -0,0 +1,251 @@
+package de.dfki.lt.loot.tfs;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/** The scratch state of the Tomabechi style operations of DagNode: new type,
+ *  forward and copy pointers and the additional arcs (compArcs) of every node
+ *  touched since the last invalidation, and some reusable buffers.
+ *
+ *  The scratch slots are kept in parallel arrays (the arena), a node only
+ *  stores the index of its slots. The slots of a node are valid if the owner
+ *  entry at this index is the node itself. Invalidation clears the arena, so
+ *  that no intermediate structures are kept alive by permanent nodes.
+ *
+ *  The context also holds the work stack of the non-recursive dag
+ *  operations.
+ *
+ *  Every thread gets its own context, available via get(). Since the slots
+ *  are owned by one context, it is possible to unify, copy, compare or cycle
+ *  check dags in parallel threads, as long as no dag node is touched by two
+ *  threads at the same time. The grammar's type dags are only read by these
+ *  operations, and can therefore be shared.
+ *
+ *  The context also determines the grammar that is used by the thread, which
+ *  makes it possible to use several grammars in parallel threads.
+ */
+public final class UnificationContext {
+
+  private static final int INITIAL_SIZE = 1024;
+
+  private static final int INITIAL_FRAMES = 64;
+
+  /** The maximal number of copies of the constraint of one type that are
+   *  kept for reuse, see constraints()
+   */
+  public static int MAX_CONSTRAINT_COPIES = 8;
+
+  /** If the arena or the work stack grew beyond this number of slots or
+   *  frames, it is given back to the garbage collector on invalidation
+   */
+  public static int MAX_RETAINED_SIZE = 1 << 20;
+
+  private static final ThreadLocal<UnificationContext> contexts =
+    new ThreadLocal<UnificationContext>() {
+      @Override
+      protected UnificationContext initialValue() {
+        return new UnificationContext();
+      }
+    };
+
+  /** The number of slots in use */
+  int size;
+
+  /** The node a slot belongs to */
+  DagNode[] owner;
+
+  /** The scratch slots of DagNode */
+  int[] newType;
+  DagNode[] forward;
+  DagNode[] copy;
+  ArrayList<DagEdge>[] compArcs;
+
+  /** The explicit work stack of the iterative dag operations */
+  DagNode.Frame[] frames = new DagNode.Frame[INITIAL_FRAMES];
+
+  /** The number of frames in use */
+  int depth;
+
+  /** The number of frames used since the last release */
+  int maxDepth;
+
+  /** The reason of the last failed operation, see DagNode.getLastFailure().
+   *  This is not reset by invalidate().
+   */
+  DagNode.FailType failure = DagNode.FailType.SUCCESS;
+
+  /** The grammar of this thread, or null if the default grammar of DagNode
+   *  is used
+   */
+  FSGrammar grammar;
+
+  /** Maps grammar dag nodes to their clones during wellformedness
+   *  unification, to avoid writing to the scratch slots of shared dags.
+   */
+  final IdentityHashMap<DagNode, DagNode> cloneMap =
+    new IdentityHashMap<DagNode, DagNode>();
+
+  /** The copies of the constraint of one type that were made by this
+   *  context. Since unification only writes to the scratch slots, a copy can
+   *  be used again after invalidation, but only once between invalidations.
+   */
+  static final class Constraints {
+    final ArrayList<DagNode> copies = new ArrayList<DagNode>(1);
+
+    /** The number of copies used since the last invalidation, valid if
+     *  generation is the generation of the context
+     */
+    int used;
+    int generation;
+  }
+
+  /** The constraint copies of the types of constraintGrammar. They are
+   *  dropped when the thread changes its grammar, see dropConstraints().
+   */
+  private final TIntObjectHashMap<Constraints> constraints =
+    new TIntObjectHashMap<Constraints>();
+  FSGrammar constraintGrammar;
+
+  /** Incremented by every invalidation */
+  private int generation;
+
+  /** Create a new context with an empty arena. Normally, the thread-local
+   *  context returned by get() should be used.
+   */
+  public UnificationContext() {
+    allocate(INITIAL_SIZE);
+  }
+
+  /** Return the context of the current thread */
+  public static UnificationContext get() {
+    return contexts.get();
+  }
+
+  /** Return the grammar the dag operations of this context use */
+  FSGrammar getGrammar() {
+    return (grammar != null) ? grammar : DagNode.fsgrammar;
+  }
+
+  /** Return the constraint copies of type in grammar, with the number of
+   *  copies used since the last invalidation
+   */
+  Constraints constraints(FSGrammar grammar, int type) {
+    if (grammar != constraintGrammar) {
+      constraints.clear();
+      constraintGrammar = grammar;
+    }
+    Constraints result = constraints.get(type);
+    if (result == null) {
+      result = new Constraints();
+      result.generation = generation;
+      constraints.put(type, result);
+    } else if (result.generation != generation) {
+      result.used = 0;
+      result.generation = generation;
+    }
+    return result;
+  }
+
+  /** Drop all constraint copies, so that they do not keep their grammar
+   *  alive, e.g., after the thread has finished a request with a grammar
+   *  that is replaced by GrammarHolder.reload()
+   */
+  void dropConstraints() {
+    constraints.clear();
+    constraintGrammar = null;
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private void allocate(int capacity) {
+    owner = new DagNode[capacity];
+    newType = new int[capacity];
+    forward = new DagNode[capacity];
+    copy = new DagNode[capacity];
+    compArcs = new ArrayList[capacity];
+  }
+
+  /** Reserve a new slot for node, with type as new type and empty pointers */
+  int newSlot(DagNode node, int type) {
+    if (size == owner.length) {
+      int capacity = 2 * size;
+      owner = Arrays.copyOf(owner, capacity);
+      newType = Arrays.copyOf(newType, capacity);
+      forward = Arrays.copyOf(forward, capacity);
+      copy = Arrays.copyOf(copy, capacity);
+      compArcs = Arrays.copyOf(compArcs, capacity);
+    }
+    owner[size] = node;
+    newType[size] = type;
+    return size++;
+  }
+
+  /** Push a frame on the work stack and return it. The frame may contain
+   *  values from an earlier use, the caller has to set all fields it reads.
+   */
+  DagNode.Frame push() {
+    if (depth == frames.length) {
+      frames = Arrays.copyOf(frames, 2 * depth);
+    }
+    DagNode.Frame frame = frames[depth];
+    if (frame == null) {
+      frame = frames[depth] = new DagNode.Frame();
+    }
+    if (++depth > maxDepth) maxDepth = depth;
+    return frame;
+  }
+
+  /** Return the topmost frame of the work stack */
+  DagNode.Frame top() {
+    return frames[depth - 1];
+  }
+
+  /** Remove the topmost frame from the work stack */
+  void pop() {
+    --depth;
+  }
+
+  /** Remove all frames above base from the work stack. The frames are
+   *  cleared by the next invalidate() or release().
+   */
+  void popTo(int base) {
+    depth = base;
+  }
+
+  /** Remove all frames above base from the work stack, and clear the frames
+   *  used above base, so that they don't keep any dags alive
+   */
+  void release(int base) {
+    for (int i = base; i < maxDepth; ++i) {
+      frames[i].clear();
+    }
+    depth = maxDepth = base;
+  }
+
+  /** Return the number of scratch slots currently in use */
+  public int getSize() {
+    return size;
+  }
+
+  /** Invalidate all scratch slots written in this context so far */
+  public void invalidate() {
+    if (owner.length > MAX_RETAINED_SIZE) {
+      allocate(INITIAL_SIZE);
+    } else {
+      Arrays.fill(owner, 0, size, null);
+      Arrays.fill(forward, 0, size, null);
+      Arrays.fill(copy, 0, size, null);
+      Arrays.fill(compArcs, 0, size, null);
+    }
+    size = 0;
+    ++generation;
+    if (frames.length > MAX_RETAINED_SIZE) {
+      frames = new DagNode.Frame[INITIAL_FRAMES];
+      depth = maxDepth = 0;
+    } else {
+      release(0);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package de.dfki.lt.loot.tfs.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/** Writes binary data in the format that is read by PetUndumper */
+public class PetDumper {
+
+  private DataOutputStream _out;
+
+  private final Charset _charset;
+
+  public PetDumper() {
+    this(PetUndumper.DEFAULT_CHARSET);
+  }
+
+  /** Create a dumper that writes strings in the given charset */
+  public PetDumper(Charset charset) {
+    _charset = charset;
+  }
+
+  public void dumpInt(int i) throws IOException {
+    _out.writeInt(Integer.reverseBytes(i));
+  }
+
+  public void dumpShort(short s) throws IOException {
+    _out.writeShort(Short.reverseBytes(s));
+  }
+
+  public void dumpLong(long l) throws IOException {
+    _out.writeLong(Long.reverseBytes(l));
+  }
+
+  public void dumpString(String s) throws IOException {
+    byte[] chars = s.getBytes(_charset);
+    dumpShort((short) (chars.length + 1));
+    _out.write(chars);
+    _out.writeByte(0);
+  }
+
+  /** Write an int array with its length, or -1 for null */
+  public void dumpIntArray(int[] array) throws IOException {
+    if (array == null) {
+      dumpInt(-1);
+      return;
+    }
+    dumpInt(array.length);
+    for (int i : array) dumpInt(i);
+  }
+
+  /** Write a short array with its length, or -1 for null */
+  public void dumpShortArray(short[] array) throws IOException {
+    if (array == null) {
+      dumpInt(-1);
+      return;
+    }
+    dumpInt(array.length);
+    for (short s : array) dumpShort(s);
+  }
+
+  /** Write a long array with its length, or -1 for null */
+  public void dumpLongArray(long[] array) throws IOException {
+    if (array == null) {
+      dumpInt(-1);
+      return;
+    }
+    dumpInt(array.length);
+    for (long l : array) dumpLong(l);
+  }
+
+  /** Write the remaining bytes of the buffer unchanged */
+  public void dumpBytes(ByteBuffer bytes) throws IOException {
+    byte[] chunk = new byte[8192];
+    while (bytes.hasRemaining()) {
+      int len = Math.min(chunk.length, bytes.remaining());
+      bytes.get(chunk, 0, len);
+      _out.write(chunk, 0, len);
+    }
+  }
+
+  public void open(File aFile) throws IOException {
+    _out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(aFile)));
+  }
+
+  public void close() throws IOException {
+    _out.close();
+  }
+}
@@ -7,24 +7,151 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
+/** Reads the binary files of PET (little endian), which are mapped into
+ *  memory.
+ *
+ *  Since a single mapping is limited to 2 GB, the file is mapped in segments
+ *  of 2^SEGMENT_BITS bytes. Every segment mapping extends MAX_ITEM_SIZE bytes
+ *  into the next segment, so that numbers and strings never have to be
+ *  assembled from two segments. Only absolute reads are used on the
+ *  mappings, the position is a field of the undumper, so duplicates of an
+ *  undumper can be used by different threads.
+ */
 public class PetUndumper {
 
+  /** The size of the segments as power of two. Only changed for tests. */
+  public static int SEGMENT_BITS = 30;
+
+  /** The maximal size of a string or number, i.e., of a short length plus
+   *  the string bytes plus the terminating zero
+   */
+  private static final int MAX_ITEM_SIZE = (1 << 16) + 2;
+
+  /** The charset of new undumpers, if none is given explicitely. This is
+   *  only a fallback for grammars that are loaded without a charset, see
+   *  FSGrammar(String, boolean, Charset); changing it while grammars are
+   *  loaded in parallel has unpredictable results.
+   */
+  public static Charset DEFAULT_CHARSET = Charset.defaultCharset();
+
   private FileChannel _channel;
 
-  private ByteBuffer buf;
+  /** the mappings of the segments of the file */
+  private ByteBuffer[] _segments;
+
+  private int _segmentBits;
+
+  private int _segmentMask;
+
+  private long _position;
 
-  public int undumpInt() { return buf.getInt(); }
+  private Charset _charset;
 
-  public short undumpShort() { return buf.getShort(); }
+  /** If true, bytes below 128 are ASCII characters in _charset */
+  private boolean _asciiCompatible;
 
+  /** buffer for the bytes of strings */
+  private byte[] _chars = new byte[64];
+
+  public PetUndumper() {
+    this(DEFAULT_CHARSET);
+  }
+
+  public PetUndumper(Charset charset) {
+    setCharset(charset);
+  }
+
+  /** Set the charset of the strings in the file */
+  public void setCharset(Charset charset) {
+    _charset = charset;
+    byte[] ascii = new byte[128];
+    for (int i = 0; i < ascii.length; ++i) ascii[i] = (byte) i;
+    _asciiCompatible = new String(ascii, charset).equals(
+        new String(ascii, StandardCharsets.ISO_8859_1));
+  }
+
+  /** Return the charset of the strings in the file */
+  public Charset getCharset() {
+    return _charset;
+  }
+
+  /** Return the segment that contains the current position, and advance the
+   *  position by size bytes
+   */
+  private ByteBuffer segment(int size) {
+    ByteBuffer result = _segments[(int) (_position >>> _segmentBits)];
+    _position += size;
+    return result;
+  }
+
+  /** Return the offset of the current position in its segment */
+  private int offset() {
+    return (int) _position & _segmentMask;
+  }
+
+  public int undumpInt() {
+    int off = offset();
+    return segment(4).getInt(off);
+  }
+
+  public short undumpShort() {
+    int off = offset();
+    return segment(2).getShort(off);
+  }
+
+  public long undumpLong() {
+    int off = offset();
+    return segment(8).getLong(off);
+  }
+
+  /** Read an int array written by PetDumper.dumpIntArray() */
+  public int[] undumpIntArray() {
+    int len = undumpInt();
+    if (len < 0) return null;
+    int[] result = new int[len];
+    for (int i = 0; i < len; ++i) result[i] = undumpInt();
+    return result;
+  }
+
+  /** Read a short array written by PetDumper.dumpShortArray() */
+  public short[] undumpShortArray() {
+    int len = undumpInt();
+    if (len < 0) return null;
+    short[] result = new short[len];
+    for (int i = 0; i < len; ++i) result[i] = undumpShort();
+    return result;
+  }
+
+  /** Read a long array written by PetDumper.dumpLongArray() */
+  public long[] undumpLongArray() {
+    int len = undumpInt();
+    if (len < 0) return null;
+    long[] result = new long[len];
+    for (int i = 0; i < len; ++i) result[i] = undumpLong();
+    return result;
+  }
+
+  /** Read a string: a short with the number of bytes including the
+   *  terminating zero, then the bytes in the charset of this undumper. Pure
+   *  ASCII strings are not passed through the charset decoder.
+   */
   public String undumpString() {
-    int len = undumpShort();
-    byte[] chars = new byte[len-1];
-    buf.get(chars);
-    byte zero = buf.get();
-    assert(zero == 0);
-    return new String(chars);
+    int len = (undumpShort() & 0xffff) - 1;
+    int off = offset();
+    ByteBuffer segment = segment(len + 1);
+    if (len > _chars.length) _chars = new byte[Math.max(len, 2 * _chars.length)];
+    byte[] chars = _chars;
+    int high = 0;
+    for (int i = 0; i < len; ++i) {
+      high |= (chars[i] = segment.get(off + i));
+    }
+    assert(segment.get(off + len) == 0);
+    return (high >= 0 && _asciiCompatible)
+        ? new String(chars, 0, len, StandardCharsets.ISO_8859_1)
+        : new String(chars, 0, len, _charset);
   }
 
   public int[] undumpBitcode(int codesize) throws IOException {
@@ -48,14 +175,57 @@ public class PetUndumper {
     return result;
   }
 
-  public void seekAbsolute(int offset) throws IOException {
-    buf.position(offset);
+  public void seekAbsolute(long offset) throws IOException {
+    _position = offset;
+  }
+
+  /** Return the current position in the file */
+  public long getPosition() { return _position; }
+
+  /** Skip the given number of bytes */
+  public void skip(long bytes) { _position += bytes; }
+
+  /** Write the bytes of the file from position from to position to */
+  public void copyTo(long from, long to, PetDumper out) throws IOException {
+    while (from < to) {
+      ByteBuffer bytes = _segments[(int) (from >>> _segmentBits)].duplicate();
+      int start = (int) from & _segmentMask;
+      int len = (int) Math.min(to - from, (_segmentMask + 1L) - start);
+      bytes.limit(start + len);
+      bytes.position(start);
+      out.dumpBytes(bytes);
+      from += len;
+    }
+  }
+
+  /** Return an undumper for the same file with its own position, which is
+   *  initially the position of this one. The file stays mapped after close(),
+   *  so the result can be used as long as it is referenced.
+   */
+  public PetUndumper duplicate() {
+    PetUndumper result = new PetUndumper(_charset);
+    result._channel = _channel;
+    result._segments = _segments;
+    result._segmentBits = _segmentBits;
+    result._segmentMask = _segmentMask;
+    result._position = _position;
+    return result;
   }
 
   public void open(File aFile) throws FileNotFoundException, IOException {
     _channel = new RandomAccessFile(aFile, "r").getChannel();
-    buf = _channel.map(FileChannel.MapMode.READ_ONLY, 0, (int) _channel.size());
-    buf.order(ByteOrder.LITTLE_ENDIAN);
+    _segmentBits = SEGMENT_BITS;
+    _segmentMask = (1 << _segmentBits) - 1;
+    long size = _channel.size();
+    int segments = (int) ((size + _segmentMask) >>> _segmentBits);
+    _segments = new ByteBuffer[Math.max(1, segments)];
+    for (int i = 0; i < _segments.length; ++i) {
+      long start = (long) i << _segmentBits;
+      long length = Math.min(size - start, _segmentMask + 1L + MAX_ITEM_SIZE);
+      _segments[i] = _channel.map(FileChannel.MapMode.READ_ONLY, start,
+          Math.max(0, length)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    _position = 0;
   }
 
   public void close() throws IOException {
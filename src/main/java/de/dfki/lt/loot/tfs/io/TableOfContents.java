@@ -93,16 +93,29 @@ public class TableOfContents {
   }
 
   public void gotoSection(Section s) throws IOException {
-    _u.seekAbsolute(_sectionOffsets[s.ordinal()]);
-    int sectionType = _u.undumpInt(); // read section type
+    gotoSection(_u, s);
+  }
+
+  private void gotoSection(PetUndumper u, Section s) throws IOException {
+    u.seekAbsolute(_sectionOffsets[s.ordinal()]);
+    int sectionType = u.undumpInt(); // read section type
     if (sectionType != s.ordinal())
       throw new IOException("Section does not start with appropriate " +
           "section identifier: " + sectionType +
           " instead of " + s.ordinal());
   }
 
+  /** Return a new undumper for the grammar file that is positioned at the
+   *  start of section s, so that sections can be read in parallel.
+   */
+  public PetUndumper sectionReader(Section s) throws IOException {
+    PetUndumper result = _u.duplicate();
+    gotoSection(result, s);
+    return result;
+  }
+
   /** Get the grammar description read from the header */
-  String grammarDescription() {
+  public String grammarDescription() {
     return _grammarDescription;
   }
 }
@@ -0,0 +1,156 @@
+package de.dfki.lt.loot.tfs.util;
+
+import gnu.trove.procedure.TLongIntProcedure;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A cache from long to int with a fixed number of entries, which may be
+ *  shared between threads.
+ *
+ *  The table is two-way set associative: a key can only be stored in the two
+ *  slots of its set. Every slot holds key, value and a reference bit in one
+ *  long, so reads and writes of an entry are atomic without locking. The
+ *  reference bit is set by the first hit on an entry. A new entry replaces an
+ *  unreferenced one of its set, if both are referenced, both bits are cleared
+ *  as in the CLOCK algorithm, so that entries that are hit regularly stay in
+ *  the cache, while entries that are used only once are evicted first.
+ *
+ *  Keys must be in the range [0, MAX_KEY] and values in [-1, MAX_VALUE],
+ *  other entries are not stored.
+ */
+public class BoundedLongIntCache implements LongIntCache {
+
+  private static final int VALUE_BITS = 21;
+
+  private static final int KEY_BITS = 41;
+
+  public static final long MAX_KEY = (1L << KEY_BITS) - 1;
+
+  public static final int MAX_VALUE = (1 << VALUE_BITS) - 2;
+
+  private static final long VALUE_MASK = (1L << VALUE_BITS) - 1;
+
+  private static final long REFERENCED = 1L << (KEY_BITS + VALUE_BITS);
+
+  /** The slot content for empty slots, which is never a valid entry */
+  private static final long EMPTY = -1L;
+
+  private final AtomicLongArray _slots;
+
+  /** The mask to get the set number from a hash value */
+  private final int _setMask;
+
+  private final int _noEntryValue;
+
+  private final AtomicInteger _size = new AtomicInteger();
+
+  /** Create a cache with room for at least \p budget entries. The number of
+   *  entries is rounded up to the next power of two. \p noEntryValue is
+   *  returned by get() for missing keys.
+   */
+  public BoundedLongIntCache(int budget, int noEntryValue) {
+    int capacity = Integer.highestOneBit(Math.max(2, budget - 1)) << 1;
+    _slots = new AtomicLongArray(capacity);
+    _setMask = capacity / 2 - 1;
+    _noEntryValue = noEntryValue;
+    clear();
+  }
+
+  /** the finalization step of MurmurHash3 */
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb93e7f4bb53L;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  private static boolean hasKey(long entry, long key) {
+    return entry != EMPTY && ((entry & ~REFERENCED) >>> VALUE_BITS) == key;
+  }
+
+  private static int value(long entry) {
+    return (int) (entry & VALUE_MASK) - 1;
+  }
+
+  @Override
+  public int get(long key) {
+    int slot = 2 * (hash(key) & _setMask);
+    for (int i = slot; i < slot + 2; ++i) {
+      long entry = _slots.get(i);
+      if (hasKey(entry, key)) {
+        if ((entry & REFERENCED) == 0) {
+          // if this fails, some other thread changed the entry, don't care
+          _slots.compareAndSet(i, entry, entry | REFERENCED);
+        }
+        return value(entry);
+      }
+    }
+    return _noEntryValue;
+  }
+
+  /** Store the entry, possibly evicting another one. The entry is dropped if
+   *  key or value are out of range, or if the set is modified concurrently.
+   */
+  @Override
+  public void put(long key, int value) {
+    if (key < 0 || key > MAX_KEY || value < -1 || value > MAX_VALUE) return;
+    long newEntry = (key << VALUE_BITS) | (value + 1);
+    int h = hash(key);
+    int slot = 2 * (h & _setMask);
+    long first = _slots.get(slot), second = _slots.get(slot + 1);
+    int victim;
+    if (hasKey(first, key) || first == EMPTY) {
+      victim = slot;
+    } else if (hasKey(second, key) || second == EMPTY) {
+      victim = slot + 1;
+    } else if ((first & REFERENCED) == 0) {
+      victim = slot;
+    } else if ((second & REFERENCED) == 0) {
+      victim = slot + 1;
+    } else {
+      // both were used since the last eviction: give both a second chance
+      _slots.compareAndSet(slot, first, first & ~REFERENCED);
+      _slots.compareAndSet(slot + 1, second, second & ~REFERENCED);
+      first &= ~REFERENCED;
+      second &= ~REFERENCED;
+      victim = slot + (h >>> 31);
+    }
+    long old = (victim == slot) ? first : second;
+    if (_slots.compareAndSet(victim, old, newEntry) && old == EMPTY) {
+      _size.incrementAndGet();
+    }
+  }
+
+  @Override
+  public int size() {
+    return _size.get();
+  }
+
+  /** Return the maximal number of entries */
+  public int capacity() {
+    return _slots.length();
+  }
+
+  @Override
+  public void clear() {
+    for (int i = 0; i < _slots.length(); ++i) {
+      _slots.set(i, EMPTY);
+    }
+    _size.set(0);
+  }
+
+  @Override
+  public boolean forEachEntry(TLongIntProcedure proc) {
+    for (int i = 0; i < _slots.length(); ++i) {
+      long entry = _slots.get(i);
+      if (entry != EMPTY) {
+        if (! proc.execute((entry & ~REFERENCED) >>> VALUE_BITS, value(entry)))
+          return false;
+      }
+    }
+    return true;
+  }
+}
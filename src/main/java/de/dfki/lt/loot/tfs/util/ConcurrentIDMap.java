@@ -0,0 +1,94 @@
+package de.dfki.lt.loot.tfs.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/** map things from and to integer IDs, like IntIDMap, but new things may be
+ *  registered by parallel threads. The IDs are consecutive, starting at the
+ *  first ID given to the constructor.
+ *
+ *  The reverse mapping is stored in chunks of fixed size, so that it never
+ *  has to be copied when the map grows.
+ */
+public class ConcurrentIDMap<THING> {
+
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  private static final int ILLEGAL_VALUE = -1;
+
+  /** data structure to map from the thing to the corresponding id */
+  private final ConcurrentHashMap<THING, Integer> _thing2Number;
+
+  /** data structure to map from the id to the corresponding thing */
+  private volatile Object[][] _chunks = new Object[16][];
+
+  private final AtomicInteger _size = new AtomicInteger();
+
+  private final int _firstId;
+
+  private final Function<THING, Integer> _register =
+    new Function<THING, Integer>() {
+      @Override
+      public Integer apply(THING thing) {
+        int index = _size.getAndIncrement();
+        chunk(index >>> CHUNK_BITS)[index & (CHUNK_SIZE - 1)] = thing;
+        return _firstId + index;
+      }
+    };
+
+  public ConcurrentIDMap(int firstId) {
+    _firstId = firstId;
+    _thing2Number = new ConcurrentHashMap<THING, Integer>();
+  }
+
+  /** Return the chunk with the given number, creating it if necessary */
+  private Object[] chunk(int number) {
+    Object[][] chunks = _chunks;
+    if (number >= chunks.length || chunks[number] == null) {
+      synchronized (this) {
+        chunks = _chunks;
+        if (number >= chunks.length) {
+          Object[][] bigger = new Object[2 * number][];
+          System.arraycopy(chunks, 0, bigger, 0, chunks.length);
+          chunks = bigger;
+        }
+        if (chunks[number] == null) {
+          chunks[number] = new Object[CHUNK_SIZE];
+        }
+        _chunks = chunks;
+      }
+    }
+    return chunks[number];
+  }
+
+  /** Return the id of thing, registering it if it is not yet known */
+  public int register(THING thing) {
+    Integer id = _thing2Number.get(thing);
+    return (id != null) ? id : _thing2Number.computeIfAbsent(thing, _register);
+  }
+
+  /** Return the id of thing, or -1 if it is not known */
+  public int getId(THING thing) {
+    Integer id = _thing2Number.get(thing);
+    return (id == null) ? ILLEGAL_VALUE : id;
+  }
+
+  /** Return the thing with the given id, or null if the id is not known */
+  @SuppressWarnings("unchecked")
+  public THING fromId(int id) {
+    int index = id - _firstId;
+    if (index < 0 || index >= _size.get()) return null;
+    Object[][] chunks = _chunks;
+    Object[] chunk = chunks[index >>> CHUNK_BITS];
+    return (chunk == null) ? null : (THING) chunk[index & (CHUNK_SIZE - 1)];
+  }
+
+  public boolean contains(THING thing) {
+    return _thing2Number.containsKey(thing);
+  }
+
+  /** Return the number of registered things */
+  public int size() { return _size.get(); }
+}
@@ -0,0 +1,222 @@
+package de.dfki.lt.loot.tfs.util;
+
+import gnu.trove.procedure.TLongIntProcedure;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** A hash map from long to int for caches that are shared between threads,
+ *  using open addressing with linear probing.
+ *
+ *  Key and value of a slot are stored next to each other in one array, so
+ *  that a lookup usually touches only one cache line. Lookups never block
+ *  and take a bounded number of steps, since the table is at most half full.
+ *  An insert claims a free slot with a CAS on the key and then writes the
+ *  value; readers that find the key before the value treat the entry as
+ *  missing. When the table is full, the thread that gets the resize lock
+ *  copies it into one of twice the size, other writers do not wait for it
+ *  but drop their entries. Entries written into the old table during the
+ *  copy may also be lost, so this map is only suitable for caches of values
+ *  that can be recomputed.
+ */
+public class ConcurrentLongIntMap implements LongIntCache {
+
+  /** The key of empty slots, which can therefore not be used as key */
+  public static final long FREE_KEY = Long.MIN_VALUE;
+
+  private static final int MIN_CAPACITY = 16;
+
+  private static final class Table {
+    /** key of slot i at 2 * i, value at 2 * i + 1 */
+    final AtomicLongArray slots;
+    final int mask;
+    /** The maximal number of entries, half of the capacity */
+    final int maxSize;
+    /** The number of used or reserved slots */
+    final AtomicInteger size = new AtomicInteger();
+
+    Table(int capacity, int noEntryValue) {
+      slots = new AtomicLongArray(2 * capacity);
+      for (int i = 0; i < 2 * capacity; i += 2) {
+        slots.set(i, FREE_KEY);
+        slots.set(i + 1, noEntryValue);
+      }
+      mask = capacity - 1;
+      maxSize = capacity / 2;
+    }
+
+    /** Reserve room for one more entry, return false if the table is full */
+    boolean reserve() {
+      int s;
+      do {
+        s = size.get();
+        if (s >= maxSize) return false;
+      } while (! size.compareAndSet(s, s + 1));
+      return true;
+    }
+  }
+
+  private final int _noEntryValue;
+
+  private final int _initialCapacity;
+
+  private volatile Table _table;
+
+  private final ReentrantLock _resizeLock = new ReentrantLock();
+
+  /** Create a map with room for \p expectedSize entries before the first
+   *  resize. \p noEntryValue is returned by get() for missing keys, and can
+   *  not be stored as a value.
+   */
+  public ConcurrentLongIntMap(int expectedSize, int noEntryValue) {
+    _noEntryValue = noEntryValue;
+    _initialCapacity = capacityFor(expectedSize);
+    _table = new Table(_initialCapacity, noEntryValue);
+  }
+
+  private static int capacityFor(int size) {
+    int capacity = MIN_CAPACITY;
+    while (capacity / 2 < size) capacity <<= 1;
+    return capacity;
+  }
+
+  /** the finalization step of MurmurHash3 */
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb93e7f4bb53L;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  /** Return the value for key, or the no entry value if there is none */
+  @Override
+  public int get(long key) {
+    Table t = _table;
+    int i = hash(key) & t.mask;
+    while (true) {
+      long k = t.slots.get(2 * i);
+      if (k == key) return (int) t.slots.get(2 * i + 1);
+      if (k == FREE_KEY) return _noEntryValue;
+      i = (i + 1) & t.mask;
+    }
+  }
+
+  /** Associate value with key. This may be lost if it races with a resize,
+   *  see the class comment.
+   */
+  @Override
+  public void put(long key, int value) {
+    if (key == FREE_KEY) {
+      throw new IllegalArgumentException("Illegal key " + key);
+    }
+    Table t;
+    while (! (t = _table).reserve()) {
+      if (! grow(t)) return;
+    }
+    int i = hash(key) & t.mask;
+    while (true) {
+      long k = t.slots.get(2 * i);
+      if (k == FREE_KEY) {
+        if (t.slots.compareAndSet(2 * i, FREE_KEY, key)) {
+          t.slots.set(2 * i + 1, value);
+          return;
+        }
+        k = t.slots.get(2 * i);
+      }
+      if (k == key) {
+        // the key is already there, give back the reserved room
+        t.size.decrementAndGet();
+        t.slots.set(2 * i + 1, value);
+        return;
+      }
+      i = (i + 1) & t.mask;
+    }
+  }
+
+  /** Replace the full table t by a larger copy. Return false if some other
+   *  thread is doing that at the moment.
+   */
+  private boolean grow(Table t) {
+    if (! _resizeLock.tryLock()) return false;
+    try {
+      if (_table == t) {
+        Table bigger = new Table(2 * (t.mask + 1), _noEntryValue);
+        for (int i = 0; i <= t.mask; ++i) {
+          long key = t.slots.get(2 * i);
+          int value = (int) t.slots.get(2 * i + 1);
+          if (key != FREE_KEY && value != _noEntryValue) {
+            int j = hash(key) & bigger.mask;
+            while (bigger.slots.get(2 * j) != FREE_KEY) {
+              j = (j + 1) & bigger.mask;
+            }
+            bigger.slots.set(2 * j, key);
+            bigger.slots.set(2 * j + 1, value);
+            bigger.size.incrementAndGet();
+          }
+        }
+        _table = bigger;
+      }
+      return true;
+    } finally {
+      _resizeLock.unlock();
+    }
+  }
+
+  /** Return the number of entries */
+  @Override
+  public int size() {
+    return _table.size.get();
+  }
+
+  /** Remove all entries */
+  @Override
+  public void clear() {
+    _table = new Table(_initialCapacity, _noEntryValue);
+  }
+
+  /** Call proc for all entries until it returns false. Return false if the
+   *  iteration was stopped, true otherwise.
+   */
+  @Override
+  public boolean forEachEntry(TLongIntProcedure proc) {
+    Table t = _table;
+    for (int i = 0; i <= t.mask; ++i) {
+      long key = t.slots.get(2 * i);
+      int value = (int) t.slots.get(2 * i + 1);
+      if (key != FREE_KEY && value != _noEntryValue) {
+        if (! proc.execute(key, value)) return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) return true;
+    if (! (obj instanceof ConcurrentLongIntMap)) return false;
+    final ConcurrentLongIntMap other = (ConcurrentLongIntMap) obj;
+    if (size() != other.size()) return false;
+    return forEachEntry(new TLongIntProcedure() {
+      @Override
+      public boolean execute(long key, int value) {
+        return other.get(key) == value;
+      }
+    });
+  }
+
+  @Override
+  public int hashCode() {
+    final int[] result = { 0 };
+    forEachEntry(new TLongIntProcedure() {
+      @Override
+      public boolean execute(long key, int value) {
+        result[0] += hash(key) ^ value;
+        return true;
+      }
+    });
+    return result[0];
+  }
+}
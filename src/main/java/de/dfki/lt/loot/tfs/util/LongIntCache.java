@@ -0,0 +1,26 @@
+package de.dfki.lt.loot.tfs.util;
+
+import gnu.trove.procedure.TLongIntProcedure;
+
+/** A map from long to int that may be shared between threads and may drop
+ *  entries, so it can only hold values that can be recomputed.
+ */
+public interface LongIntCache {
+
+  /** Return the value for key, or the no entry value if there is none */
+  public int get(long key);
+
+  /** Associate value with key, if the cache decides to keep it */
+  public void put(long key, int value);
+
+  /** Return the number of entries */
+  public int size();
+
+  /** Remove all entries */
+  public void clear();
+
+  /** Call proc for all entries until it returns false. Return false if the
+   *  iteration was stopped, true otherwise.
+   */
+  public boolean forEachEntry(TLongIntProcedure proc);
+}
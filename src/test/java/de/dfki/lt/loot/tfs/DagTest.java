@@ -0,0 +1,134 @@
+package de.dfki.lt.loot.tfs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.dfki.lt.loot.tfs.io.InvalidSyntaxException;
+
+public class DagTest {
+  private static FSGrammar gram;
+
+  private static Dag dags[];
+
+  @BeforeClass public static void setUp() throws InvalidSyntaxException {
+    File resourceDir = UnifTest.getTestResourceDir();
+
+    gram = new FSGrammar(
+        new File(resourceDir, "minimal/uniftest.grm").getAbsolutePath());
+    dags = new Dag[UnifTest.base.length];
+    for (int i = 0; i < dags.length; ++i) {
+      dags[i] = Dag.DagnodeToDag(TFS.fsFromString(UnifTest.base[i]).dag());
+    }
+  }
+
+  @Test
+  public void testConversion() throws InvalidSyntaxException {
+    for (int i = 0; i < dags.length; ++i) {
+      DagNode orig = TFS.fsFromString(UnifTest.base[i]).dag();
+      assertEquals("" + i, orig, dags[i].toDagNode());
+      assertEquals("" + i, dags[i], Dag.DagnodeToDag(dags[i].toDagNode()));
+      assertEquals(orig.getType(), dags[i].getType());
+    }
+  }
+
+  @Test
+  public void testSubsumption() throws InvalidSyntaxException {
+    for (int i = 0; i < dags.length; ++i) {
+      for (int j = 0; j < dags.length; ++j) {
+        int expected = UnifTest.subsResults[j + dags.length * i];
+        assertEquals(i + ":" + j,
+            (expected & DagNode.THIS_MORE_GENERAL) != 0,
+            dags[i].subsumes(dags[j]));
+        assertEquals(i + ":" + j,
+            (expected & DagNode.ARG_MORE_GENERAL) != 0,
+            dags[j].subsumes(dags[i]));
+      }
+    }
+  }
+
+  @Test
+  public void testUnification() throws InvalidSyntaxException {
+    for (int i = 0; i < dags.length; ++i) {
+      for (int j = 0; j < dags.length; ++j) {
+        TFS a = TFS.fsFromString(UnifTest.base[i]);
+        TFS b = TFS.fsFromString(UnifTest.base[j]);
+        TFS expected = a.unifyFS(b);
+        Dag result = dags[i].unify(dags[j]);
+        assertEquals(i + ":" + j, expected != null, result != null);
+        if (result != null) {
+          assertEquals(i + ":" + j, expected.dag(), result.toDagNode());
+          assertTrue(dags[i].subsumes(result));
+          assertTrue(dags[j].subsumes(result));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testWellformedness() throws InvalidSyntaxException {
+    Dag a = Dag.DagnodeToDag(TFS.fsFromString("[ *cons* FIRST [ g ] ]").dag());
+    Dag b = Dag.DagnodeToDag(TFS.fsFromString("[ *cons* FIRST [ h ] ]").dag());
+    TFS expected = TFS.fsFromString("[ *cons* FIRST [ g ] ]").unifyFS(
+        TFS.fsFromString("[ *cons* FIRST [ h ] ]"));
+    Dag result = a.unify(b);
+    assertEquals(expected != null, result != null);
+    if (result != null) {
+      assertEquals(expected.dag(), result.toDagNode());
+    }
+  }
+
+  @Test
+  public void testUnifyWithArg() throws InvalidSyntaxException {
+    Dag fs1 = Dag.DagnodeToDag(TFS.fsFromString(
+        "[ *top* ARGS [ *cons* FIRST [ j ] REST [ *null* ] ] ]").dag());
+    Dag fs2 = Dag.DagnodeToDag(TFS.fsFromString("[ j ]").dag());
+    Dag fs3 = Dag.DagnodeToDag(TFS.fsFromString("[ f ]").dag());
+    assertEquals(fs1, fs1.unify(fs2, 0));
+    assertNull(fs1.unify(fs3, 0));
+    assertNull(fs1.unify(fs2, 1));
+  }
+
+  @Test
+  public void testCycle() throws InvalidSyntaxException {
+    Dag cyclic = Dag.DagnodeToDag(
+        TFS.fsFromString("# 1 [ *top* FIRST # 1 ]").dag());
+    Dag top = Dag.DagnodeToDag(TFS.fsFromString("[ *top* ]").dag());
+    assertTrue(cyclic.isUnifiable(top));
+    assertNull(cyclic.unify(top));
+  }
+
+  @Test
+  public void testParallelUnification() throws Exception {
+    final Throwable[] failure = { null };
+    Thread[] workers = new Thread[4];
+    for (int t = 0; t < workers.length; ++t) {
+      workers[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int round = 0; round < 20; ++round) {
+              for (int i = 0; i < dags.length; ++i) {
+                for (int j = 0; j < dags.length; ++j) {
+                  Dag res = dags[i].unify(dags[j]);
+                  if (res != null) {
+                    assertTrue(dags[i].subsumes(res));
+                    assertTrue(dags[j].subsumes(res));
+                  }
+                }
+              }
+            }
+          } catch (Throwable ex) {
+            synchronized (failure) { failure[0] = ex; }
+          }
+        }
+      };
+      workers[t].start();
+    }
+    for (Thread w : workers) w.join();
+    if (failure[0] != null) throw new AssertionError(failure[0]);
+  }
+}
@@ -0,0 +1,88 @@
+package de.dfki.lt.loot.tfs;
+
+import java.io.File;
+
+import de.dfki.lt.loot.tfs.io.InvalidSyntaxException;
+
+/** Compares the feature lookup strategies of DagNode on the ARGS/FIRST/REST
+ *  access patterns of the parser (getNthArg, getListLength, getKeyArg).
+ *
+ *  Run with the test classpath, optional arguments are the length of the
+ *  ARGS list and the number of rounds.
+ */
+public class FeatureLookupBenchmark {
+
+  /** A wide node with many features besides ARGS, like the signs of real
+   *  grammars.
+   */
+  private static final String WIDE =
+    "[ *top* A [ *top* ] B [ *top* ] C [ *top* ] D [ *top* ] E [ *top* ]"
+    + " G [ *top* ] H [ *top* ] I [ *top* ] LIST [ *top* ] LAST [ *top* ]"
+    + " ARGS ";
+
+  private static String argsList(String prefix, int length) {
+    StringBuilder sb = new StringBuilder(prefix);
+    for (int i = 0; i < length; ++i) {
+      sb.append("[ *cons* FIRST [ j ARGS [ *top* ] ] REST ");
+    }
+    sb.append("[ *null* ]");
+    for (int i = 0; i < length; ++i) {
+      sb.append(" ]");
+    }
+    return sb.append(" ]").toString();
+  }
+
+  private static long run(DagNode dag, int length, int rounds) {
+    long sum = 0;
+    for (int r = 0; r < rounds; ++r) {
+      sum += dag.getListLength();
+      for (int i = 0; i < length; ++i) {
+        DagNode arg = dag.getNthArg(i);
+        if (arg != null) sum += arg.getType();
+      }
+    }
+    return sum;
+  }
+
+  private static void measure(String name, DagNode dag, int length,
+      int rounds) {
+    run(dag, length, rounds / 10); // warm up
+    long start = System.nanoTime();
+    long check = run(dag, length, rounds);
+    long time = System.nanoTime() - start;
+    System.out.println(String.format("%-20s %8.2f ms  (%d)",
+        name, time / 1e6, check));
+  }
+
+  public static void main(String[] args) throws InvalidSyntaxException {
+    int length = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+    File resourceDir = UnifTest.getTestResourceDir();
+    new FSGrammar(
+        new File(resourceDir, "minimal/uniftest.grm").getAbsolutePath());
+    DagNode narrow =
+      TFS.fsFromString(argsList("[ *top* ARGS ", length)).dag();
+    DagNode wide = TFS.fsFromString(argsList(WIDE, length)).dag();
+
+    boolean indexed = DagNode.INDEXED_LOOKUP;
+    int limit = DagNode.LINEAR_SEARCH_LIMIT;
+    try {
+      DagNode.INDEXED_LOOKUP = false;
+      DagNode.LINEAR_SEARCH_LIMIT = Integer.MAX_VALUE;
+      measure("narrow, linear", narrow, length, rounds);
+      measure("wide, linear", wide, length, rounds);
+      DagNode.LINEAR_SEARCH_LIMIT = 0;
+      measure("narrow, binary", narrow, length, rounds);
+      measure("wide, binary", wide, length, rounds);
+      DagNode.INDEXED_LOOKUP = true;
+      measure("narrow, slot index", narrow, length, rounds);
+      DagNode.LINEAR_SEARCH_LIMIT = limit;
+      measure("narrow, adaptive", narrow, length, rounds);
+      measure("wide, adaptive", wide, length, rounds);
+    } finally {
+      DagNode.INDEXED_LOOKUP = indexed;
+      DagNode.LINEAR_SEARCH_LIMIT = limit;
+    }
+  }
+}
@@ -5,19 +5,26 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
-import gnu.trove.map.TLongIntMap;
-import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.set.hash.TShortHashSet;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +32,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import de.dfki.lt.loot.tfs.io.InvalidSyntaxException;
+import de.dfki.lt.loot.tfs.io.PetUndumper;
+import de.dfki.lt.loot.tfs.util.BoundedLongIntCache;
+import de.dfki.lt.loot.tfs.util.ConcurrentLongIntMap;
+import de.dfki.lt.loot.tfs.util.LongIntCache;
 
 public class UnifTest {
 
@@ -538,6 +549,76 @@ public class UnifTest {
     }
   }
 
+  @Test public void testStructureSharing() throws InvalidSyntaxException {
+    try {
+      DagNode.structureSharing(true);
+      for (int i = 0; i < base.length; ++i) {
+        for (int j = 0; j < base.length; ++j) {
+          TFS a = TFS.fsFromString(base[i]);
+          TFS b = TFS.fsFromString(base[j]);
+          TFS result = a.unifyFS(b);
+          TFS expected = afs[i].unifyFS(bfs[j]);
+          assertEquals("" + i + ":" + j, expected, result);
+          // the inputs must not have been changed
+          assertEquals(TFS.fsFromString(base[i]), a);
+          assertEquals(TFS.fsFromString(base[j]), b);
+        }
+      }
+      TFS fs1 = TFS.fsFromString(
+          "[ *cons* FIRST [ *cons* FIRST [ f ] ] REST [ *top* ] ]");
+      TFS fs2 = TFS.fsFromString("[ *cons* REST [ *cons* ] ]");
+      TFS result = fs1.unifyFS(fs2);
+      assertTrue(fs1.dag().getValue(DagNode.FIRST_FEATURE)
+          == result.dag().getValue(DagNode.FIRST_FEATURE));
+      assertTrue(fs1.dag() != result.dag());
+    } finally {
+      DagNode.structureSharing(false);
+    }
+  }
+
+  @Test public void testParallelUnification() throws Exception {
+    final int threads = 4;
+    final Throwable[] failure = { null };
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; ++t) {
+      workers[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            // every thread needs its own dags, only the grammar is shared
+            TFS[] a = new TFS[base.length];
+            TFS[] b = new TFS[base.length];
+            for (int round = 0; round < 20; ++round) {
+              for (int i = 0; i < base.length; ++i) {
+                a[i] = TFS.fsFromString(base[i]);
+                b[i] = TFS.fsFromString(base[i]);
+              }
+              for (int i = 0; i < base.length; ++i) {
+                for (int j = 0; j < base.length; ++j) {
+                  boolean result = a[i].unifiable(b[j]);
+                  if (a[i].checkCycles() || b[j].checkCycles()) result = false;
+                  assertEquals("" + i + ":" + j,
+                      unifResults[j + base.length * i], result);
+                  assertEquals("" + i + ":" + j,
+                      subsResults[j + base.length * i], a[i].subsumesBi(b[j]));
+                  TFS res = a[i].unifyFS(b[j]);
+                  if (res != null) {
+                    assertEquals(res, res.copyResult());
+                  }
+                }
+              }
+            }
+          } catch (Throwable ex) {
+            synchronized(failure) { failure[0] = ex; }
+          }
+        }
+      };
+    }
+    for (Thread worker : workers) worker.start();
+    for (Thread worker : workers) worker.join();
+    if (failure[0] != null) throw new AssertionError(failure[0]);
+  }
+
   private List<List<Short>> getPermutations(short[] set) {
     int pow = 1 >> set.length - 1; // 2 ^ set.length - 1
     List<List<Short>> result = new ArrayList<List<Short>>(pow);
@@ -662,6 +743,118 @@ public class UnifTest {
             new Short[] {DagNode.ARGS_FEATURE, DagNode.FIRST_FEATURE}).iterator()));
   }
 
+  @Test public void edgeRemovalTest() throws InvalidSyntaxException {
+    TFS fs1 = TFS.fsFromString(
+        "[ *cons* FIRST [ j ] REST [ *cons* FIRST [ f ] ] ARGS [ *top* ] ]");
+    fs1.dag().removeEdge(DagNode.REST_FEATURE);
+    assertNull(fs1.dag().getValue(DagNode.REST_FEATURE));
+    assertEquals(TFS.fsFromString("[ *cons* FIRST [ j ] ARGS [ *top* ] ]"),
+        fs1);
+    Iterator<DagEdge> it = fs1.dag().getEdgeIterator();
+    while (it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+    assertEquals(TFS.fsFromString("[ *cons* ]"), fs1);
+    assertFalse(fs1.dag().getEdgeIterator().hasNext());
+  }
+
+  @Test public void featureLookupTest() throws InvalidSyntaxException {
+    short[] feats = { DagNode.ARGS_FEATURE, DagNode.FIRST_FEATURE,
+        DagNode.REST_FEATURE };
+    boolean indexed = DagNode.INDEXED_LOOKUP;
+    int limit = DagNode.LINEAR_SEARCH_LIMIT;
+    try {
+      for (String s : base) {
+        DagNode dag = TFS.fsFromString(s).dag();
+        for (short f : feats) {
+          DagNode.INDEXED_LOOKUP = false;
+          DagNode.LINEAR_SEARCH_LIMIT = Integer.MAX_VALUE;
+          DagNode expected = dag.getValue(f);
+          DagNode.LINEAR_SEARCH_LIMIT = 0;
+          assertTrue(s, expected == dag.getValue(f));
+          DagNode.INDEXED_LOOKUP = true;
+          assertTrue(s, expected == dag.getValue(f));
+          DagNode.LINEAR_SEARCH_LIMIT = limit;
+          assertTrue(s, expected == dag.getValue(f));
+        }
+      }
+    } finally {
+      DagNode.INDEXED_LOOKUP = indexed;
+      DagNode.LINEAR_SEARCH_LIMIT = limit;
+    }
+  }
+
+  /** Build a list of the given length, with nodes of type first as elements
+   *  and all edges created directly, since the reader is recursive.
+   */
+  private static DagNode longList(int length, int first) {
+    DagNode list = DagNode.buildFS(gram.getTypeId("*null*"));
+    int cons = gram.getTypeId("*cons*");
+    for (int i = 0; i < length; ++i) {
+      DagNode node = DagNode.buildFS(cons);
+      if (DagNode.FIRST_FEATURE < DagNode.REST_FEATURE) {
+        node.addEdge(DagNode.FIRST_FEATURE, DagNode.buildFS(first));
+        node.addEdge(DagNode.REST_FEATURE, list);
+      } else {
+        node.addEdge(DagNode.REST_FEATURE, list);
+        node.addEdge(DagNode.FIRST_FEATURE, DagNode.buildFS(first));
+      }
+      list = node;
+    }
+    return list;
+  }
+
+  @Test public void longListTest() {
+    int length = 100000;
+    DagNode general = longList(length, gram.getTypeId("*top*"));
+    DagNode special = longList(length, gram.getTypeId("j"));
+    DagNode result = general.unifyFS(special);
+    assertNotNull(result);
+    assertTrue(result.equals(special));
+    assertFalse(result.equals(general));
+    assertTrue(general.isUnifiable(special));
+    assertNull(special.unifyFS(longList(length, gram.getTypeId("f"))));
+    assertEquals(DagNode.THIS_MORE_GENERAL, general.subsumesBi(special));
+    assertTrue(general.subsumes(result));
+    assertFalse(result.subsumes(general));
+    assertTrue(result.isSubsumedBy(general));
+    assertTrue(result.toString().length() > length);
+
+    String[] toDelete = { FSGrammar.ARGS_FEATURE_NAME };
+    TFS massaged = new TFS(result)
+      .copyResult(DelDtrsMassager.newMassager(gram, toDelete));
+    assertNotNull(massaged);
+    assertTrue(massaged.dag().equals(special));
+    DagNode restrictor = DagNode.buildFS(DagNode.RESTRICT.RSTR_NO.ordinal());
+    restrictor.addEdge(DagNode.FIRST_FEATURE,
+        DagNode.buildFS(DagNode.RESTRICT.RSTR_DEL.ordinal()));
+    DagNode restricted = result.copyResult(restrictor);
+    assertNotNull(restricted);
+    special.removeEdge(DagNode.FIRST_FEATURE);
+    assertTrue(restricted.equals(special));
+  }
+
+  @Test public void lastFailureTest() throws InvalidSyntaxException {
+    TFS fs1 = TFS.fsFromString("[ *cons* FIRST [ j ] ]");
+    assertNotNull(fs1.unifyFS(TFS.fsFromString("[ *cons* FIRST [ j ] ]")));
+    assertEquals(DagNode.FailType.SUCCESS, DagNode.getLastFailure());
+    assertNull(fs1.unifyFS(TFS.fsFromString("[ *cons* FIRST [ f ] ]")));
+    assertEquals(DagNode.FailType.TYPE, DagNode.getLastFailure());
+    assertNull(TFS.fsFromString("# 1 [ *top* FIRST # 1 ]")
+        .unifyFS(TFS.fsFromString("[ *top* ]")));
+    assertEquals(DagNode.FailType.CYCLE, DagNode.getLastFailure());
+    assertNull(fs1.unifyFS(fs1, 3));
+    assertEquals(DagNode.FailType.FEATURE, DagNode.getLastFailure());
+    assertTrue(fs1.unifiable(fs1));
+    assertEquals(DagNode.FailType.SUCCESS, DagNode.getLastFailure());
+    assertNull(fs1.unifyFS(TFS.fsFromString("[ *cons* FIRST [ f ] ]")));
+    assertEquals(DagNode.FailType.TYPE, DagNode.getLastFailure());
+    assertNotNull(fs1.copyResult(
+        new TFS(DagNode.buildFS(DagNode.RESTRICT.RSTR_NO.ordinal()))));
+    assertEquals(DagNode.FailType.SUCCESS, DagNode.getLastFailure());
+  }
+
   @Test public void testUnifyWithArg() throws InvalidSyntaxException {
     TFS fs1 = TFS.fsFromString("[ *top* ARGS [ *cons* FIRST [ j ] REST [ *null* ] ] ]");
     TFS fs2 = TFS.fsFromString("[ j ]");
@@ -754,6 +947,110 @@ public class UnifTest {
     assertFalse(fs1.qcCompatible(fs5));
   }
 
+  @Test public void testUnifyAll() throws Exception {
+    TFS rule = TFS.fsFromString("[ *top* ARGS [ *cons*" +
+        " FIRST [ j ARGS [ *cons* ] ]" +
+        " REST [ *cons* FIRST [ *null* ] REST [ *null* ] ] ] ]");
+    List<TFS> candidates = new ArrayList<TFS>();
+    for (String fs : base) candidates.add(TFS.fsFromString(fs));
+    candidates.add(TFS.fsFromString("[ j ]"));
+    candidates.add(TFS.fsFromString("[ f ARGS [ *cons* ] ]"));
+    candidates.add(TFS.fsFromString("[ *top* ARGS [ *list* ] ]"));
+    String[] toDelete = { FSGrammar.ARGS_FEATURE_NAME };
+    FSMassager massager = DelDtrsMassager.newMassager(gram, toDelete);
+
+    List<TFS> plain = rule.unifyAll(candidates, 0, null);
+    List<TFS> restricted = rule.unifyAll(candidates, 0, massager);
+    assertEquals(candidates.size(), plain.size());
+    assertEquals(candidates.size(), restricted.size());
+    int succeeded = 0;
+    for (int i = 0; i < candidates.size(); ++i) {
+      TFS expected = rule.unifyFS(candidates.get(i), 0);
+      assertEquals("" + i, expected, plain.get(i));
+      assertEquals("" + i, massager.unifyRestrict(rule, candidates.get(i), 0),
+          restricted.get(i));
+      if (expected != null) ++succeeded;
+    }
+    assertTrue(succeeded > 0 && succeeded < candidates.size());
+    for (TFS res : rule.unifyAll(candidates, 2, null)) assertNull(res);
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      assertEquals(plain, rule.unifyAll(candidates, 0, null, executor, 4));
+      assertEquals(restricted,
+          rule.unifyAll(candidates, 0, massager, executor, 100));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void failureCacheTest() throws Exception {
+    TFS rule = TFS.fsFromString(
+        "[ *top* ARGS [ *cons* FIRST [ j ] REST [ *cons* FIRST [ *top* ] ] ] ]");
+    TFS good = TFS.fsFromString("[ j ]");
+    TFS bad = TFS.fsFromString("[ f ]");
+    rule.setID(3); good.setID(7); bad.setID(8);
+    FailureCache cache = new FailureCache(100);
+    assertEquals(128, cache.capacity());
+    TFS.setFailureCache(cache);
+    try {
+      assertNull(rule.unifyFS(bad, 0));
+      assertEquals(DagNode.FailType.TYPE, DagNode.getLastFailure());
+      assertTrue(cache.contains(3, 0, 8));
+      assertNull(rule.unifyFS(bad, 0));
+      assertEquals(DagNode.FailType.CACHED, DagNode.getLastFailure());
+      assertFalse(rule.unifyOnly(bad, 0));
+      assertFalse(cache.contains(3, 1, 8));
+      assertNotNull(rule.unifyFS(bad, 1));
+      assertNotNull(rule.unifyFS(good, 0));
+      assertFalse(cache.contains(3, 0, 7));
+      assertFalse(good.unifiable(bad));
+      assertTrue(cache.contains(7, -1, 8));
+      assertFalse(good.unifiable(bad));
+      assertEquals(DagNode.FailType.CACHED, DagNode.getLastFailure());
+
+      // failures after an intermediate result are not recorded
+      TFS corefRule = TFS.fsFromString(
+          "[ *top* ARGS [ *cons* FIRST #1 [ *top* ] REST [ *cons* FIRST #1 ] ] ]");
+      corefRule.setID(4);
+      assertTrue(corefRule.unifyOnly(good, 0));
+      assertFalse(corefRule.unifyOnly(bad, 1));
+      corefRule.invalidate();
+      assertFalse(cache.contains(4, 1, 8));
+      assertNotNull(corefRule.unifyFS(bad, 1));
+
+      // TFSs without ID are not cached
+      TFS noId = TFS.fsFromString("[ f ]");
+      assertNull(rule.unifyFS(noId, 0));
+      assertNull(rule.unifyFS(noId, 0));
+      assertEquals(DagNode.FailType.TYPE, DagNode.getLastFailure());
+
+      // a reloaded grammar starts with an empty cache of its own
+      GrammarHolder holder = new GrammarHolder(gram);
+      holder.reload(new File(getTestResourceDir(), "minimal/uniftest.grm")
+          .getAbsolutePath());
+      FailureCache reloaded = holder.get().getFailureCache();
+      assertTrue(reloaded != null && reloaded != cache);
+      assertEquals(cache.capacity(), reloaded.capacity());
+      assertTrue(holder.call(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws InvalidSyntaxException {
+          TFS rule = TFS.fsFromString("[ *top* ARGS [ *cons* FIRST [ f ] ] ]");
+          rule.setID(3);
+          return rule.unifyFS(bad, 0) != null;
+        }
+      }));
+      assertFalse(reloaded.contains(3, 0, 8));
+      assertTrue(cache.contains(3, 0, 8));
+      assertTrue(TFS.getFailureCache() == cache);
+
+      cache.clear();
+      assertFalse(cache.contains(3, 0, 8));
+    } finally {
+      TFS.setFailureCache(null);
+    }
+  }
+
   @Test public void testPrinting() throws InvalidSyntaxException {
     String fs1String = "[*top* ARGS[*cons*" +
         " FIRST[j ARGS[*cons*]]" +
@@ -860,6 +1157,596 @@ public class UnifTest {
     }
   }
 
+  @Test public void hierarchyIndexTest() {
+    int noTypes = gram.getNoOfTypes();
+    for (int i = 0; i < noTypes; ++i) {
+      for (int j = 0; j < noTypes; ++j) {
+        assertEquals(i + ":" + j, gram.unifyTypes(i, j) == j,
+            gram.subsumesType(i, j));
+      }
+    }
+    assertEquals(1, gram.getTopDistance(FSGrammar.TOP_TYPE));
+    for (int type = 1; type < noTypes; ++type) {
+      int dist = Integer.MAX_VALUE;
+      for (int superType : gram.superTypes(type)) {
+        assertTrue(gram.subsumesType(superType, type));
+        dist = Math.min(dist, gram.getTopDistance(superType));
+      }
+      assertEquals(dist + 1, gram.getTopDistance(type));
+    }
+  }
+
+  @Test public void dynamicTypeTest() throws Exception {
+    final String[] names = new String[200];
+    for (int i = 0; i < names.length; ++i) names[i] = "\"dyn" + i + "\"";
+    final int[][] ids = new int[4][names.length];
+    ExecutorService executor = Executors.newFixedThreadPool(ids.length);
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int t = 0; t < ids.length; ++t) {
+      final int[] myIds = ids[t];
+      futures.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < names.length; ++i) {
+            myIds[i] = gram.getNumberForTypeName(names[i]);
+          }
+        }
+      }));
+    }
+    for (Future<?> f : futures) f.get();
+    executor.shutdown();
+
+    int glbs = gram._glbCache.size();
+    int string = gram.stringTypeId;
+    for (int i = 0; i < names.length; ++i) {
+      int dyn = ids[0][i];
+      for (int[] other : ids) assertEquals(dyn, other[i]);
+      assertTrue(gram.isDynamicType(dyn));
+      assertEquals(dyn, gram.getTypeId(names[i]));
+      assertEquals(names[i], gram.getTypeName(dyn));
+      assertEquals(dyn, gram.unifyTypes(dyn, dyn));
+      assertEquals(dyn, gram.unifyTypes(string, dyn));
+      assertEquals(dyn, gram.unifyTypes(dyn, FSGrammar.TOP_TYPE));
+      assertTrue(gram.subsumesType(string, dyn));
+      assertFalse(gram.subsumesType(dyn, string));
+      assertEquals(FSGrammar.BOTTOM_TYPE,
+          gram.unifyTypes(dyn, ids[0][(i + 1) % names.length]));
+      for (int type = 1; type < gram.getNoOfTypes(); ++type) {
+        assertEquals(gram.subsumesType(type, string) ? dyn
+            : FSGrammar.BOTTOM_TYPE, gram.unifyTypes(type, dyn));
+      }
+    }
+    assertEquals(glbs, gram._glbCache.size());
+    assertEquals(FSGrammar.BOTTOM_TYPE, gram.getTypeId("\"unknown\""));
+    assertEquals(gram.getTopDistance(string) + 1,
+        gram.getTopDistance(ids[0][0]));
+  }
+
+  @Test public void lazyTypeFSTest() throws Exception {
+    String file = new File(getTestResourceDir(), "minimal/uniftest.grm")
+        .getAbsolutePath();
+    boolean lazyTypeFS = FSGrammar.LAZY_TYPE_FS;
+    final FSGrammar lazyGram;
+    try {
+      FSGrammar.LAZY_TYPE_FS = true;
+      lazyGram = new FSGrammar(file, false);
+    } finally {
+      FSGrammar.LAZY_TYPE_FS = lazyTypeFS;
+    }
+    int noTypes = lazyGram.getNoOfGrammarTypes();
+    for (int type : lazyGram.getRuleTypes()) {
+      assertNotNull(lazyGram._typeFS.get(type));
+    }
+    TFS[] lazy = new TFS[noTypes];
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int type = 0; type < noTypes; ++type) {
+        final int t = type;
+        TFS old = lazyGram._typeFS.getAndSet(type, null);
+        List<Future<TFS>> results = new ArrayList<Future<TFS>>();
+        for (int i = 0; i < 4; ++i) {
+          results.add(executor.submit(new Callable<TFS>() {
+            @Override
+            public TFS call() { return lazyGram.getFS(t); }
+          }));
+        }
+        lazy[type] = results.get(0).get();
+        for (Future<TFS> result : results) {
+          assertTrue(lazy[type] == result.get());
+        }
+        if (old != null) {
+          assertEquals(old, lazy[type]);
+          lazyGram._typeFS.set(type, old);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    // the default grammar is built eagerly
+    for (int type = 0; type < noTypes; ++type) {
+      assertNotNull(gram._typeFS.get(type));
+      assertEquals(gram.getFS(type), lazy[type]);
+    }
+  }
+
+  /** Check that other was loaded from the same grammar as gram */
+  private void assertSameGrammar(FSGrammar other) {
+    int noTypes = gram.getNoOfGrammarTypes();
+    assertEquals(noTypes, other.getNoOfGrammarTypes());
+    assertEquals(gram.getNoOfFeatures(), other.getNoOfFeatures());
+    for (short f = 0; f < gram.getNoOfFeatures(); ++f) {
+      assertEquals(gram.getFeatureName(f), other.getFeatureName(f));
+    }
+    for (int i = 0; i < noTypes; ++i) {
+      assertEquals(gram.getTypeName(i), other.getTypeName(i));
+      assertEquals(gram.getStatusForType(i), other.getStatusForType(i));
+      assertEquals(gram.getFS(i), other.getFS(i));
+      assertEquals(gram.getTopDistance(i), other.getTopDistance(i));
+      for (int j = 0; j < noTypes; ++j) {
+        assertEquals(gram.unifyTypes(i, j), other.unifyTypes(i, j));
+        assertEquals(gram.subsumesType(i, j), other.subsumesType(i, j));
+      }
+    }
+  }
+
+  @Test public void parallelLoadTest() {
+    boolean lazyTypeFS = FSGrammar.LAZY_TYPE_FS;
+    try {
+      FSGrammar.PARALLEL_LOAD = true;
+      for (boolean lazy : new boolean[] { true, false }) {
+        FSGrammar.LAZY_TYPE_FS = lazy;
+        FSGrammar parallel = new FSGrammar(new File(getTestResourceDir(),
+            "minimal/uniftest.grm").getAbsolutePath());
+        assertSameGrammar(parallel);
+      }
+    } finally {
+      FSGrammar.PARALLEL_LOAD = false;
+      FSGrammar.LAZY_TYPE_FS = lazyTypeFS;
+      TFS.setGrammar(gram);
+    }
+  }
+
+  @Test public void segmentedLoadTest() {
+    int bits = PetUndumper.SEGMENT_BITS;
+    try {
+      PetUndumper.SEGMENT_BITS = 6;
+      FSGrammar.INTERN_NAMES = true;
+      FSGrammar other = new FSGrammar(new File(getTestResourceDir(),
+          "minimal/uniftest.grm").getAbsolutePath());
+      assertSameGrammar(other);
+      String name = other.getTypeName(gram.getNoOfGrammarTypes() - 1);
+      assertTrue(name == name.intern());
+    } finally {
+      PetUndumper.SEGMENT_BITS = bits;
+      FSGrammar.INTERN_NAMES = false;
+      TFS.setGrammar(gram);
+    }
+  }
+
+  @Test public void grammarCharsetTest() {
+    Charset charset = PetUndumper.DEFAULT_CHARSET;
+    try {
+      // the fallback is not used if the charset is given
+      PetUndumper.DEFAULT_CHARSET = StandardCharsets.UTF_16;
+      FSGrammar other = new FSGrammar(new File(getTestResourceDir(),
+          "minimal/uniftest.grm").getAbsolutePath(), false,
+          StandardCharsets.UTF_8);
+      assertEquals(StandardCharsets.UTF_8, other.getCharset());
+      assertSameGrammar(other);
+    } finally {
+      PetUndumper.DEFAULT_CHARSET = charset;
+    }
+  }
+
+  @Test public void snapshotTest() throws IOException {
+    File dir = Files.createTempDirectory("snapshot").toFile();
+    File grammarFile = new File(dir, "uniftest.grm");
+    File snapshot = FSGrammar.snapshotFile(grammarFile);
+    Files.copy(new File(getTestResourceDir(), "minimal/uniftest.grm").toPath(),
+        grammarFile.toPath());
+    boolean lazyTypeFS = FSGrammar.LAZY_TYPE_FS;
+    try {
+      FSGrammar.GRAMMAR_SNAPSHOT = true;
+      assertSameGrammar(new FSGrammar(grammarFile.getPath()));
+      assertTrue(snapshot.exists());
+
+      // the snapshot is used, and not written again
+      for (boolean lazy : new boolean[] { true, false }) {
+        FSGrammar.LAZY_TYPE_FS = lazy;
+        assertTrue(snapshot.setLastModified(1000000));
+        assertSameGrammar(new FSGrammar(grammarFile.getPath()));
+        assertEquals(1000000, snapshot.lastModified());
+      }
+
+      // a changed grammar file invalidates the snapshot
+      assertTrue(grammarFile.setLastModified(2000000));
+      assertSameGrammar(new FSGrammar(grammarFile.getPath()));
+      assertFalse(snapshot.lastModified() == 1000000);
+    } finally {
+      FSGrammar.GRAMMAR_SNAPSHOT = false;
+      FSGrammar.LAZY_TYPE_FS = lazyTypeFS;
+      TFS.setGrammar(gram);
+      snapshot.delete();
+      grammarFile.delete();
+      dir.delete();
+    }
+  }
+
+  @Test public void threadGrammarTest() throws Exception {
+    final FSGrammar mini;
+    try {
+      FSGrammar.MAKE_DEFAULT = false;
+      mini = new FSGrammar(new File(getTestResourceDir(),
+          "minimal/mini.grm").getAbsolutePath());
+    } finally {
+      FSGrammar.MAKE_DEFAULT = true;
+    }
+    assertTrue(DagNode.getGrammar() == gram);
+    assertTrue(TFS.getQCSize() > 0);
+    final Callable<Integer> miniTask = new Callable<Integer>() {
+      @Override
+      public Integer call() throws InvalidSyntaxException {
+        assertTrue(DagNode.getGrammar() == mini);
+        TFS fs = TFS.fsFromString("[ *top* HEAD [ baz ] ]")
+            .unifyFS(TFS.fsFromString("[ *top* HEAD [ *top* ] BAR [ *top* ] ]"));
+        assertEquals(mini.getTypeId("baz"),
+            fs.dag().getValue(mini.getFeatureId("HEAD")).getType());
+        return TFS.getQCSize();
+      }
+    };
+    Callable<Integer> gramTask = new Callable<Integer>() {
+      @Override
+      public Integer call() throws InvalidSyntaxException {
+        assertTrue(DagNode.getGrammar() == gram);
+        TFS fs = TFS.fsFromString(base[2]).unifyFS(TFS.fsFromString(base[4]));
+        assertNotNull(fs);
+        return TFS.getQCSize();
+      }
+    };
+    List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    for (int i = 0; i < 20; ++i) {
+      tasks.add(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          return mini.call(miniTask);
+        }
+      });
+      tasks.add(gramTask);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Integer>> results = executor.invokeAll(tasks);
+      for (int i = 0; i < results.size(); i += 2) {
+        assertEquals(0, (int) results.get(i).get());
+        assertEquals(TFS.getQCSize(), (int) results.get(i + 1).get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(DagNode.getGrammar() == gram);
+  }
+
+  @Test public void threadGrammarUnifyAllTest() throws Exception {
+    final FSGrammar mini = new FSGrammar(new File(getTestResourceDir(),
+        "minimal/mini.grm").getAbsolutePath(), false);
+    // two types that are compatible in mini, but not in the default grammar
+    int noTypes = Math.min(mini.getNoOfGrammarTypes(),
+        gram.getNoOfGrammarTypes());
+    int t1 = -1, t2 = -1;
+    for (int i = 1; i < noTypes && t1 < 0; ++i) {
+      for (int j = 1; j < noTypes && t1 < 0; ++j) {
+        if (mini.unifyTypes(i, j) != FSGrammar.BOTTOM_TYPE
+            && gram.unifyTypes(i, j) == FSGrammar.BOTTOM_TYPE) {
+          t1 = i;
+          t2 = j;
+        }
+      }
+    }
+    assertTrue(t1 >= 0);
+    final String ruleString = "[ *top* ARGS [ *cons* FIRST [ "
+        + mini.getTypeName(t1) + " ] REST [ *null* ] ] ]";
+    final String argString = "[ " + mini.getTypeName(t2) + " ]";
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      mini.call(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          TFS rule = TFS.fsFromString(ruleString);
+          List<TFS> candidates = new ArrayList<TFS>();
+          for (int i = 0; i < 8; ++i) {
+            candidates.add(TFS.fsFromString(argString));
+          }
+          List<TFS> expected = rule.unifyAll(candidates, 0, null);
+          for (TFS result : expected) assertNotNull(result);
+          assertEquals(expected,
+              rule.unifyAll(candidates, 0, null, executor, 4));
+          return null;
+        }
+      });
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(DagNode.getGrammar() == gram);
+  }
+
+  @Test public void constraintCopyTest() throws InvalidSyntaxException {
+    TFS g = TFS.fsFromString("[ g G [ j ] ]");
+    TFS h = TFS.fsFromString("[ h H [ f ] ]");
+    int i = gram.getTypeId("i");
+    TFS expected = g.unifyFS(h);
+    assertEquals(i, expected.dag().getType());
+    assertEquals(-1, gram.getExpansionCount(i));
+    gram.setCountExpansions(true);
+    try {
+      // the copy of the constraint is reused after every invalidation
+      for (int n = 0; n < 5; ++n) assertEquals(expected, g.unifyFS(h));
+      assertEquals(5, gram.getExpansionCount(i));
+      assertEquals(0, gram.getConstraintCopyCount(i));
+
+      // two expansions in one unification need two independent copies
+      TFS gg = TFS.fsFromString(
+          "[ *cons* FIRST [ g G [ j ] ] REST [ *cons* FIRST [ g G [ j ] ] ] ]");
+      TFS hh = TFS.fsFromString(
+          "[ *cons* FIRST [ h H [ f ] ] REST [ *cons* FIRST [ h H [ f ] ] ] ]");
+      TFS result = gg.unifyFS(hh);
+      assertEquals(7, gram.getExpansionCount(i));
+      long copies = gram.getConstraintCopyCount(i);
+      assertTrue(copies <= 1);
+      short iFeat = gram.getFeatureId("I");
+      DagNode first = result.dag().getValue(gram.firstFeatureId);
+      DagNode second = result.dag().getValue(gram.restFeatureId)
+          .getValue(gram.firstFeatureId);
+      assertEquals(i, first.getType());
+      assertEquals(i, second.getType());
+      assertTrue(first.getValue(iFeat) != second.getValue(iFeat));
+      assertEquals(result, gg.unifyFS(hh));
+      assertEquals(copies, gram.getConstraintCopyCount(i));
+    } finally {
+      gram.setCountExpansions(false);
+    }
+  }
+
+  @Test public void grammarReloadTest() throws Exception {
+    final String file = new File(getTestResourceDir(), "minimal/uniftest.grm")
+        .getAbsolutePath();
+    final GrammarHolder holder = new GrammarHolder(gram);
+    for (int i = 0; i < gram.getNoOfGrammarTypes(); ++i) {
+      for (int j = 0; j < gram.getNoOfGrammarTypes(); ++j) {
+        gram.unifyTypes(i, j);
+      }
+    }
+
+    // a request that started before the reload keeps the old grammar
+    final FSGrammar[] inFlight = new FSGrammar[2];
+    FSGrammar old = holder.call(new Callable<FSGrammar>() {
+      @Override
+      public FSGrammar call() throws Exception {
+        inFlight[0] = DagNode.getGrammar();
+        FSGrammar result = holder.reload(file);
+        inFlight[1] = DagNode.getGrammar();
+        return result;
+      }
+    });
+    assertTrue(old == gram);
+    assertTrue(inFlight[0] == gram && inFlight[1] == gram);
+    FSGrammar reloaded = holder.get();
+    assertTrue(reloaded != gram);
+    assertTrue(DagNode.getGrammar() == gram);
+    assertTrue(reloaded.sameHierarchy(gram));
+    assertTrue(reloaded._glbCache.size() > 0);
+    assertSameGrammar(reloaded);
+    assertTrue(holder.call(new Callable<FSGrammar>() {
+      @Override
+      public FSGrammar call() {
+        return DagNode.getGrammar();
+      }
+    }) == reloaded);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<FSGrammar> result = holder.reloadInBackground(new File(
+          getTestResourceDir(), "minimal/mini.grm").getAbsolutePath(), executor);
+      assertTrue(result.get() == reloaded);
+      assertFalse(holder.get().sameHierarchy(gram));
+      assertEquals(-1, holder.get().rollForwardGlbCache(gram));
+      assertTrue(holder.reloadInBackground(file, executor).get() != gram);
+      assertTrue(holder.get().sameHierarchy(gram));
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(DagNode.getGrammar() == gram);
+  }
+
+  @Test public void constraintCopiesDroppedTest() throws Exception {
+    final FSGrammar other = new FSGrammar(new File(getTestResourceDir(),
+        "minimal/uniftest.grm").getAbsolutePath(), false);
+    assertTrue(other.call(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws InvalidSyntaxException {
+        TFS g = TFS.fsFromString("[ g G [ j ] ]");
+        TFS h = TFS.fsFromString("[ h H [ f ] ]");
+        assertNotNull(g.unifyFS(h));
+        return UnificationContext.get().constraintGrammar == other;
+      }
+    }));
+    // the thread does not keep other alive after the call
+    assertTrue(UnificationContext.get().constraintGrammar != other);
+  }
+
+  @Test public void grammarReloadTruncatedTest() throws IOException {
+    File grammar = new File(getTestResourceDir(), "minimal/uniftest.grm");
+    byte[] bytes = Files.readAllBytes(grammar.toPath());
+    File file = File.createTempFile("truncated", ".grm");
+    GrammarHolder holder = new GrammarHolder(gram);
+    try {
+      Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+      boolean failed = false;
+      try {
+        holder.reload(file.getPath());
+      } catch (IOException ex) {
+        failed = true;
+      }
+      assertTrue(failed);
+      assertTrue(holder.get() == gram);
+      assertTrue(DagNode.getGrammar() == gram);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test public void glbTableTest() {
+    int noTypes = gram.getNoOfTypes();
+    int[] expected = new int[noTypes * noTypes];
+    for (int i = 0; i < noTypes; ++i) {
+      for (int j = 0; j < noTypes; ++j) {
+        expected[i * noTypes + j] = gram.unifyTypes(i, j);
+      }
+    }
+    int limit = FSGrammar.DENSE_GLB_TABLE_LIMIT;
+    try {
+      for (int denseLimit : new int[] { limit, 0 }) {
+        FSGrammar.DENSE_GLB_TABLE_LIMIT = denseLimit;
+        gram.precomputeGlbTable();
+        assertNotNull(gram._glbTable);
+        for (int i = 0; i < noTypes; ++i) {
+          for (int j = 0; j < noTypes; ++j) {
+            assertEquals(i + ":" + j, expected[i * noTypes + j],
+                gram.unifyTypes(i, j));
+            assertEquals(i + ":" + j, expected[i * noTypes + j],
+                gram.unifyTypesSubs(i, j));
+          }
+        }
+      }
+    } finally {
+      FSGrammar.DENSE_GLB_TABLE_LIMIT = limit;
+      gram._glbTable = null;
+    }
+  }
+
+  @Test public void boundedGlbCacheTest() {
+    int noTypes = gram.getNoOfTypes();
+    int[] expected = new int[noTypes * noTypes];
+    for (int i = 0; i < noTypes; ++i) {
+      for (int j = 0; j < noTypes; ++j) {
+        expected[i * noTypes + j] = gram.unifyTypes(i, j);
+      }
+    }
+    LongIntCache glbs = gram._glbCache;
+    try {
+      gram._glbCache = new BoundedLongIntCache(16, -2);
+      for (int round = 0; round < 2; ++round) {
+        for (int i = 0; i < noTypes; ++i) {
+          for (int j = 0; j < noTypes; ++j) {
+            assertEquals(i + ":" + j, expected[i * noTypes + j],
+                gram.unifyTypes(i, j));
+          }
+        }
+      }
+      assertTrue(gram._glbCache.size() <= 16);
+    } finally {
+      gram._glbCache = glbs;
+    }
+  }
+
+  @Test public void glbStatisticsTest() throws Exception {
+    int noTypes = gram.getNoOfTypes();
+    LongIntCache glbs = gram._glbCache;
+    LongIntCache subsGlbs = gram._glbCacheSubs;
+    GlbStatistics stats = new GlbStatistics();
+    try {
+      gram._glbCache = new ConcurrentLongIntMap(100, -2);
+      gram._glbCacheSubs = new ConcurrentLongIntMap(100, -2);
+      gram.setGlbCacheListener(stats);
+      for (int round = 0; round < 2; ++round) {
+        for (int i = 1; i < noTypes; ++i) {
+          for (int j = i + 1; j < noTypes; ++j) {
+            gram.unifyTypes(i, j);
+          }
+        }
+      }
+      gram.unifyTypesSubs(1, 2);
+      int pairs = ((noTypes - 2) * (noTypes - 1)) / 2;
+      assertEquals(2 * pairs, stats.getUnifyLookups());
+      assertEquals(pairs, stats.getUnifyMisses());
+      assertEquals(pairs, stats.getUnifyHits());
+      assertEquals(pairs, stats.getUnifyInserts());
+      assertEquals(1, stats.getSubsumptionLookups());
+      assertEquals(1, stats.getSubsumptionInserts());
+      long meets = 0;
+      for (long count : stats.getMeetHistogram()) meets += count;
+      assertEquals(stats.getMeetCount(), meets);
+      assertTrue(meets > 0);
+
+      stats.registerMBean("test");
+      try {
+        assertEquals(2L * pairs, ManagementFactory.getPlatformMBeanServer()
+            .getAttribute(GlbStatistics.objectName("test"), "UnifyLookups"));
+      } finally {
+        GlbStatistics.unregisterMBean("test");
+      }
+      stats.reset();
+      assertEquals(0, stats.getUnifyLookups());
+      assertEquals(0, stats.getMeetCount());
+    } finally {
+      gram.setGlbCacheListener(null);
+      gram._glbCache = glbs;
+      gram._glbCacheSubs = subsGlbs;
+    }
+  }
+
+  @Test public void glbCacheFileTest() throws IOException {
+    int noTypes = gram.getNoOfTypes();
+    int[] expected = new int[noTypes * noTypes];
+    for (int i = 0; i < noTypes; ++i) {
+      for (int j = 0; j < noTypes; ++j) {
+        expected[i * noTypes + j] = gram.unifyTypes(i, j);
+        gram.unifyTypesSubs(i, j);
+      }
+    }
+    File file = File.createTempFile("glbcache", ".bin");
+    LongIntCache glbs = gram._glbCache;
+    LongIntCache subsGlbs = gram._glbCacheSubs;
+    try {
+      gram.saveGlbCache(file);
+      gram._glbCache = new ConcurrentLongIntMap(100, -2);
+      gram._glbCacheSubs = new ConcurrentLongIntMap(100, -2);
+      assertTrue(gram.mapGlbCache(file));
+      for (int i = 0; i < noTypes; ++i) {
+        for (int j = 0; j < noTypes; ++j) {
+          assertEquals(i + ":" + j, expected[i * noTypes + j],
+              gram.unifyTypes(i, j));
+        }
+      }
+      // the saved glbs have been copied into the cache
+      assertEquals(glbs, gram._glbCache);
+
+      // saving again keeps the entries of the mapped file
+      gram._glbCache = new ConcurrentLongIntMap(100, -2);
+      gram.saveGlbCache(file);
+      gram._savedGlbs = null;
+      assertTrue(gram.mapGlbCache(file));
+      for (int i = 0; i < noTypes; ++i) {
+        for (int j = 0; j < noTypes; ++j) {
+          assertEquals(i + ":" + j, expected[i * noTypes + j],
+              gram.unifyTypes(i, j));
+        }
+      }
+      assertEquals(glbs, gram._glbCache);
+
+      GlbCacheFile.write(file, "another grammar", gram._grammarTypes,
+          noTypes, glbs, subsGlbs, null);
+      gram._savedGlbs = null;
+      assertFalse(gram.mapGlbCache(file));
+      assertNull(gram._savedGlbs);
+    } finally {
+      gram._glbCache = glbs;
+      gram._glbCacheSubs = subsGlbs;
+      gram._savedGlbs = null;
+      file.delete();
+    }
+  }
+
   @Test public void glbSaveTest() throws IOException {
     int noTypes = gram.getNoOfTypes();
     for (int i = 1; i < noTypes; ++i) {
@@ -872,10 +1759,10 @@ public class UnifTest {
     FileWriter out = new FileWriter("/tmp/glbcache");
     gram.dumpGlbCache(out);
     out.close();
-    TLongIntMap saveCache = gram._glbCache;
-    gram._glbCache = new TLongIntHashMap();
+    LongIntCache saveCache = gram._glbCache;
+    gram._glbCache = new ConcurrentLongIntMap(100, -2);
     FileReader in = new FileReader("/tmp/glbcache");
-    TLongIntMap cache = gram.undumpGlbCache(in);
+    ConcurrentLongIntMap cache = gram.undumpGlbCache(in);
     assertEquals(cache, saveCache);
   }
 
@@ -0,0 +1,115 @@
+package de.dfki.lt.loot.tfs.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PetUndumperTest {
+
+  private static final String[] STRINGS = {
+    "", "*top*", "Gr\u00fc\u00dfe", "\u65e5\u672c\u8a9e", "a much longer type name"
+  };
+
+  private File write(Charset charset) throws IOException {
+    File file = File.createTempFile("undumper", ".bin");
+    PetDumper d = new PetDumper(charset);
+    d.open(file);
+    try {
+      for (int i = 0; i < 20; ++i) {
+        d.dumpInt(i * 1000003);
+        d.dumpShort((short) -i);
+        d.dumpLong(-i * 1000000007L);
+        for (String s : STRINGS) {
+          if (charset.newEncoder().canEncode(s)) d.dumpString(s);
+        }
+        d.dumpIntArray(new int[] { i, -i, i * i });
+        d.dumpIntArray(null);
+        d.dumpShortArray(new short[] { (short) i });
+        d.dumpLongArray(new long[] { i, Long.MIN_VALUE });
+      }
+    } finally {
+      d.close();
+    }
+    return file;
+  }
+
+  private void read(PetUndumper u, Charset charset) {
+    for (int i = 0; i < 20; ++i) {
+      assertEquals(i * 1000003, u.undumpInt());
+      assertEquals((short) -i, u.undumpShort());
+      assertEquals(-i * 1000000007L, u.undumpLong());
+      for (String s : STRINGS) {
+        if (charset.newEncoder().canEncode(s)) {
+          assertEquals(s, u.undumpString());
+        }
+      }
+      assertArrayEquals(new int[] { i, -i, i * i }, u.undumpIntArray());
+      assertNull(u.undumpIntArray());
+      assertArrayEquals(new short[] { (short) i }, u.undumpShortArray());
+      assertArrayEquals(new long[] { i, Long.MIN_VALUE },
+          u.undumpLongArray());
+    }
+  }
+
+  @Test
+  public void testReadWrite() throws IOException {
+    int bits = PetUndumper.SEGMENT_BITS;
+    try {
+      for (Charset charset : new Charset[] { StandardCharsets.UTF_8,
+          StandardCharsets.ISO_8859_1, Charset.forName("EUC-JP") }) {
+        File file = write(charset);
+        // small segments, so that items start close to segment boundaries
+        for (int segmentBits : new int[] { bits, 4, 5 }) {
+          PetUndumper.SEGMENT_BITS = segmentBits;
+          PetUndumper u = new PetUndumper(charset);
+          u.open(file);
+          read(u, charset);
+          assertEquals(file.length(), u.getPosition());
+          u.close();
+        }
+        file.delete();
+      }
+    } finally {
+      PetUndumper.SEGMENT_BITS = bits;
+    }
+  }
+
+  @Test
+  public void testCopyAndDuplicate() throws IOException {
+    int bits = PetUndumper.SEGMENT_BITS;
+    File file = write(StandardCharsets.UTF_8);
+    File copy = File.createTempFile("undumper", ".bin");
+    try {
+      PetUndumper.SEGMENT_BITS = 4;
+      PetUndumper u = new PetUndumper(StandardCharsets.UTF_8);
+      u.open(file);
+      u.seekAbsolute(4);
+      PetUndumper dup = u.duplicate();
+      assertEquals(4, dup.getPosition());
+      u.seekAbsolute(0);
+      assertEquals(0, u.undumpInt());
+      assertEquals((short) 0, dup.undumpShort());
+      assertEquals(4, u.getPosition());
+
+      PetDumper d = new PetDumper(StandardCharsets.UTF_8);
+      d.open(copy);
+      u.copyTo(0, file.length(), d);
+      d.close();
+      u.close();
+      assertTrue(Arrays.equals(
+          Files.readAllBytes(file.toPath()),
+          Files.readAllBytes(copy.toPath())));
+    } finally {
+      PetUndumper.SEGMENT_BITS = bits;
+      file.delete();
+      copy.delete();
+    }
+  }
+}
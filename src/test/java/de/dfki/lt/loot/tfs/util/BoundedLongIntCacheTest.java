@@ -0,0 +1,85 @@
+package de.dfki.lt.loot.tfs.util;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.procedure.TLongIntProcedure;
+
+import org.junit.Test;
+
+public class BoundedLongIntCacheTest {
+
+  @Test
+  public void testPutGet() {
+    BoundedLongIntCache cache = new BoundedLongIntCache(1000, -2);
+    assertEquals(1024, cache.capacity());
+    assertEquals(-2, cache.get(17));
+    cache.put(17, -1);
+    cache.put(BoundedLongIntCache.MAX_KEY, BoundedLongIntCache.MAX_VALUE);
+    assertEquals(-1, cache.get(17));
+    assertEquals(BoundedLongIntCache.MAX_VALUE,
+        cache.get(BoundedLongIntCache.MAX_KEY));
+    cache.put(17, 42);
+    assertEquals(42, cache.get(17));
+    assertEquals(2, cache.size());
+    // out of range entries are not stored
+    cache.put(-1, 3);
+    cache.put(5, -2);
+    cache.put(BoundedLongIntCache.MAX_KEY + 1, 3);
+    assertEquals(-2, cache.get(5));
+    assertEquals(2, cache.size());
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(-2, cache.get(17));
+  }
+
+  @Test
+  public void testEviction() {
+    BoundedLongIntCache cache = new BoundedLongIntCache(64, -2);
+    for (long key = 0; key < 10000; ++key) {
+      cache.put(key, (int) key);
+      // the hot key is used all the time and must not be evicted
+      if (key > 0) assertEquals(0, cache.get(0));
+    }
+    assertTrue(cache.size() <= 64);
+    final int[] count = { 0 };
+    cache.forEachEntry(new TLongIntProcedure() {
+      @Override
+      public boolean execute(long key, int value) {
+        assertEquals(key, value);
+        ++count[0];
+        return true;
+      }
+    });
+    assertEquals(cache.size(), count[0]);
+  }
+
+  @Test
+  public void testConcurrentAccess() throws InterruptedException {
+    final BoundedLongIntCache cache = new BoundedLongIntCache(256, -2);
+    final Throwable[] failure = { null };
+    Thread[] workers = new Thread[8];
+    for (int t = 0; t < workers.length; ++t) {
+      final int offset = t;
+      workers[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 50000; ++i) {
+              long key = (i * 7L + offset) % 20000;
+              int value = cache.get(key);
+              // entries may be evicted, but never be wrong
+              if (value != -2) assertEquals(key * 3, value);
+              else cache.put(key, (int) key * 3);
+            }
+          } catch (Throwable ex) {
+            synchronized (failure) { failure[0] = ex; }
+          }
+        }
+      };
+      workers[t].start();
+    }
+    for (Thread w : workers) w.join();
+    if (failure[0] != null) throw new AssertionError(failure[0]);
+    assertTrue(cache.size() <= 256);
+  }
+}
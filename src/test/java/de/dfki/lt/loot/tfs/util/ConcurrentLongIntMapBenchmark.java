@@ -0,0 +1,105 @@
+package de.dfki.lt.loot.tfs.util;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/** Compares ConcurrentLongIntMap with the synchronized Trove map formerly
+ *  used for the glb caches of FSGrammar, using the access pattern of a cache
+ *  (get, and put on a miss) with 1 to 32 threads.
+ *
+ *  Optional arguments are the number of distinct keys and the number of
+ *  lookups per thread.
+ */
+public class ConcurrentLongIntMapBenchmark {
+
+  private interface Cache {
+    int get(long key);
+    void put(long key, int value);
+  }
+
+  /** The former locking scheme of FSGrammar.unifyTypes */
+  private static class LockedCache implements Cache {
+    private final TLongIntHashMap map = new TLongIntHashMap(30000, 0.5f, 0, -2);
+    private final boolean[] lock = { false };
+
+    @Override
+    public int get(long key) {
+      while (lock[0]) {
+        synchronized(lock) {
+
+        }
+      }
+      return map.get(key);
+    }
+
+    @Override
+    public void put(long key, int value) {
+      synchronized(lock) {
+        lock[0] = true;
+        map.put(key, value);
+        lock[0] = false;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private static class ConcurrentCache implements Cache {
+    private final ConcurrentLongIntMap map = new ConcurrentLongIntMap(30000, -2);
+
+    @Override
+    public int get(long key) { return map.get(key); }
+
+    @Override
+    public void put(long key, int value) { map.put(key, value); }
+  }
+
+  private static long run(final Cache cache, int threads, final int keys,
+      final int lookups) throws InterruptedException {
+    final long[] sums = new long[threads];
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; ++t) {
+      final int id = t;
+      workers[t] = new Thread() {
+        @Override
+        public void run() {
+          long seed = 0x9e3779b97f4a7c15L * (id + 1);
+          long sum = 0;
+          for (int i = 0; i < lookups; ++i) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            long key = (seed >>> 33) % keys;
+            int value = cache.get(key);
+            if (value == -2) {
+              value = (int) (key & 0xffff);
+              cache.put(key, value);
+            }
+            sum += value;
+          }
+          sums[id] = sum;
+        }
+      };
+    }
+    long start = System.nanoTime();
+    for (Thread w : workers) w.start();
+    for (Thread w : workers) w.join();
+    long time = System.nanoTime() - start;
+    long check = 0;
+    for (long s : sums) check += s;
+    if (check < 0) System.out.println(check);
+    return time;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+    System.out.println(String.format("%7s %14s %14s", "threads",
+        "locked [ms]", "concurrent [ms]"));
+    for (int threads = 1; threads <= 32; threads *= 2) {
+      // warm up
+      run(new LockedCache(), threads, keys, lookups / 10);
+      run(new ConcurrentCache(), threads, keys, lookups / 10);
+      long locked = run(new LockedCache(), threads, keys, lookups);
+      long concurrent = run(new ConcurrentCache(), threads, keys, lookups);
+      System.out.println(String.format("%7d %14.1f %14.1f", threads,
+          locked / 1e6, concurrent / 1e6));
+    }
+  }
+}
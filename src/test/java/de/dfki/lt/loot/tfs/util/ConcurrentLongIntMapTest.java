@@ -0,0 +1,82 @@
+package de.dfki.lt.loot.tfs.util;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.procedure.TLongIntProcedure;
+
+import org.junit.Test;
+
+public class ConcurrentLongIntMapTest {
+
+  @Test
+  public void testPutGet() {
+    ConcurrentLongIntMap map = new ConcurrentLongIntMap(4, -2);
+    assertEquals(-2, map.get(17));
+    for (long key = 0; key < 10000; ++key) {
+      map.put(key * 31, (int) key);
+    }
+    map.put(31, 42);
+    assertEquals(10000, map.size());
+    assertEquals(42, map.get(31));
+    for (long key = 2; key < 10000; ++key) {
+      assertEquals((int) key, map.get(key * 31));
+    }
+    assertEquals(-2, map.get(17));
+    final int[] count = { 0 };
+    map.forEachEntry(new TLongIntProcedure() {
+      @Override
+      public boolean execute(long key, int value) {
+        ++count[0];
+        return true;
+      }
+    });
+    assertEquals(10000, count[0]);
+    map.clear();
+    assertEquals(0, map.size());
+    assertEquals(-2, map.get(31));
+  }
+
+  @Test
+  public void testEquals() {
+    ConcurrentLongIntMap map1 = new ConcurrentLongIntMap(4, -2);
+    ConcurrentLongIntMap map2 = new ConcurrentLongIntMap(1000, -2);
+    for (long key = 0; key < 100; ++key) {
+      map1.put(key, (int) key + 1);
+      map2.put(99 - key, 100 - (int) key);
+    }
+    assertEquals(map1, map2);
+    assertEquals(map1.hashCode(), map2.hashCode());
+    map2.put(3, 7);
+    assertFalse(map1.equals(map2));
+  }
+
+  @Test
+  public void testConcurrentAccess() throws InterruptedException {
+    final ConcurrentLongIntMap map = new ConcurrentLongIntMap(16, -2);
+    final Throwable[] failure = { null };
+    Thread[] workers = new Thread[8];
+    for (int t = 0; t < workers.length; ++t) {
+      final int offset = t;
+      workers[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 50000; ++i) {
+              long key = (i * 7L + offset) % 20000;
+              int value = map.get(key);
+              // entries may be lost during a resize, but never be wrong
+              if (value != -2) assertEquals(key * 3, value);
+              else map.put(key, (int) key * 3);
+            }
+          } catch (Throwable ex) {
+            synchronized (failure) { failure[0] = ex; }
+          }
+        }
+      };
+      workers[t].start();
+    }
+    for (Thread w : workers) w.join();
+    if (failure[0] != null) throw new AssertionError(failure[0]);
+    assertTrue(map.size() <= 20000);
+  }
+}